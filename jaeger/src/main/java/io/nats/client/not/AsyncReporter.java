@@ -0,0 +1,230 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import io.jaegertracing.internal.JaegerSpan;
+import io.jaegertracing.spi.Reporter;
+
+/**
+ * AsyncReporter hands finished spans to another reporter on a background
+ * thread, so the thread finishing a span, often a NATS dispatcher thread,
+ * never waits on logging or sending.  Spans are held in a bounded lock free
+ * queue and passed on in batches.  When the queue is full spans are dropped
+ * according to the {@link OverflowPolicy}, and counted.
+ */
+public class AsyncReporter implements Reporter {
+
+    /**
+     * Which span to drop when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop the span being reported.
+         */
+        DROP_NEWEST,
+        /**
+         * Drop the oldest queued span to make room.
+         */
+        DROP_OLDEST
+    }
+
+    private final Reporter delegate;
+    private final int capacity;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final OverflowPolicy policy;
+
+    private final ConcurrentLinkedQueue<JaegerSpan> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder flushed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Creates an AsyncReporter and starts its background thread.
+     *
+     * @param delegate the reporter spans are passed on to
+     * @param capacity the most spans that can be queued
+     * @param batchSize the most spans passed on at once, the background
+     * thread is woken early once this many are queued
+     * @param flushIntervalMillis how long the background thread waits for
+     * more spans when the queue is empty
+     * @param policy what to drop when the queue is full
+     */
+    public AsyncReporter(Reporter delegate, int capacity, int batchSize, long flushIntervalMillis,
+            OverflowPolicy policy) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate cannot be null");
+        }
+        if (capacity <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("capacity and batchSize must be greater than zero");
+        }
+        if (flushIntervalMillis <= 0) {
+            throw new IllegalArgumentException("flushIntervalMillis must be greater than zero");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy cannot be null");
+        }
+
+        this.delegate = delegate;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.policy = policy;
+
+        thread = new Thread(this::run, "not-async-reporter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Creates an AsyncReporter in front of the reporters configured by the
+     * standard Jaeger environment variables.  Pass it to
+     * {@link TracerOptions.Builder#reporter} to keep access to the counters.
+     *
+     * @param logSpans true to also log every span
+     * @param capacity the most spans that can be queued
+     * @param policy what to drop when the queue is full
+     * @return the new reporter
+     */
+    public static AsyncReporter fromEnv(boolean logSpans, int capacity, OverflowPolicy policy) {
+        return new AsyncReporter(TracerOptions.createEnvReporter(logSpans), capacity,
+            Math.min(capacity, 100), 100, policy);
+    }
+
+    @Override
+    public void report(JaegerSpan span) {
+        if (!running) {
+            dropped.increment();
+            return;
+        }
+
+        if (size.incrementAndGet() > capacity) {
+            if (policy == OverflowPolicy.DROP_NEWEST || queue.poll() == null) {
+                size.decrementAndGet();
+                dropped.increment();
+                return;
+            }
+            // The oldest span was removed, ours takes its place.
+            size.decrementAndGet();
+            dropped.increment();
+        }
+
+        queue.offer(span);
+        queued.increment();
+        if (size.get() == batchSize) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void run() {
+        while (running) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(this, flushIntervalNanos);
+            }
+        }
+        // Pass on what is left and close the delegate here, so only this
+        // thread ever uses it.
+        while (drain() > 0) {
+            // pass on what is left
+        }
+        delegate.close();
+    }
+
+    /**
+     * Passes up to a batch of spans to the delegate.
+     * @return the number of spans passed on.
+     */
+    private int drain() {
+        int n = 0;
+        JaegerSpan span;
+        while (n < batchSize && (span = queue.poll()) != null) {
+            size.decrementAndGet();
+            try {
+                delegate.report(span);
+            } catch (RuntimeException e) {
+                // A failing reporter must not stop the background thread.
+            }
+            n++;
+        }
+        flushed.add(n);
+        return n;
+    }
+
+    /**
+     * Stops the background thread, which passes on the spans still queued
+     * and closes the delegate.  If the background thread does not stop in
+     * time, for example because the delegate is blocked, the spans it has
+     * not taken are dropped and the delegate is closed once it returns.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos) + 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Spans the background thread did not get to, or that were queued
+        // as it stopped, are dropped.
+        while (queue.poll() != null) {
+            size.decrementAndGet();
+            dropped.increment();
+        }
+    }
+
+    /**
+     * @return the number of spans accepted into the queue.
+     */
+    public long getQueuedCount() {
+        return queued.sum();
+    }
+
+    /**
+     * @return the number of spans passed on to the delegate.
+     */
+    public long getFlushedCount() {
+        return flushed.sum();
+    }
+
+    /**
+     * @return the number of spans dropped because the queue was full or
+     * the reporter was closed.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of spans waiting in the queue.
+     */
+    public int getQueueSize() {
+        return Math.max(0, size.get());
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncReporter(delegate=" + delegate + ", capacity=" + capacity + ", policy=" + policy + ")";
+    }
+}
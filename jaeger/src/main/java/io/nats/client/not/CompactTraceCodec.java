@@ -0,0 +1,391 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import io.jaegertracing.internal.JaegerSpanContext;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+
+/**
+ * CompactTraceCodec writes span contexts with fixed layouts that do not
+ * depend on the tracer's binary format, and reads them back with straight
+ * line reads of the carrier bytes.  Three layouts are available:
+ *
+ * <ul>
+ * <li>{@link #COMPACT}: 128 bit trace id, 64 bit span id, flags, then a
+ * baggage count followed by length prefixed keys and values.  26 bytes when
+ * there is no baggage.</li>
+ * <li>{@link #W3C}: a W3C traceparent, <code>00-traceid-spanid-flags</code>,
+ * in ASCII.  Baggage is not propagated.</li>
+ * <li>{@link #B3}: a B3 single header, <code>traceid-spanid-sampled</code>,
+ * in ASCII.  Baggage is not propagated.</li>
+ * </ul>
+ *
+ * Baggage keys that services agree on can be registered in a dictionary
+ * with {@link #withDictionary(int, List)}, the compact layout then writes
+ * one byte for each of those keys.  Decoded keys are interned, so
+ * receivers share one String for each key they see repeatedly.
+ *
+ * The codecs work with Jaeger span contexts.
+ */
+public final class CompactTraceCodec implements TraceCodec {
+
+    /**
+     * Fixed binary layout with optional baggage.
+     */
+    public static final CompactTraceCodec COMPACT = new CompactTraceCodec(1, Layout.COMPACT);
+
+    /**
+     * W3C traceparent layout.
+     */
+    public static final CompactTraceCodec W3C = new CompactTraceCodec(2, Layout.W3C);
+
+    /**
+     * B3 single header layout.
+     */
+    public static final CompactTraceCodec B3 = new CompactTraceCodec(3, Layout.B3);
+
+    enum Layout {
+        COMPACT, W3C, B3
+    }
+
+    static final int COMPACT_SIZE = 8 + 8 + 8 + 1 + 1;
+    static final int W3C_SIZE = 2 + 1 + 32 + 1 + 16 + 1 + 2;
+    static final int B3_SIZE = 32 + 1 + 16 + 1 + 1;
+
+    /**
+     * The largest number of keys in a dictionary.
+     */
+    public static final int MAX_DICTIONARY_SIZE = 128;
+
+    // Key bytes with this bit set are a dictionary index, in codecs that
+    // have a dictionary.
+    private static final int DICTIONARY_KEY = 0x80;
+    private static final int KEY_CACHE_SIZE = 256;
+
+    static final byte FLAG_SAMPLED = 1;
+    static final byte FLAG_DEBUG = 2;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX_VALUES = new byte[256];
+
+    static {
+        for (int i = 0; i < HEX_VALUES.length; i++) {
+            HEX_VALUES[i] = -1;
+        }
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUES[HEX[i]] = (byte) i;
+            HEX_VALUES[Character.toUpperCase(HEX[i])] = (byte) i;
+        }
+    }
+
+    private static final class InternedKey {
+        final byte[] bytes;
+        final String key;
+
+        InternedKey(byte[] bytes, String key) {
+            this.bytes = bytes;
+            this.key = key;
+        }
+    }
+
+    private final int id;
+    private final Layout layout;
+    private final String[] dictionary;
+    private final Map<String, Integer> dictionaryIndex;
+    private final AtomicReferenceArray<InternedKey> keys = new AtomicReferenceArray<>(KEY_CACHE_SIZE);
+
+    private CompactTraceCodec(int id, Layout layout) {
+        this(id, layout, null);
+    }
+
+    private CompactTraceCodec(int id, Layout layout, String[] dictionary) {
+        this.id = id;
+        this.layout = layout;
+        this.dictionary = dictionary;
+        this.dictionaryIndex = new HashMap<>();
+        if (dictionary != null) {
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionaryIndex.put(dictionary[i], i);
+            }
+        }
+    }
+
+    /**
+     * Creates a codec with the compact layout that writes well known
+     * baggage keys as a one byte index into a dictionary.  Other keys are
+     * written as they are, and can be at most 127 bytes long.  Publishers
+     * and receivers must register the same dictionary under the same id.
+     *
+     * <pre>
+     * TraceCodec codec = CompactTraceCodec.withDictionary(4, Arrays.asList("tenant", "user", "region"));
+     * TraceOptions options = new TraceOptions.Builder().codec(codec).build();
+     * </pre>
+     *
+     * @param id the codec id, between 1 and {@link TraceCodec#MAX_ID}, it
+     * must not clash with the other codecs in use
+     * @param keys the well known keys, at most {@link #MAX_DICTIONARY_SIZE},
+     * in the same order on every side
+     * @return the codec
+     */
+    public static CompactTraceCodec withDictionary(int id, List<String> keys) {
+        if (id < 1 || id > TraceCodec.MAX_ID) {
+            throw new IllegalArgumentException("id must be between 1 and " + TraceCodec.MAX_ID);
+        }
+        if (keys == null) {
+            throw new IllegalArgumentException("keys cannot be null");
+        }
+        if (keys.size() > MAX_DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("at most " + MAX_DICTIONARY_SIZE + " keys can be registered");
+        }
+        String[] dictionary = keys.toArray(new String[0]);
+        for (int i = 0; i < dictionary.length; i++) {
+            if (dictionary[i] == null) {
+                throw new IllegalArgumentException("keys cannot contain null");
+            }
+            if (keys.indexOf(dictionary[i]) != i) {
+                throw new IllegalArgumentException("key " + dictionary[i] + " is registered twice");
+            }
+        }
+        return new CompactTraceCodec(id, Layout.COMPACT, dictionary);
+    }
+
+    @Override
+    public int id() {
+        return id;
+    }
+
+    @Override
+    public void encode(Tracer tracer, SpanContext spanContext, ByteBuffer buffer) {
+        if (!(spanContext instanceof JaegerSpanContext)) {
+            throw new IllegalArgumentException("spanContext must be a Jaeger span context");
+        }
+        JaegerSpanContext sc = (JaegerSpanContext) spanContext;
+
+        switch (layout) {
+            case COMPACT:
+                encodeCompact(sc, buffer);
+                break;
+            case W3C:
+                buffer.put((byte) '0').put((byte) '0').put((byte) '-');
+                putHex(buffer, sc.getTraceIdHigh());
+                putHex(buffer, sc.getTraceIdLow());
+                buffer.put((byte) '-');
+                putHex(buffer, sc.getSpanId());
+                buffer.put((byte) '-').put((byte) '0').put(sc.isSampled() ? (byte) '1' : (byte) '0');
+                break;
+            case B3:
+                putHex(buffer, sc.getTraceIdHigh());
+                putHex(buffer, sc.getTraceIdLow());
+                buffer.put((byte) '-');
+                putHex(buffer, sc.getSpanId());
+                buffer.put((byte) '-');
+                buffer.put(sc.isDebug() ? (byte) 'd' : sc.isSampled() ? (byte) '1' : (byte) '0');
+                break;
+        }
+    }
+
+    private void encodeCompact(JaegerSpanContext sc, ByteBuffer buffer) {
+        int count = sc.baggageCount();
+        if (count > 255) {
+            throw new IllegalArgumentException("at most 255 baggage items can be encoded");
+        }
+
+        buffer.putLong(sc.getTraceIdHigh());
+        buffer.putLong(sc.getTraceIdLow());
+        buffer.putLong(sc.getSpanId());
+        buffer.put(sc.getFlags());
+        buffer.put((byte) count);
+        if (count == 0) {
+            return;
+        }
+
+        int maxKeyLength = dictionary == null ? 255 : DICTIONARY_KEY - 1;
+        for (Map.Entry<String, String> e : sc.baggageItems()) {
+            byte[] value = e.getValue().getBytes(StandardCharsets.UTF_8);
+            if (value.length > 65535) {
+                throw new IllegalArgumentException("baggage item " + e.getKey() + " is too large to encode");
+            }
+            Integer index = dictionaryIndex.get(e.getKey());
+            if (index != null) {
+                buffer.put((byte) (DICTIONARY_KEY | index));
+            } else {
+                byte[] key = e.getKey().getBytes(StandardCharsets.UTF_8);
+                if (key.length > maxKeyLength) {
+                    throw new IllegalArgumentException("baggage item " + e.getKey() + " is too large to encode");
+                }
+                buffer.put((byte) key.length).put(key);
+            }
+            buffer.putShort((short) value.length).put(value);
+        }
+    }
+
+    @Override
+    public SpanContext decode(Tracer tracer, byte[] data, int offset, int length) {
+        switch (layout) {
+            case COMPACT:
+                return decodeCompact(data, offset, length);
+            case W3C:
+                if (length != W3C_SIZE || data[offset] != '0' || data[offset + 1] != '0'
+                        || data[offset + 2] != '-' || data[offset + 35] != '-' || data[offset + 52] != '-'
+                        || !isHex(data, offset + 3, 32) || !isHex(data, offset + 36, 16)
+                        || !isHex(data, offset + 53, 2)) {
+                    return null;
+                }
+                return new JaegerSpanContext(readHex(data, offset + 3), readHex(data, offset + 19),
+                    readHex(data, offset + 36), 0, (byte) (HEX_VALUES[data[offset + 54] & 0xFF] & FLAG_SAMPLED));
+            case B3:
+                if (length != B3_SIZE || data[offset + 32] != '-' || data[offset + 49] != '-'
+                        || !isHex(data, offset, 32) || !isHex(data, offset + 33, 16)) {
+                    return null;
+                }
+                byte flags;
+                switch (data[offset + 50]) {
+                    case '1':
+                        flags = FLAG_SAMPLED;
+                        break;
+                    case 'd':
+                        flags = FLAG_SAMPLED | FLAG_DEBUG;
+                        break;
+                    case '0':
+                        flags = 0;
+                        break;
+                    default:
+                        return null;
+                }
+                return new JaegerSpanContext(readHex(data, offset), readHex(data, offset + 16),
+                    readHex(data, offset + 33), 0, flags);
+            default:
+                return null;
+        }
+    }
+
+    private JaegerSpanContext decodeCompact(byte[] data, int offset, int length) {
+        if (length < COMPACT_SIZE) {
+            return null;
+        }
+
+        long traceIdHigh = readLong(data, offset);
+        long traceIdLow = readLong(data, offset + 8);
+        long spanId = readLong(data, offset + 16);
+        byte flags = data[offset + 24];
+        int count = data[offset + 25] & 0xFF;
+        JaegerSpanContext sc = new JaegerSpanContext(traceIdHigh, traceIdLow, spanId, 0, flags);
+        if (count == 0) {
+            return length == COMPACT_SIZE ? sc : null;
+        }
+
+        Map<String, String> baggage = new HashMap<>(count * 2);
+        int pos = offset + COMPACT_SIZE;
+        int end = offset + length;
+        for (int i = 0; i < count; i++) {
+            if (pos + 1 > end) {
+                return null;
+            }
+            int keyLen = data[pos++] & 0xFF;
+            String key;
+            if (dictionary != null && keyLen >= DICTIONARY_KEY) {
+                int index = keyLen & ~DICTIONARY_KEY;
+                if (index >= dictionary.length) {
+                    return null;
+                }
+                key = dictionary[index];
+                keyLen = 0;
+            } else if (pos + keyLen <= end) {
+                key = internKey(data, pos, keyLen);
+            } else {
+                return null;
+            }
+            pos += keyLen;
+            if (pos + 2 > end) {
+                return null;
+            }
+            int valueLen = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+            pos += 2;
+            if (pos + valueLen > end) {
+                return null;
+            }
+            baggage.put(key, new String(data, pos, valueLen, StandardCharsets.UTF_8));
+            pos += valueLen;
+        }
+        return pos == end ? sc.withBaggage(baggage) : null;
+    }
+
+    /**
+     * Returns the key for the bytes, reusing the String decoded the last
+     * time the same bytes were seen in their slot.
+     */
+    private String internKey(byte[] data, int offset, int length) {
+        int h = 1;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + data[i];
+        }
+        int index = (h ^ (h >>> 16)) & (KEY_CACHE_SIZE - 1);
+        InternedKey k = keys.get(index);
+        if (k != null && k.bytes.length == length) {
+            int i = 0;
+            while (i < length && k.bytes[i] == data[offset + i]) {
+                i++;
+            }
+            if (i == length) {
+                return k.key;
+            }
+        }
+        String key = new String(data, offset, length, StandardCharsets.UTF_8);
+        keys.set(index, new InternedKey(Arrays.copyOfRange(data, offset, offset + length), key));
+        return key;
+    }
+
+    static long readLong(byte[] data, int offset) {
+        return ((long) (data[offset] & 0xFF) << 56)
+            | ((long) (data[offset + 1] & 0xFF) << 48)
+            | ((long) (data[offset + 2] & 0xFF) << 40)
+            | ((long) (data[offset + 3] & 0xFF) << 32)
+            | ((long) (data[offset + 4] & 0xFF) << 24)
+            | ((long) (data[offset + 5] & 0xFF) << 16)
+            | ((long) (data[offset + 6] & 0xFF) << 8)
+            | ((long) (data[offset + 7] & 0xFF));
+    }
+
+    private static void putHex(ByteBuffer buffer, long value) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            buffer.put(HEX[(int) (value >>> shift) & 0xF]);
+        }
+    }
+
+    private static boolean isHex(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (HEX_VALUES[data[i] & 0xFF] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long readHex(byte[] data, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 16; i++) {
+            value = (value << 4) | HEX_VALUES[data[i] & 0xFF];
+        }
+        return value;
+    }
+}
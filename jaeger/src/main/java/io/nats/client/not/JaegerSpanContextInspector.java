@@ -0,0 +1,54 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.util.Map;
+
+import io.jaegertracing.internal.JaegerSpanContext;
+import io.opentracing.SpanContext;
+
+/**
+ * Reads sampling decisions and trace ids of Jaeger span contexts without
+ * formatting them as strings, and copies them with trimmed baggage.  It is
+ * registered as a service, so the core module finds it when this module is
+ * on the class path.  Span contexts of other tracers are handled like
+ * {@link SpanContextInspector#GENERIC} does.
+ */
+public class JaegerSpanContextInspector implements SpanContextInspector {
+
+    @Override
+    public boolean isSampled(SpanContext spanContext) {
+        if (spanContext instanceof JaegerSpanContext) {
+            return ((JaegerSpanContext) spanContext).isSampled();
+        }
+        return true;
+    }
+
+    @Override
+    public int traceHash(SpanContext spanContext) {
+        if (spanContext instanceof JaegerSpanContext) {
+            long id = ((JaegerSpanContext) spanContext).getTraceIdLow();
+            return (int) (id ^ (id >>> 32));
+        }
+        return SpanContextInspector.super.traceHash(spanContext);
+    }
+
+    @Override
+    public SpanContext withBaggage(SpanContext spanContext, Map<String, String> baggage) {
+        if (spanContext instanceof JaegerSpanContext) {
+            return ((JaegerSpanContext) spanContext).withBaggage(baggage);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,66 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+/**
+ * This class sets up Jaeger as the tracer for the java NATS open tracing
+ * implementation.  It lives in the not-jaeger module, so applications that
+ * bring their own tracer only need the core module.
+ */
+public class JaegerTracing {
+
+    private JaegerTracing() {}
+
+    /**
+     * A helper function to initalize tracing
+     * @param serviceName Name of the service.
+     * @return an OpenTracing tracer
+     */
+    public static io.opentracing.Tracer initTracing(String serviceName) {
+        return initTracing(serviceName, TracerOptions.DEFAULT);
+    }
+
+    /**
+     * A helper function to initalize tracing with a choice of sampler and
+     * reporting.
+     * @param serviceName Name of the service.
+     * @param options Options for the tracer.
+     * @return an OpenTracing tracer
+     */
+    public static io.opentracing.Tracer initTracing(String serviceName, TracerOptions options) {
+        return options.createTracer(serviceName);
+    }
+
+    /**
+     * A helper function to get a tracer shared by everyone asking for the
+     * same service name with the default options.  Unlike initTracing,
+     * calling this again does not create another tracer.
+     * @param serviceName Name of the service.
+     * @return an OpenTracing tracer
+     */
+    public static io.opentracing.Tracer sharedTracing(String serviceName) {
+        return TracerRegistry.SHARED.get(serviceName);
+    }
+
+    /**
+     * A helper function to get a tracer shared by everyone asking for the
+     * same service name and options, see {@link TracerRegistry}.
+     * @param serviceName Name of the service.
+     * @param options Options for the tracer.
+     * @return an OpenTracing tracer
+     */
+    public static io.opentracing.Tracer sharedTracing(String serviceName, TracerOptions options) {
+        return TracerRegistry.SHARED.get(serviceName, options);
+    }
+}
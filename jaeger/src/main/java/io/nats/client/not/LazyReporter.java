@@ -0,0 +1,89 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.util.function.Supplier;
+
+import io.jaegertracing.internal.JaegerSpan;
+import io.jaegertracing.spi.Reporter;
+
+/**
+ * Creates a reporter when the first span is reported.  Jaeger's remote
+ * reporter opens a socket and starts two threads when it is created, which
+ * tracers that never finish a span, or are created only to be shared, don't
+ * need.  The reporter is created and closed under one lock, so it is never
+ * created after close; spans reported after close are dropped.
+ */
+final class LazyReporter implements Reporter {
+
+    private final Supplier<Reporter> factory;
+    private volatile Reporter delegate;
+    private volatile boolean closed;
+
+    LazyReporter(Supplier<Reporter> factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public void report(JaegerSpan span) {
+        if (closed) {
+            return;
+        }
+        Reporter r = delegate;
+        if (r == null) {
+            r = start();
+            if (r == null) {
+                return;
+            }
+        }
+        r.report(span);
+    }
+
+    /**
+     * @return the reporter, created if needed, or null once closed.
+     */
+    private synchronized Reporter start() {
+        if (closed) {
+            return null;
+        }
+        if (delegate == null) {
+            delegate = factory.get();
+        }
+        return delegate;
+    }
+
+    /**
+     * @return true if the reporter was created.
+     */
+    boolean isStarted() {
+        return delegate != null;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (delegate != null) {
+            delegate.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        Reporter r = delegate;
+        return "LazyReporter(" + (r == null ? "not started" : r) + ")";
+    }
+}
@@ -0,0 +1,330 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.jaegertracing.internal.JaegerSpan;
+import io.jaegertracing.internal.JaegerSpanContext;
+import io.jaegertracing.internal.LogData;
+
+/**
+ * A finished span read back from a spool, see {@link SpoolReporter} and
+ * {@link SpoolExporter}.
+ *
+ * Spans are written in a compact binary layout, all numbers big endian and
+ * strings as an int length followed by UTF-8 bytes:
+ *
+ * <pre>
+ * | trace id high (8) | trace id low (8) | span id (8) | parent id (8) | flags (1) |
+ * | start micros (8) | duration micros (8) | service name | operation name |
+ * | tag count (4) | tags | log count (4) | logs |
+ * </pre>
+ *
+ * A tag is a key, a type byte, 0 string, 1 boolean, 2 long or 3 double, and
+ * the value.  A log is a timestamp in microseconds, a field count and the
+ * fields, written like tags.
+ */
+public final class SpanRecord {
+
+    private static final byte STRING = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+
+    /**
+     * A log entry of a span.
+     */
+    public static final class Log {
+        private final long timeMicros;
+        private final Map<String, Object> fields;
+
+        Log(long timeMicros, Map<String, Object> fields) {
+            this.timeMicros = timeMicros;
+            this.fields = Collections.unmodifiableMap(fields);
+        }
+
+        /**
+         * @return when the entry was logged, in microseconds since the
+         * epoch.
+         */
+        public long getTimeMicros() {
+            return timeMicros;
+        }
+
+        /**
+         * @return the logged fields.
+         */
+        public Map<String, Object> getFields() {
+            return fields;
+        }
+    }
+
+    private final long traceIdHigh;
+    private final long traceIdLow;
+    private final long spanId;
+    private final long parentId;
+    private final byte flags;
+    private final long startMicros;
+    private final long durationMicros;
+    private final String serviceName;
+    private final String operationName;
+    private final Map<String, Object> tags;
+    private final List<Log> logs;
+
+    private SpanRecord(long traceIdHigh, long traceIdLow, long spanId, long parentId, byte flags,
+            long startMicros, long durationMicros, String serviceName, String operationName,
+            Map<String, Object> tags, List<Log> logs) {
+        this.traceIdHigh = traceIdHigh;
+        this.traceIdLow = traceIdLow;
+        this.spanId = spanId;
+        this.parentId = parentId;
+        this.flags = flags;
+        this.startMicros = startMicros;
+        this.durationMicros = durationMicros;
+        this.serviceName = serviceName;
+        this.operationName = operationName;
+        this.tags = Collections.unmodifiableMap(tags);
+        this.logs = Collections.unmodifiableList(logs);
+    }
+
+    /**
+     * Writes a span at the buffer's position.
+     * @throws BufferOverflowException if the span does not fit, the
+     * buffer's position is then undefined.
+     */
+    static void write(JaegerSpan span, ByteBuffer buffer) {
+        JaegerSpanContext sc = span.context();
+        buffer.putLong(sc.getTraceIdHigh());
+        buffer.putLong(sc.getTraceIdLow());
+        buffer.putLong(sc.getSpanId());
+        buffer.putLong(sc.getParentId());
+        buffer.put(sc.getFlags());
+        buffer.putLong(span.getStart());
+        buffer.putLong(span.getDuration());
+        putString(buffer, span.getServiceName());
+        putString(buffer, span.getOperationName());
+        putFields(buffer, span.getTags());
+
+        List<LogData> logs = span.getLogs();
+        if (logs == null) {
+            buffer.putInt(0);
+            return;
+        }
+        buffer.putInt(logs.size());
+        for (LogData log : logs) {
+            buffer.putLong(log.getTime());
+            if (log.getFields() != null) {
+                putFields(buffer, log.getFields());
+            } else {
+                buffer.putInt(1);
+                putString(buffer, "event");
+                buffer.put(STRING);
+                putString(buffer, log.getMessage());
+            }
+        }
+    }
+
+    private static void putFields(ByteBuffer buffer, Map<String, ?> fields) {
+        buffer.putInt(fields.size());
+        for (Map.Entry<String, ?> e : fields.entrySet()) {
+            putString(buffer, e.getKey());
+            Object v = e.getValue();
+            if (v instanceof Boolean) {
+                buffer.put(BOOLEAN).put((byte) ((Boolean) v ? 1 : 0));
+            } else if (v instanceof Double || v instanceof Float) {
+                buffer.put(DOUBLE).putDouble(((Number) v).doubleValue());
+            } else if (v instanceof Number) {
+                buffer.put(LONG).putLong(((Number) v).longValue());
+            } else {
+                buffer.put(STRING);
+                putString(buffer, String.valueOf(v));
+            }
+        }
+    }
+
+    private static void putString(ByteBuffer buffer, String s) {
+        if (s == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Reads a span written by {@link #write(JaegerSpan, ByteBuffer)}.
+     * @throws BufferUnderflowException or IllegalArgumentException if the
+     * data is not a span.
+     */
+    static SpanRecord read(ByteBuffer buffer) {
+        long traceIdHigh = buffer.getLong();
+        long traceIdLow = buffer.getLong();
+        long spanId = buffer.getLong();
+        long parentId = buffer.getLong();
+        byte flags = buffer.get();
+        long start = buffer.getLong();
+        long duration = buffer.getLong();
+        String serviceName = getString(buffer);
+        String operationName = getString(buffer);
+        Map<String, Object> tags = getFields(buffer);
+
+        int logCount = checkCount(buffer.getInt(), buffer);
+        List<Log> logs = new ArrayList<>(logCount);
+        for (int i = 0; i < logCount; i++) {
+            long time = buffer.getLong();
+            logs.add(new Log(time, getFields(buffer)));
+        }
+        return new SpanRecord(traceIdHigh, traceIdLow, spanId, parentId, flags, start, duration,
+            serviceName, operationName, tags, logs);
+    }
+
+    private static Map<String, Object> getFields(ByteBuffer buffer) {
+        int count = checkCount(buffer.getInt(), buffer);
+        Map<String, Object> fields = new LinkedHashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String key = getString(buffer);
+            byte type = buffer.get();
+            switch (type) {
+                case STRING:
+                    fields.put(key, getString(buffer));
+                    break;
+                case BOOLEAN:
+                    fields.put(key, buffer.get() != 0);
+                    break;
+                case LONG:
+                    fields.put(key, buffer.getLong());
+                    break;
+                case DOUBLE:
+                    fields.put(key, buffer.getDouble());
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown field type " + type);
+            }
+        }
+        return fields;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int len = buffer.getInt();
+        if (len < 0) {
+            return null;
+        }
+        if (len > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        if (buffer.hasArray()) {
+            String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), len, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + len);
+            return s;
+        }
+        byte[] bytes = new byte[len];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int checkCount(int count, ByteBuffer buffer) {
+        // Every entry takes at least four bytes.
+        if (count < 0 || count > buffer.remaining() / 4) {
+            throw new IllegalArgumentException("bad count " + count);
+        }
+        return count;
+    }
+
+    /**
+     * @return the high 64 bits of the trace id.
+     */
+    public long getTraceIdHigh() {
+        return traceIdHigh;
+    }
+
+    /**
+     * @return the low 64 bits of the trace id.
+     */
+    public long getTraceIdLow() {
+        return traceIdLow;
+    }
+
+    /**
+     * @return the span id.
+     */
+    public long getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * @return the id of the parent span, 0 for a root span.
+     */
+    public long getParentId() {
+        return parentId;
+    }
+
+    /**
+     * @return the Jaeger flags of the span.
+     */
+    public byte getFlags() {
+        return flags;
+    }
+
+    /**
+     * @return when the span started, in microseconds since the epoch.
+     */
+    public long getStartMicros() {
+        return startMicros;
+    }
+
+    /**
+     * @return how long the span took, in microseconds.
+     */
+    public long getDurationMicros() {
+        return durationMicros;
+    }
+
+    /**
+     * @return the name of the service that created the span.
+     */
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    /**
+     * @return the operation name.
+     */
+    public String getOperationName() {
+        return operationName;
+    }
+
+    /**
+     * @return the span's tags.
+     */
+    public Map<String, Object> getTags() {
+        return tags;
+    }
+
+    /**
+     * @return the span's log entries.
+     */
+    public List<Log> getLogs() {
+        return logs;
+    }
+}
@@ -0,0 +1,234 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.jaegertracing.internal.exceptions.SenderException;
+import io.jaegertracing.thrift.internal.senders.ThriftSender;
+import io.jaegertracing.thriftjava.Log;
+import io.jaegertracing.thriftjava.Process;
+import io.jaegertracing.thriftjava.SpanRef;
+import io.jaegertracing.thriftjava.SpanRefType;
+import io.jaegertracing.thriftjava.Tag;
+import io.jaegertracing.thriftjava.TagType;
+
+/**
+ * SpoolExporter reads the sealed segments of a {@link SpoolReporter}'s
+ * directory and passes their spans to a {@link Sink}, oldest first.  It can
+ * run in the process writing the spool, or in another one after it exited.
+ *
+ * <pre>
+ * SpoolExporter exporter = new SpoolExporter(Paths.get("/var/spool/not"));
+ * int spans = exporter.exportTo(SpoolExporter.thriftSink(new HttpSender.Builder(endpoint).build()));
+ * </pre>
+ *
+ * A segment is emptied after the sink accepts its spans.  If the sink
+ * throws, the segment is kept and exported again next time.  A segment the
+ * writer reuses while it is read is skipped, its spans were overwritten.
+ * Segment files are mapped once and the mappings are reused by later
+ * exports.
+ */
+public class SpoolExporter {
+
+    /**
+     * Receives the spans of one segment.
+     */
+    public interface Sink {
+        /**
+         * Exports spans.
+         * @param spans the spans of a segment
+         * @throws IOException if they could not be exported, the segment is
+         * then kept
+         */
+        void export(List<SpanRecord> spans) throws IOException;
+    }
+
+    private final Path directory;
+    private final Object lock;
+    private final Map<Path, SpoolSegment> mapped = new HashMap<>();
+
+    /**
+     * Creates an exporter.
+     * @param directory the directory of the spool
+     */
+    public SpoolExporter(Path directory) {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory cannot be null");
+        }
+        this.directory = directory;
+        this.lock = SpoolSegment.lock(directory);
+    }
+
+    /**
+     * Exports every sealed segment.
+     * @param sink where spans are exported to
+     * @return the number of spans exported
+     * @throws IOException if the spool cannot be read, or from the sink
+     */
+    public synchronized int exportTo(Sink sink) throws IOException {
+        if (sink == null) {
+            throw new IllegalArgumentException("sink cannot be null");
+        }
+        List<SpoolSegment> sealed = new ArrayList<>();
+        for (SpoolSegment s : segments()) {
+            if (s.state() == SpoolSegment.SEALED) {
+                sealed.add(s);
+            }
+        }
+        sealed.sort((a, b) -> Long.compare(a.sequence(), b.sequence()));
+
+        int exported = 0;
+        for (SpoolSegment s : sealed) {
+            long sequence = s.sequence();
+            List<SpanRecord> spans = read(s);
+            if (s.sequence() != sequence || s.state() != SpoolSegment.SEALED) {
+                continue;
+            }
+            if (!spans.isEmpty()) {
+                sink.export(spans);
+                exported += spans.size();
+            }
+            // Only release the segment if the writer has not claimed it
+            // again since it was read.
+            synchronized (lock) {
+                if (s.sequence() == sequence && s.state() == SpoolSegment.SEALED) {
+                    s.state(SpoolSegment.EMPTY);
+                    s.force();
+                }
+            }
+        }
+        return exported;
+    }
+
+    /**
+     * @return the segments in the directory, mapping files not seen before
+     * and files whose size changed.
+     */
+    private List<SpoolSegment> segments() throws IOException {
+        List<SpoolSegment> segments = new ArrayList<>();
+        Map<Path, SpoolSegment> seen = new HashMap<>();
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                    SpoolSegment.PREFIX + "*" + SpoolSegment.SUFFIX)) {
+                for (Path file : files) {
+                    SpoolSegment s = mapped.get(file);
+                    if (s == null || s.size != Files.size(file)) {
+                        s = SpoolSegment.open(file, 0);
+                    }
+                    if (s != null) {
+                        seen.put(file, s);
+                        segments.add(s);
+                    }
+                }
+            }
+        }
+        // Forget the mappings of files that are gone.
+        mapped.clear();
+        mapped.putAll(seen);
+        return segments;
+    }
+
+    private static List<SpanRecord> read(SpoolSegment s) {
+        ByteBuffer buffer = s.buffer.duplicate();
+        int end = s.end();
+        List<SpanRecord> spans = new ArrayList<>();
+        int pos = SpoolSegment.DATA_OFFSET;
+        while (pos < end) {
+            int len = buffer.getInt(pos);
+            buffer.limit(pos + 4 + len);
+            buffer.position(pos + 4);
+            try {
+                spans.add(SpanRecord.read(buffer));
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                // Skip a record that was damaged on disk.
+            }
+            buffer.limit(buffer.capacity());
+            pos += 4 + len;
+        }
+        return spans;
+    }
+
+    /**
+     * Creates a sink that sends spans to Jaeger with a Thrift sender, such
+     * as an HttpSender or UdpSender.  Spans are grouped by service name.
+     * @param sender the sender
+     * @return the sink
+     */
+    public static Sink thriftSink(ThriftSender sender) {
+        if (sender == null) {
+            throw new IllegalArgumentException("sender cannot be null");
+        }
+        return spans -> {
+            Map<String, List<io.jaegertracing.thriftjava.Span>> byService = new LinkedHashMap<>();
+            for (SpanRecord r : spans) {
+                byService.computeIfAbsent(r.getServiceName(), k -> new ArrayList<>()).add(toThrift(r));
+            }
+            try {
+                for (Map.Entry<String, List<io.jaegertracing.thriftjava.Span>> e : byService.entrySet()) {
+                    sender.send(new Process(e.getKey()), e.getValue());
+                }
+            } catch (SenderException e) {
+                throw new IOException(e);
+            }
+        };
+    }
+
+    static io.jaegertracing.thriftjava.Span toThrift(SpanRecord r) {
+        io.jaegertracing.thriftjava.Span span = new io.jaegertracing.thriftjava.Span(r.getTraceIdLow(),
+            r.getTraceIdHigh(), r.getSpanId(), r.getParentId(), r.getOperationName(), r.getFlags(),
+            r.getStartMicros(), r.getDurationMicros());
+        span.setTags(toTags(r.getTags()));
+        List<Log> logs = new ArrayList<>(r.getLogs().size());
+        for (SpanRecord.Log log : r.getLogs()) {
+            logs.add(new Log(log.getTimeMicros(), toTags(log.getFields())));
+        }
+        span.setLogs(logs);
+        if (r.getParentId() != 0) {
+            List<SpanRef> refs = new ArrayList<>(1);
+            refs.add(new SpanRef(SpanRefType.CHILD_OF, r.getTraceIdLow(), r.getTraceIdHigh(), r.getParentId()));
+            span.setReferences(refs);
+        }
+        return span;
+    }
+
+    private static List<Tag> toTags(Map<String, Object> fields) {
+        List<Tag> tags = new ArrayList<>(fields.size());
+        for (Map.Entry<String, Object> e : fields.entrySet()) {
+            Object v = e.getValue();
+            Tag tag;
+            if (v instanceof Boolean) {
+                tag = new Tag(e.getKey(), TagType.BOOL).setVBool((Boolean) v);
+            } else if (v instanceof Double) {
+                tag = new Tag(e.getKey(), TagType.DOUBLE).setVDouble((Double) v);
+            } else if (v instanceof Long) {
+                tag = new Tag(e.getKey(), TagType.LONG).setVLong((Long) v);
+            } else {
+                tag = new Tag(e.getKey(), TagType.STRING).setVStr(String.valueOf(v));
+            }
+            tags.add(tag);
+        }
+        return tags;
+    }
+}
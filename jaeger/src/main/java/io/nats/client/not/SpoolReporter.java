@@ -0,0 +1,260 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.jaegertracing.internal.JaegerSpan;
+import io.jaegertracing.spi.Reporter;
+
+/**
+ * SpoolReporter writes finished spans to a ring of memory mapped files, so
+ * spans survive when the collector cannot be reached, or the process exits,
+ * and are exported later with a {@link SpoolExporter}.
+ *
+ * <pre>
+ * SpoolReporter spool = new SpoolReporter.Builder(Paths.get("/var/spool/not"))
+ *     .segmentSize(4 * 1024 * 1024)
+ *     .segments(8)
+ *     .build();
+ * Tracer tracer = JaegerTracing.initTracing("my service", new TracerOptions.Builder().reporter(spool).build());
+ * </pre>
+ *
+ * Reporting a span copies it into the current segment without a system
+ * call.  When a segment is full it is sealed and the next one is used; if
+ * that one was sealed and not yet exported its spans are overwritten, so
+ * the spool keeps the newest spans.  Writes to the mapped files reach the
+ * operating system immediately, so spans are kept if the process crashes,
+ * and are forced to disk when a segment is sealed.  Only one reporter may
+ * write to a directory at a time.
+ */
+public class SpoolReporter implements Reporter {
+
+    private final SpoolSegment[] segments;
+    private final Object lock;
+    private int current;
+    private int position;
+    private long sequence;
+    private boolean closed;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder overwritten = new LongAdder();
+
+    private SpoolReporter(Builder b) throws IOException {
+        Files.createDirectories(b.directory);
+        lock = SpoolSegment.lock(b.directory);
+        segments = new SpoolSegment[b.segments];
+        long last = -1;
+        current = 0;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = SpoolSegment.open(segmentPath(b.directory, i), b.segmentSize);
+            SpoolSegment s = segments[i];
+            // A segment left open by a process that exited is kept for export.
+            if (s.state() == SpoolSegment.WRITING) {
+                s.state(SpoolSegment.SEALED);
+            }
+            if (s.state() != SpoolSegment.EMPTY && s.sequence() > last) {
+                last = s.sequence();
+                current = i;
+            }
+        }
+        sequence = last;
+        if (last >= 0) {
+            current = (current + 1) % segments.length;
+        }
+        start(segments[current]);
+    }
+
+    static Path segmentPath(Path directory, int index) {
+        return directory.resolve(String.format("%s%03d%s", SpoolSegment.PREFIX, index, SpoolSegment.SUFFIX));
+    }
+
+    private void start(SpoolSegment segment) {
+        // Claim the segment so an exporter can't empty it once it is reused.
+        synchronized (lock) {
+            if (segment.state() == SpoolSegment.SEALED) {
+                overwritten.increment();
+            }
+            segment.reset(++sequence, SpoolSegment.WRITING);
+        }
+        position = SpoolSegment.DATA_OFFSET;
+    }
+
+    private void rotate() {
+        SpoolSegment segment = segments[current];
+        segment.state(SpoolSegment.SEALED);
+        segment.force();
+        current = (current + 1) % segments.length;
+        start(segments[current]);
+    }
+
+    @Override
+    public synchronized void report(JaegerSpan span) {
+        if (closed) {
+            dropped.increment();
+            return;
+        }
+        if (!write(span)) {
+            if (position == SpoolSegment.DATA_OFFSET) {
+                // It does not fit in an empty segment either.
+                dropped.increment();
+                return;
+            }
+            rotate();
+            if (!write(span)) {
+                dropped.increment();
+                return;
+            }
+        }
+        written.increment();
+    }
+
+    private boolean write(JaegerSpan span) {
+        SpoolSegment segment = segments[current];
+        ByteBuffer buffer = segment.buffer;
+        int start = position;
+        // Leave room for the zero length after the record.
+        buffer.limit(segment.size - 4);
+        buffer.position(start + 4);
+        try {
+            SpanRecord.write(span, buffer);
+        } catch (BufferOverflowException e) {
+            // The zero length at start still ends the segment.
+            return false;
+        }
+        int end = buffer.position();
+        buffer.putInt(end, 0);
+        buffer.putInt(start, end - start - 4);
+        position = end;
+        return true;
+    }
+
+    /**
+     * Seals the current segment so it can be exported, and starts the next.
+     */
+    public synchronized void seal() {
+        if (!closed && position > SpoolSegment.DATA_OFFSET) {
+            rotate();
+        }
+    }
+
+    /**
+     * Seals the current segment and stops writing.  Later spans are dropped.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        SpoolSegment segment = segments[current];
+        if (position > SpoolSegment.DATA_OFFSET) {
+            segment.state(SpoolSegment.SEALED);
+        } else {
+            segment.state(SpoolSegment.EMPTY);
+        }
+        segment.force();
+    }
+
+    /**
+     * @return the number of spans written to the spool.
+     */
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    /**
+     * @return the number of spans dropped because they were larger than a
+     * segment or reported after close.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of sealed segments overwritten before they were
+     * exported.
+     */
+    public long getOverwrittenSegmentCount() {
+        return overwritten.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "SpoolReporter(segments=" + segments.length + ")";
+    }
+
+    /**
+     * SpoolReporters are created using a Builder.
+     */
+    public static class Builder {
+        private final Path directory;
+        private int segmentSize = 4 * 1024 * 1024;
+        private int segments = 8;
+
+        /**
+         * Constructs a new Builder with the default values.
+         * @param directory the directory holding the segment files, created
+         * if it does not exist
+         */
+        public Builder(Path directory) {
+            if (directory == null) {
+                throw new IllegalArgumentException("directory cannot be null");
+            }
+            this.directory = directory;
+        }
+
+        /**
+         * Sets the size of each segment file, the default is 4MB.  Existing
+         * segments of another size are emptied.
+         * @param bytes the size in bytes
+         * @return the Builder for chaining
+         */
+        public Builder segmentSize(int bytes) {
+            if (bytes < 1024) {
+                throw new IllegalArgumentException("segment size must be at least 1024");
+            }
+            this.segmentSize = bytes;
+            return this;
+        }
+
+        /**
+         * Sets the number of segment files, the default is 8.
+         * @param segments the number of segments
+         * @return the Builder for chaining
+         */
+        public Builder segments(int segments) {
+            if (segments < 2) {
+                throw new IllegalArgumentException("segments must be at least 2");
+            }
+            this.segments = segments;
+            return this;
+        }
+
+        /**
+         * Builds the SpoolReporter, creating or reopening the segment files.
+         * @return the new reporter
+         * @throws IOException if the files cannot be created or mapped
+         */
+        public SpoolReporter build() throws IOException {
+            return new SpoolReporter(this);
+        }
+    }
+}
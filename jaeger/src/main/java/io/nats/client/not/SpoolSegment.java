@@ -0,0 +1,142 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * One memory mapped file of a span spool.  A segment starts with a header
+ * followed by records, each an int length and that many bytes, ended by a
+ * zero length:
+ *
+ * <pre>
+ * | magic (4) | state (4) | sequence (8) | length | record | length | record | ... | 0 |
+ * </pre>
+ *
+ * The writer puts the zero after a record before its length, so a reader
+ * never sees a partly written record.  The sequence increases each time the
+ * segment is reused, so a reader can tell it was overwritten.  A writer
+ * claims a segment, and a reader releases one it exported, while holding
+ * the directory's {@link #lock(Path)}, so a segment is never emptied after
+ * it was claimed again.
+ */
+final class SpoolSegment {
+
+    static final int MAGIC = 0x4E4F5453; // NOTS
+    static final int STATE_OFFSET = 4;
+    static final int SEQUENCE_OFFSET = 8;
+    static final int DATA_OFFSET = 16;
+
+    static final int EMPTY = 0;
+    static final int WRITING = 1;
+    static final int SEALED = 2;
+
+    static final String PREFIX = "spool-";
+    static final String SUFFIX = ".seg";
+
+    private static final ConcurrentMap<Path, Object> LOCKS = new ConcurrentHashMap<>();
+
+    final Path path;
+    final MappedByteBuffer buffer;
+    final int size;
+
+    private SpoolSegment(Path path, MappedByteBuffer buffer) {
+        this.path = path;
+        this.buffer = buffer;
+        this.size = buffer.capacity();
+    }
+
+    /**
+     * Opens a segment, creating the file if size is greater than zero and
+     * the file is new or not a segment.
+     * @return the segment, null if size is zero and the file is not one
+     */
+    static SpoolSegment open(Path path, int size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            boolean create = size > 0 && file.length() != size;
+            int length = size > 0 ? size : (int) Math.min(file.length(), Integer.MAX_VALUE);
+            if (length < DATA_OFFSET + 4) {
+                return null;
+            }
+            if (create) {
+                file.setLength(length);
+            }
+            // The mapping stays valid after the file is closed.
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            SpoolSegment segment = new SpoolSegment(path, buffer);
+            if (create || buffer.getInt(0) != MAGIC) {
+                if (size == 0) {
+                    return null;
+                }
+                segment.reset(0, EMPTY);
+                buffer.putInt(0, MAGIC);
+            }
+            return segment;
+        }
+    }
+
+    /**
+     * @return the lock guarding the hand over of the segments in a
+     * directory between the writer and readers in this process.
+     */
+    static Object lock(Path directory) {
+        return LOCKS.computeIfAbsent(directory.toAbsolutePath().normalize(), k -> new Object());
+    }
+
+    int state() {
+        return buffer.getInt(STATE_OFFSET);
+    }
+
+    void state(int state) {
+        buffer.putInt(STATE_OFFSET, state);
+    }
+
+    long sequence() {
+        return buffer.getLong(SEQUENCE_OFFSET);
+    }
+
+    /**
+     * Empties the segment for reuse.
+     */
+    void reset(long sequence, int state) {
+        buffer.putInt(DATA_OFFSET, 0);
+        buffer.putLong(SEQUENCE_OFFSET, sequence);
+        state(state);
+    }
+
+    /**
+     * @return the offset after the last complete record.
+     */
+    int end() {
+        int pos = DATA_OFFSET;
+        while (pos + 4 <= size) {
+            int len = buffer.getInt(pos);
+            if (len <= 0 || len > size - pos - 8) {
+                break;
+            }
+            pos += 4 + len;
+        }
+        return pos;
+    }
+
+    void force() {
+        buffer.force();
+    }
+}
@@ -0,0 +1,518 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import io.jaegertracing.internal.JaegerObjectFactory;
+import io.jaegertracing.internal.JaegerSpan;
+import io.jaegertracing.internal.JaegerSpanContext;
+import io.jaegertracing.internal.JaegerTracer;
+import io.jaegertracing.internal.Reference;
+import io.jaegertracing.spi.Reporter;
+import io.opentracing.tag.Tags;
+
+/**
+ * TailSamplingReporter decides which traces to keep after their spans have
+ * finished, so slow and failed requests are always reported while most of
+ * the others are dropped.  Finished spans are held by trace, and a trace is
+ * passed on to another reporter if any of its spans took longer than the
+ * latency threshold or was tagged as an error, or otherwise with a
+ * probability.
+ *
+ * <pre>
+ * Reporter reporter = new TailSamplingReporter.Builder(AsyncReporter.fromEnv(false, 10000,
+ *         AsyncReporter.OverflowPolicy.DROP_OLDEST))
+ *     .latencyThresholdMillis(250)
+ *     .probability(0.01)
+ *     .build();
+ * Tracer tracer = JaegerTracing.initTracing("my service", new TracerOptions.Builder().reporter(reporter).build());
+ * </pre>
+ *
+ * A trace is decided when its local root span finishes, when no span of it
+ * has finished for the decision wait, or when it is the oldest trace and
+ * the buffer is full.  The local root is the span whose parent was not
+ * started in this process, such as a consumer span continuing a trace
+ * from a message.  Telling it apart needs to see spans start, which the
+ * reporter does when the tracer is created with {@link TracerOptions};
+ * with other tracers only spans without a parent are roots.  Spans that
+ * finish after their trace was decided follow that decision, the most
+ * recent decisions are remembered, as many as the traces that can be held.
+ *
+ * Whether a trace is kept at random is worked out from its trace id, so
+ * every process with the same probability makes the same choice and the
+ * trace is kept or dropped as a whole.  Head sampling still applies, only
+ * sampled spans reach this reporter, so use it with a sampler that samples
+ * everything.
+ */
+public class TailSamplingReporter implements Reporter {
+
+    private static final class TraceKey {
+        final long high;
+        final long low;
+
+        TraceKey(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TraceKey)) {
+                return false;
+            }
+            TraceKey k = (TraceKey) o;
+            return high == k.high && low == k.low;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = high * 31 + low;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    private static final class Trace {
+        final TraceKey key;
+        final List<JaegerSpan> spans = new ArrayList<>(4);
+        // The ids of the spans of the trace started in this process.
+        final Set<Long> started = new HashSet<>(4);
+        boolean interesting;
+        boolean kept;
+        long lastUpdate;
+
+        Trace(TraceKey key) {
+            this.key = key;
+        }
+    }
+
+    private final Reporter delegate;
+    private final long latencyThresholdMicros;
+    private final boolean keepErrors;
+    private final double probability;
+    private final long decisionWaitNanos;
+    private final int maxTraces;
+    private final int maxSpansPerTrace;
+
+    // In access order, so the least recently updated trace comes first.
+    private final LinkedHashMap<TraceKey, Trace> traces = new LinkedHashMap<>(16, 0.75f, true);
+    // The most recent decisions, so spans finishing late follow them.
+    private final LinkedHashMap<TraceKey, Boolean> decisions;
+    private final LongAdder keptTraces = new LongAdder();
+    private final LongAdder droppedTraces = new LongAdder();
+    private final LongAdder droppedSpans = new LongAdder();
+
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean seesStarts;
+
+    private TailSamplingReporter(Builder b) {
+        this.delegate = b.delegate;
+        this.latencyThresholdMicros = TimeUnit.MILLISECONDS.toMicros(b.latencyThresholdMillis);
+        this.keepErrors = b.keepErrors;
+        this.probability = b.probability;
+        this.decisionWaitNanos = TimeUnit.MILLISECONDS.toNanos(b.decisionWaitMillis);
+        this.maxTraces = b.maxTraces;
+        this.maxSpansPerTrace = b.maxSpansPerTrace;
+        this.decisions = new LinkedHashMap<TraceKey, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<TraceKey, Boolean> eldest) {
+                return size() > maxTraces;
+            }
+        };
+
+        thread = new Thread(this::run, "not-tail-sampler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void report(JaegerSpan span) {
+        JaegerSpanContext sc = span.context();
+        TraceKey key = new TraceKey(sc.getTraceIdHigh(), sc.getTraceIdLow());
+        List<Trace> decided = null;
+        Boolean kept;
+
+        synchronized (traces) {
+            kept = decisions.get(key);
+            if (kept == null) {
+                Trace trace = get(key);
+                if (trace.spans.size() < maxSpansPerTrace) {
+                    trace.spans.add(span);
+                } else {
+                    droppedSpans.increment();
+                }
+                trace.interesting |= isInteresting(span);
+                trace.lastUpdate = System.nanoTime();
+
+                // The local root finishing means the trace is complete here.
+                long parentId = sc.getParentId();
+                if (parentId == 0 || (seesStarts && !trace.started.contains(parentId))) {
+                    traces.remove(key);
+                    remember(trace);
+                    decided = new ArrayList<>(1);
+                    decided.add(trace);
+                }
+
+                decided = evict(decided);
+            }
+        }
+
+        if (kept != null) {
+            // The trace was decided before this span finished.
+            if (kept) {
+                delegate.report(span);
+            }
+            return;
+        }
+        if (decided != null) {
+            for (Trace t : decided) {
+                decide(t);
+            }
+        }
+    }
+
+    /**
+     * Records a span started in this process.
+     */
+    private void started(JaegerSpanContext sc) {
+        List<Trace> decided;
+        synchronized (traces) {
+            TraceKey key = new TraceKey(sc.getTraceIdHigh(), sc.getTraceIdLow());
+            if (decisions.containsKey(key)) {
+                // Its spans follow the decision, local roots do not matter.
+                return;
+            }
+            Trace trace = get(key);
+            trace.started.add(sc.getSpanId());
+            trace.lastUpdate = System.nanoTime();
+            decided = evict(null);
+        }
+        if (decided != null) {
+            for (Trace t : decided) {
+                decide(t);
+            }
+        }
+    }
+
+    /**
+     * Gets the trace for a key, adding it if it is new.  Called holding the
+     * lock.
+     */
+    private Trace get(TraceKey key) {
+        Trace trace = traces.get(key);
+        if (trace == null) {
+            trace = new Trace(key);
+            traces.put(key, trace);
+        }
+        return trace;
+    }
+
+    /**
+     * Removes the oldest trace if there are too many.  Called holding the
+     * lock.
+     * @return the traces to decide, with the oldest trace added
+     */
+    private List<Trace> evict(List<Trace> decided) {
+        if (traces.size() > maxTraces) {
+            Iterator<Trace> it = traces.values().iterator();
+            Trace oldest = it.next();
+            it.remove();
+            remember(oldest);
+            if (decided == null) {
+                decided = new ArrayList<>(1);
+            }
+            decided.add(oldest);
+        }
+        return decided;
+    }
+
+    private boolean isInteresting(JaegerSpan span) {
+        if (latencyThresholdMicros > 0 && span.getDuration() >= latencyThresholdMicros) {
+            return true;
+        }
+        return keepErrors && Boolean.TRUE.equals(span.getTags().get(Tags.ERROR.getKey()));
+    }
+
+    /**
+     * Decides whether a trace removed from the buffer is kept, and
+     * remembers it for spans of the trace that finish later.  Called
+     * holding the lock.
+     */
+    private void remember(Trace trace) {
+        if (trace.spans.isEmpty()) {
+            // Only started here, none of its spans finished yet.
+            return;
+        }
+        // The top 53 bits of the trace id as a fraction, the same in every
+        // process.
+        trace.kept = trace.interesting || (trace.key.low >>> 11) * 0x1.0p-53 < probability;
+        decisions.put(trace.key, trace.kept);
+    }
+
+    /**
+     * Passes on the spans of a trace removed from the buffer, if it was
+     * kept.
+     */
+    private void decide(Trace trace) {
+        if (trace.spans.isEmpty()) {
+            return;
+        }
+        if (trace.kept) {
+            keptTraces.increment();
+            for (JaegerSpan span : trace.spans) {
+                delegate.report(span);
+            }
+        } else {
+            droppedTraces.increment();
+        }
+    }
+
+    /**
+     * Decides every trace that has waited long enough, or every trace.
+     */
+    private void sweep(boolean all) {
+        List<Trace> decided = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (traces) {
+            Iterator<Trace> it = traces.values().iterator();
+            while (it.hasNext()) {
+                Trace t = it.next();
+                if (!all && now - t.lastUpdate < decisionWaitNanos) {
+                    break;
+                }
+                it.remove();
+                remember(t);
+                decided.add(t);
+            }
+        }
+        for (Trace t : decided) {
+            decide(t);
+        }
+    }
+
+    private void run() {
+        long interval = Math.max(1, decisionWaitNanos / 2);
+        while (running) {
+            LockSupport.parkNanos(this, interval);
+            try {
+                sweep(false);
+            } catch (RuntimeException e) {
+                // A failing reporter must not stop the sweeping.
+            }
+        }
+    }
+
+    /**
+     * Creates an object factory for a tracer, which tells this reporter
+     * about the spans the tracer starts so it can find local roots.
+     * @return the object factory
+     */
+    JaegerObjectFactory objectFactory() {
+        seesStarts = true;
+        return new JaegerObjectFactory() {
+            @Override
+            public JaegerSpan createSpan(JaegerTracer tracer, String operationName, JaegerSpanContext context,
+                    long startTimeMicroseconds, long startTimeNanoTicks, boolean computeDurationViaNanoTicks,
+                    Map<String, Object> tags, List<Reference> references) {
+                if (context.isSampled()) {
+                    started(context);
+                }
+                return super.createSpan(tracer, operationName, context, startTimeMicroseconds, startTimeNanoTicks,
+                    computeDurationViaNanoTicks, tags, references);
+            }
+        };
+    }
+
+    /**
+     * Decides every buffered trace now.
+     */
+    public void flush() {
+        sweep(true);
+    }
+
+    /**
+     * Stops the background thread, decides every buffered trace and closes
+     * the delegate.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            // The thread may be passing on a trace, let it finish before
+            // the delegate is closed.
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        delegate.close();
+    }
+
+    /**
+     * @return the number of traces passed on.
+     */
+    public long getKeptTraceCount() {
+        return keptTraces.sum();
+    }
+
+    /**
+     * @return the number of traces dropped.
+     */
+    public long getDroppedTraceCount() {
+        return droppedTraces.sum();
+    }
+
+    /**
+     * @return the number of spans dropped because their trace had too
+     * many.
+     */
+    public long getDroppedSpanCount() {
+        return droppedSpans.sum();
+    }
+
+    /**
+     * @return the number of traces waiting for a decision.
+     */
+    public int getBufferedTraceCount() {
+        synchronized (traces) {
+            return traces.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TailSamplingReporter(delegate=" + delegate + ")";
+    }
+
+    /**
+     * TailSamplingReporters are created using a Builder.
+     */
+    public static class Builder {
+        private final Reporter delegate;
+        private long latencyThresholdMillis = 0;
+        private boolean keepErrors = true;
+        private double probability = 0;
+        private long decisionWaitMillis = 5000;
+        private int maxTraces = 10000;
+        private int maxSpansPerTrace = 1000;
+
+        /**
+         * Constructs a new Builder with the default values.
+         * @param delegate the reporter kept traces are passed to
+         */
+        public Builder(Reporter delegate) {
+            if (delegate == null) {
+                throw new IllegalArgumentException("delegate cannot be null");
+            }
+            this.delegate = delegate;
+        }
+
+        /**
+         * Keep traces with a span that took at least this long.  By default
+         * latency is not considered.
+         * @param millis the threshold in milliseconds, 0 to turn it off
+         * @return the Builder for chaining
+         */
+        public Builder latencyThresholdMillis(long millis) {
+            this.latencyThresholdMillis = millis;
+            return this;
+        }
+
+        /**
+         * Sets whether traces with a span tagged as an error are kept, the
+         * default is true.
+         * @param keepErrors true to keep traces with errors
+         * @return the Builder for chaining
+         */
+        public Builder keepErrors(boolean keepErrors) {
+            this.keepErrors = keepErrors;
+            return this;
+        }
+
+        /**
+         * Sets the probability other traces are kept, the default is 0.
+         * The choice is made from the trace id.
+         * @param probability the probability, between 0 and 1
+         * @return the Builder for chaining
+         */
+        public Builder probability(double probability) {
+            if (probability < 0 || probability > 1) {
+                throw new IllegalArgumentException("probability must be between 0 and 1");
+            }
+            this.probability = probability;
+            return this;
+        }
+
+        /**
+         * Sets how long a trace is held after its last span finished, when
+         * its local root has not finished.  The default is five seconds.
+         * @param millis the wait in milliseconds
+         * @return the Builder for chaining
+         */
+        public Builder decisionWaitMillis(long millis) {
+            if (millis <= 0) {
+                throw new IllegalArgumentException("decision wait must be greater than zero");
+            }
+            this.decisionWaitMillis = millis;
+            return this;
+        }
+
+        /**
+         * Sets the most traces held at once, the default is 10000.  When
+         * there are more the oldest is decided early.
+         * @param maxTraces the maximum
+         * @return the Builder for chaining
+         */
+        public Builder maxTraces(int maxTraces) {
+            if (maxTraces <= 0) {
+                throw new IllegalArgumentException("maxTraces must be greater than zero");
+            }
+            this.maxTraces = maxTraces;
+            return this;
+        }
+
+        /**
+         * Sets the most spans held for one trace, the default is 1000.
+         * Further spans are dropped.
+         * @param maxSpansPerTrace the maximum
+         * @return the Builder for chaining
+         */
+        public Builder maxSpansPerTrace(int maxSpansPerTrace) {
+            if (maxSpansPerTrace <= 0) {
+                throw new IllegalArgumentException("maxSpansPerTrace must be greater than zero");
+            }
+            this.maxSpansPerTrace = maxSpansPerTrace;
+            return this;
+        }
+
+        /**
+         * Builds the TailSamplingReporter and starts its background thread.
+         * @return the new reporter
+         */
+        public TailSamplingReporter build() {
+            return new TailSamplingReporter(this);
+        }
+    }
+}
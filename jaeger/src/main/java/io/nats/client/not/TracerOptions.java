@@ -0,0 +1,396 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import io.jaegertracing.Configuration;
+import io.jaegertracing.Configuration.ReporterConfiguration;
+import io.jaegertracing.internal.JaegerTracer;
+import io.jaegertracing.internal.reporters.CompositeReporter;
+import io.jaegertracing.internal.reporters.LoggingReporter;
+import io.jaegertracing.internal.reporters.RemoteReporter;
+import io.jaegertracing.internal.samplers.ConstSampler;
+import io.jaegertracing.internal.samplers.PerOperationSampler;
+import io.jaegertracing.internal.samplers.ProbabilisticSampler;
+import io.jaegertracing.internal.samplers.RateLimitingSampler;
+import io.jaegertracing.internal.samplers.http.OperationSamplingParameters;
+import io.jaegertracing.internal.samplers.http.PerOperationSamplingParameters;
+import io.jaegertracing.internal.samplers.http.ProbabilisticSamplingStrategy;
+import io.jaegertracing.spi.Reporter;
+import io.jaegertracing.spi.Sampler;
+
+/**
+ * TracerOptions control the tracer created by
+ * {@link JaegerTracing#initTracing(String, TracerOptions)}.  The defaults sample every
+ * trace and log every span, which is handy for development.  In production
+ * choose a sampler and turn span logging off.
+ *
+ * <pre>
+ * TracerOptions options = new TracerOptions.Builder()
+ *     .probabilisticSampler(0.001)
+ *     .logSpans(false)
+ *     .build();
+ * Tracer tracer = JaegerTracing.initTracing("my service", options);
+ * </pre>
+ *
+ * Settings that are not specified here are read from the standard Jaeger
+ * environment variables.
+ *
+ * By default spans are reported on the thread that finishes them, which for
+ * subscribers is a NATS dispatcher thread.  Use
+ * {@link Builder#asyncReporter(int, AsyncReporter.OverflowPolicy)} to report
+ * them from a background thread instead.
+ */
+public class TracerOptions {
+
+    static final TracerOptions DEFAULT = new TracerOptions.Builder().build();
+
+    private final String samplerType;
+    private final double samplerParam;
+    private final Map<String, Double> operationProbabilities;
+    private final double lowerBoundTracesPerSecond;
+    private final int maxOperations;
+    private final boolean logSpans;
+    private final int asyncCapacity;
+    private final AsyncReporter.OverflowPolicy asyncPolicy;
+    private final int asyncBatchSize;
+    private final long asyncFlushIntervalMillis;
+    private final Reporter reporter;
+
+    private TracerOptions(Builder b) {
+        this.samplerType = b.samplerType;
+        this.samplerParam = b.samplerParam;
+        this.operationProbabilities = new LinkedHashMap<>(b.operationProbabilities);
+        this.lowerBoundTracesPerSecond = b.lowerBoundTracesPerSecond;
+        this.maxOperations = b.maxOperations;
+        this.logSpans = b.logSpans;
+        this.asyncCapacity = b.asyncCapacity;
+        this.asyncPolicy = b.asyncPolicy;
+        this.asyncBatchSize = b.asyncBatchSize;
+        this.asyncFlushIntervalMillis = b.asyncFlushIntervalMillis;
+        this.reporter = b.reporter;
+    }
+
+    /**
+     * @return the Jaeger sampler type, const, probabilistic, ratelimiting or
+     * peroperation.
+     */
+    public String getSamplerType() {
+        return samplerType;
+    }
+
+    /**
+     * @return the sampler parameter, for the per operation sampler this is
+     * the default probability.
+     */
+    public double getSamplerParam() {
+        return samplerParam;
+    }
+
+    /**
+     * @return true if every finished span is logged.
+     */
+    public boolean isLogSpans() {
+        return logSpans;
+    }
+
+    /**
+     * @return the capacity of the asynchronous reporter queue, or 0 if spans
+     * are reported on the thread that finishes them.
+     */
+    public int getAsyncCapacity() {
+        return asyncCapacity;
+    }
+
+    /**
+     * @return the overflow policy of the asynchronous reporter.
+     */
+    public AsyncReporter.OverflowPolicy getAsyncPolicy() {
+        return asyncPolicy;
+    }
+
+    /**
+     * Builds the reporter Jaeger would build from the environment, a remote
+     * reporter plus a logging reporter if spans are logged.
+     */
+    static Reporter createEnvReporter(boolean logSpans) {
+        ReporterConfiguration config = ReporterConfiguration.fromEnv();
+        RemoteReporter.Builder remote = new RemoteReporter.Builder()
+            .withSender(config.getSenderConfiguration().getSender());
+        if (config.getFlushIntervalMs() != null) {
+            remote.withFlushInterval(config.getFlushIntervalMs());
+        }
+        if (config.getMaxQueueSize() != null) {
+            remote.withMaxQueueSize(config.getMaxQueueSize());
+        }
+        if (!logSpans) {
+            return remote.build();
+        }
+        return new CompositeReporter(remote.build(), new LoggingReporter());
+    }
+
+    /**
+     * Builds a tracer for the service with these options.  The tracer is
+     * built directly rather than through Jaeger's Configuration, which
+     * starts the remote reporter straight away; here the reporters read from
+     * the environment start when the first span finishes.
+     */
+    JaegerTracer createTracer(String serviceName) {
+        Configuration config = Configuration.fromEnv(serviceName);
+        // A tail sampling reporter needs to see spans start to find local
+        // roots, the object factory tells it.
+        JaegerTracer.Builder builder = reporter instanceof TailSamplingReporter
+            ? new JaegerTracer.Builder(serviceName, ((TailSamplingReporter) reporter).objectFactory()) {}
+            : new JaegerTracer.Builder(serviceName);
+        builder.withSampler(createSampler())
+            .withTags(config.getTracerTags());
+        String traceId128Bit = System.getProperty(Configuration.JAEGER_TRACEID_128BIT,
+            System.getenv(Configuration.JAEGER_TRACEID_128BIT));
+        if (Boolean.parseBoolean(traceId128Bit)) {
+            builder.withTraceId128Bit();
+        }
+        config.getCodec().apply(builder);
+
+        if (reporter != null) {
+            builder.withReporter(reporter);
+        } else if (asyncCapacity > 0) {
+            builder.withReporter(new LazyReporter(() -> new AsyncReporter(createEnvReporter(logSpans),
+                asyncCapacity, asyncBatchSize, asyncFlushIntervalMillis, asyncPolicy)));
+        } else {
+            builder.withReporter(new LazyReporter(() -> createEnvReporter(logSpans)));
+        }
+        return builder.build();
+    }
+
+    private Sampler createSampler() {
+        switch (samplerType) {
+            case ProbabilisticSampler.TYPE:
+                return new ProbabilisticSampler(samplerParam);
+            case RateLimitingSampler.TYPE:
+                return new RateLimitingSampler(samplerParam);
+            case Builder.PER_OPERATION:
+                List<PerOperationSamplingParameters> strategies = new ArrayList<>();
+                for (Map.Entry<String, Double> e : operationProbabilities.entrySet()) {
+                    strategies.add(new PerOperationSamplingParameters(e.getKey(),
+                        new ProbabilisticSamplingStrategy(e.getValue())));
+                }
+                return new PerOperationSampler(maxOperations,
+                    new OperationSamplingParameters(samplerParam, lowerBoundTracesPerSecond, strategies));
+            default:
+                return new ConstSampler(samplerParam != 0);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TracerOptions)) {
+            return false;
+        }
+        TracerOptions t = (TracerOptions) o;
+        return samplerType.equals(t.samplerType)
+            && Double.compare(samplerParam, t.samplerParam) == 0
+            && operationProbabilities.equals(t.operationProbabilities)
+            && Double.compare(lowerBoundTracesPerSecond, t.lowerBoundTracesPerSecond) == 0
+            && maxOperations == t.maxOperations
+            && logSpans == t.logSpans
+            && asyncCapacity == t.asyncCapacity
+            && asyncPolicy == t.asyncPolicy
+            && asyncBatchSize == t.asyncBatchSize
+            && asyncFlushIntervalMillis == t.asyncFlushIntervalMillis
+            && reporter == t.reporter;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(samplerType, samplerParam, operationProbabilities, lowerBoundTracesPerSecond,
+            maxOperations, logSpans, asyncCapacity, asyncPolicy, asyncBatchSize, asyncFlushIntervalMillis,
+            System.identityHashCode(reporter));
+    }
+
+    /**
+     * TracerOptions are created using a Builder.
+     */
+    public static class Builder {
+        static final String PER_OPERATION = "peroperation";
+
+        private String samplerType = ConstSampler.TYPE;
+        private double samplerParam = 1;
+        private Map<String, Double> operationProbabilities = new LinkedHashMap<>();
+        private double lowerBoundTracesPerSecond = 0;
+        private int maxOperations = 2000;
+        private boolean logSpans = true;
+        private int asyncCapacity = 0;
+        private AsyncReporter.OverflowPolicy asyncPolicy = AsyncReporter.OverflowPolicy.DROP_NEWEST;
+        private int asyncBatchSize = 100;
+        private long asyncFlushIntervalMillis = 100;
+        private Reporter reporter;
+
+        /**
+         * Constructs a new Builder with the default values.
+         */
+        public Builder() {}
+
+        /**
+         * Sample all traces, or none.  This is the default, sampling all.
+         * @param sampleAll true to sample every trace
+         * @return the Builder for chaining
+         */
+        public Builder constSampler(boolean sampleAll) {
+            return sampler(ConstSampler.TYPE, sampleAll ? 1 : 0);
+        }
+
+        /**
+         * Sample a random fraction of traces.
+         * @param probability the probability a trace is sampled, between 0 and 1
+         * @return the Builder for chaining
+         */
+        public Builder probabilisticSampler(double probability) {
+            checkProbability(probability);
+            return sampler(ProbabilisticSampler.TYPE, probability);
+        }
+
+        /**
+         * Sample at most a number of traces each second.
+         * @param maxTracesPerSecond the maximum sampling rate
+         * @return the Builder for chaining
+         */
+        public Builder rateLimitingSampler(double maxTracesPerSecond) {
+            if (maxTracesPerSecond < 0) {
+                throw new IllegalArgumentException("maxTracesPerSecond cannot be negative");
+            }
+            return sampler(RateLimitingSampler.TYPE, maxTracesPerSecond);
+        }
+
+        /**
+         * Sample each operation separately.  Operations without a
+         * probability set with {@link #operationProbability(String, double)}
+         * are sampled with the default probability, and every operation is
+         * guaranteed the lower bound rate.
+         * @param defaultProbability the probability for other operations
+         * @param lowerBoundTracesPerSecond the minimum rate for each operation
+         * @return the Builder for chaining
+         */
+        public Builder perOperationSampler(double defaultProbability, double lowerBoundTracesPerSecond) {
+            checkProbability(defaultProbability);
+            this.lowerBoundTracesPerSecond = lowerBoundTracesPerSecond;
+            return sampler(PER_OPERATION, defaultProbability);
+        }
+
+        /**
+         * Sets the sampling probability of an operation, for the per
+         * operation sampler.
+         * @param operation the operation name, as passed to buildSpan
+         * @param probability the probability a trace is sampled
+         * @return the Builder for chaining
+         */
+        public Builder operationProbability(String operation, double probability) {
+            checkProbability(probability);
+            operationProbabilities.put(operation, probability);
+            return this;
+        }
+
+        /**
+         * Sets whether every finished span is logged, the default is true.
+         * @param logSpans true to log spans
+         * @return the Builder for chaining
+         */
+        public Builder logSpans(boolean logSpans) {
+            this.logSpans = logSpans;
+            return this;
+        }
+
+        /**
+         * Report finished spans from a background thread.  Spans are queued,
+         * up to the capacity, and passed to the usual reporters in batches
+         * so threads finishing spans never wait on logging or sending.  When
+         * the queue is full spans are dropped according to the policy.
+         * @param capacity the most spans that can be queued
+         * @param policy what to drop when the queue is full
+         * @return the Builder for chaining
+         */
+        public Builder asyncReporter(int capacity, AsyncReporter.OverflowPolicy policy) {
+            return asyncReporter(capacity, policy, Math.min(capacity, 100), 100);
+        }
+
+        /**
+         * Report finished spans from a background thread, see
+         * {@link #asyncReporter(int, AsyncReporter.OverflowPolicy)}.
+         * @param capacity the most spans that can be queued
+         * @param policy what to drop when the queue is full
+         * @param batchSize the most spans passed on at once
+         * @param flushIntervalMillis how long the background thread waits
+         * when there is nothing to report
+         * @return the Builder for chaining
+         */
+        public Builder asyncReporter(int capacity, AsyncReporter.OverflowPolicy policy, int batchSize,
+                long flushIntervalMillis) {
+            if (capacity <= 0 || batchSize <= 0) {
+                throw new IllegalArgumentException("capacity and batchSize must be greater than zero");
+            }
+            if (flushIntervalMillis <= 0) {
+                throw new IllegalArgumentException("flushIntervalMillis must be greater than zero");
+            }
+            if (policy == null) {
+                throw new IllegalArgumentException("policy cannot be null");
+            }
+            this.asyncCapacity = capacity;
+            this.asyncPolicy = policy;
+            this.asyncBatchSize = batchSize;
+            this.asyncFlushIntervalMillis = flushIntervalMillis;
+            return this;
+        }
+
+        /**
+         * Sets the reporter used by the tracer, replacing the reporters read
+         * from the environment and any asynchronous reporter.  Use this to
+         * keep a reference to an {@link AsyncReporter} and read its counters.
+         * The reporter is closed with the tracer, so don't share it between
+         * tracers.
+         * @param reporter the reporter
+         * @return the Builder for chaining
+         */
+        public Builder reporter(Reporter reporter) {
+            this.reporter = reporter;
+            return this;
+        }
+
+        private Builder sampler(String type, double param) {
+            this.samplerType = type;
+            this.samplerParam = param;
+            return this;
+        }
+
+        private static void checkProbability(double probability) {
+            if (probability < 0 || probability > 1) {
+                throw new IllegalArgumentException("probability must be between 0 and 1");
+            }
+        }
+
+        /**
+         * Builds the TracerOptions.
+         * @return the new options
+         */
+        public TracerOptions build() {
+            return new TracerOptions(this);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.jaegertracing.internal.JaegerTracer;
+import io.opentracing.Tracer;
+
+/**
+ * TracerRegistry hands out one tracer per service name and
+ * {@link TracerOptions}, so code that asks for a tracer more than once
+ * shares it instead of starting another set of reporter threads.  Options
+ * are compared by value, except the reporter which is compared by
+ * identity.
+ *
+ * <pre>
+ * Tracer tracer = JaegerTracing.sharedTracing("my service");
+ * ...
+ * Tracer same = JaegerTracing.sharedTracing("my service");
+ * </pre>
+ *
+ * {@link JaegerTracing#sharedTracing(String, TracerOptions)} uses a registry for the
+ * whole process, which closes its tracers when the JVM shuts down.  Create
+ * a registry to control their lifetime instead.
+ */
+public final class TracerRegistry implements AutoCloseable {
+
+    private static final class Key {
+        final String serviceName;
+        final TracerOptions options;
+
+        Key(String serviceName, TracerOptions options) {
+            this.serviceName = serviceName;
+            this.options = options;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return serviceName.equals(k.serviceName) && options.equals(k.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return serviceName.hashCode() * 31 + options.hashCode();
+        }
+    }
+
+    static final TracerRegistry SHARED = new TracerRegistry();
+
+    static {
+        Thread hook = new Thread(SHARED::close, "not-tracer-registry");
+        Runtime.getRuntime().addShutdownHook(hook);
+    }
+
+    private final ConcurrentHashMap<Key, JaegerTracer> tracers = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the tracer for a service with the default options, creating it
+     * on first use.
+     * @param serviceName the service name
+     * @return the shared tracer
+     */
+    public Tracer get(String serviceName) {
+        return get(serviceName, TracerOptions.DEFAULT);
+    }
+
+    /**
+     * Gets the tracer for a service and options, creating it on first use.
+     * @param serviceName the service name
+     * @param options the tracer options
+     * @return the shared tracer
+     */
+    public Tracer get(String serviceName, TracerOptions options) {
+        if (serviceName == null) {
+            throw new IllegalArgumentException("serviceName cannot be null");
+        }
+        if (options == null) {
+            throw new IllegalArgumentException("options cannot be null");
+        }
+        return tracers.computeIfAbsent(new Key(serviceName, options), k -> options.createTracer(serviceName));
+    }
+
+    /**
+     * @return the number of tracers in the registry.
+     */
+    public int size() {
+        return tracers.size();
+    }
+
+    /**
+     * Closes every tracer, flushing their reporters, and empties the
+     * registry.  Later calls to get create new tracers.
+     */
+    @Override
+    public void close() {
+        List<JaegerTracer> closing = new ArrayList<>(tracers.values());
+        tracers.clear();
+        for (JaegerTracer t : closing) {
+            t.close();
+        }
+    }
+}
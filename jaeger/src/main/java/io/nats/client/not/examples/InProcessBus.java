@@ -0,0 +1,252 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not.examples;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.nats.client.Connection;
+import io.nats.client.Dispatcher;
+import io.nats.client.Message;
+import io.nats.client.MessageHandler;
+import io.nats.client.impl.NatsMessage;
+
+/**
+ * InProcessBus stands in for a NATS server inside one JVM, so the load
+ * generator and tests can run without a server.  Connections to it
+ * support publishing, requests, dispatchers and queue groups; subjects are
+ * matched exactly, without wildcards.  Other connection methods throw
+ * UnsupportedOperationException.  Like a real dispatcher, each dispatcher
+ * delivers its messages in order on its own thread.
+ */
+public class InProcessBus {
+
+    private static final String INBOX_PREFIX = "_INBOX.";
+
+    private final Map<String, List<Sub>> subscriptions = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Message>> requests = new ConcurrentHashMap<>();
+    private final AtomicLong inboxes = new AtomicLong();
+
+    private static final class Sub {
+        final DispatcherThread dispatcher;
+        final String queueName;
+
+        Sub(DispatcherThread dispatcher, String queueName) {
+            this.dispatcher = dispatcher;
+            this.queueName = queueName;
+        }
+    }
+
+    /**
+     * Opens a connection to the bus.
+     * @return the connection
+     */
+    public Connection connect() {
+        return (Connection) Proxy.newProxyInstance(InProcessBus.class.getClassLoader(),
+            new Class<?>[] { Connection.class }, (proxy, method, args) -> connection(proxy, method, args));
+    }
+
+    private Object connection(Object proxy, Method method, Object[] args) throws InterruptedException {
+        switch (method.getName()) {
+            case "publish":
+                if (args.length == 1) {
+                    publish((Message) args[0]);
+                } else {
+                    publish(message((String) args[0], args.length == 3 ? (String) args[1] : null,
+                        (byte[]) args[args.length - 1]));
+                }
+                return null;
+            case "request":
+                Message request = args[0] instanceof Message ? (Message) args[0]
+                    : message((String) args[0], null, (byte[]) args[1]);
+                CompletableFuture<Message> reply = request(request);
+                if (args.length == (args[0] instanceof Message ? 2 : 3)) {
+                    try {
+                        return reply.get(((Duration) args[args.length - 1]).toNanos(), TimeUnit.NANOSECONDS);
+                    } catch (ExecutionException | TimeoutException e) {
+                        return null;
+                    }
+                }
+                return reply;
+            case "createDispatcher":
+                if (args == null) {
+                    throw new UnsupportedOperationException("dispatcher without a handler");
+                }
+                return new DispatcherThread((MessageHandler) args[0]).proxy;
+            case "closeDispatcher":
+                closeDispatcher(args[0]);
+                return null;
+            case "flush":
+            case "flushBuffer":
+            case "close":
+                return null;
+            case "getStatus":
+                return Connection.Status.CONNECTED;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "InProcessBus connection";
+            default:
+                throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    private static Message message(String subject, String replyTo, byte[] data) {
+        return NatsMessage.builder().subject(subject).replyTo(replyTo).data(data).build();
+    }
+
+    private CompletableFuture<Message> request(Message msg) {
+        String inbox = INBOX_PREFIX + inboxes.incrementAndGet();
+        CompletableFuture<Message> reply = new CompletableFuture<>();
+        requests.put(inbox, reply);
+        reply.whenComplete((m, err) -> requests.remove(inbox));
+        publish(NatsMessage.builder()
+            .subject(msg.getSubject())
+            .replyTo(inbox)
+            .headers(msg.hasHeaders() ? msg.getHeaders() : null)
+            .data(msg.getData())
+            .build());
+        return reply;
+    }
+
+    private void publish(Message msg) {
+        String subject = msg.getSubject();
+        if (subject.startsWith(INBOX_PREFIX)) {
+            CompletableFuture<Message> reply = requests.get(subject);
+            if (reply != null) {
+                reply.complete(msg);
+            }
+            return;
+        }
+
+        List<Sub> subs = subscriptions.get(subject);
+        if (subs == null) {
+            return;
+        }
+        Map<String, Sub> groups = null;
+        for (Sub s : subs) {
+            if (s.queueName == null) {
+                s.dispatcher.queue.add(msg);
+                continue;
+            }
+            if (groups == null) {
+                groups = new HashMap<>();
+            }
+            // One member of each queue group, the one that has been
+            // given the fewest messages.
+            Sub chosen = groups.get(s.queueName);
+            if (chosen == null || s.dispatcher.turn.get() < chosen.dispatcher.turn.get()) {
+                groups.put(s.queueName, s);
+            }
+        }
+        if (groups != null) {
+            for (Sub s : groups.values()) {
+                s.dispatcher.turn.incrementAndGet();
+                s.dispatcher.queue.add(msg);
+            }
+        }
+    }
+
+    private void closeDispatcher(Object dispatcher) {
+        for (List<Sub> subs : subscriptions.values()) {
+            for (Sub s : subs) {
+                if (s.dispatcher.proxy == dispatcher) {
+                    s.dispatcher.thread.interrupt();
+                    subs.remove(s);
+                }
+            }
+        }
+    }
+
+    /**
+     * A dispatcher, its thread delivers the messages of its subscriptions.
+     */
+    private final class DispatcherThread implements Runnable {
+        final BlockingQueue<Message> queue = new LinkedBlockingQueue<>();
+        final AtomicInteger turn = new AtomicInteger();
+        final MessageHandler handler;
+        final Dispatcher proxy;
+        final Thread thread;
+
+        DispatcherThread(MessageHandler handler) {
+            this.handler = handler;
+            this.proxy = (Dispatcher) Proxy.newProxyInstance(InProcessBus.class.getClassLoader(),
+                new Class<?>[] { Dispatcher.class }, (p, method, args) -> dispatcher(p, method, args));
+            this.thread = new Thread(this, "not-bus-dispatcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private Object dispatcher(Object p, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "subscribe":
+                    if (args[args.length - 1] instanceof MessageHandler) {
+                        throw new UnsupportedOperationException("subscribe with a handler");
+                    }
+                    String queueName = args.length == 2 ? (String) args[1] : null;
+                    subscriptions.computeIfAbsent((String) args[0], s -> new CopyOnWriteArrayList<>())
+                        .add(new Sub(this, queueName));
+                    return p;
+                case "unsubscribe":
+                    List<Sub> subs = subscriptions.get(args[0]);
+                    if (subs != null) {
+                        subs.removeIf(s -> s.dispatcher == this);
+                    }
+                    return p;
+                case "isActive":
+                    return true;
+                case "hashCode":
+                    return System.identityHashCode(p);
+                case "equals":
+                    return p == args[0];
+                case "toString":
+                    return "InProcessBus dispatcher";
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Message msg = queue.take();
+                    try {
+                        handler.onMessage(msg);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
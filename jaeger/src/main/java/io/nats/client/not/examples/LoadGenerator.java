@@ -0,0 +1,637 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not.examples;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import io.jaegertracing.internal.reporters.InMemoryReporter;
+import io.jaegertracing.internal.reporters.NoopReporter;
+import io.nats.client.Connection;
+import io.nats.client.MessageHandler;
+import io.nats.client.Nats;
+import io.nats.client.not.JaegerTracing;
+import io.nats.client.not.LatencyHistogram;
+import io.nats.client.not.Not;
+import io.nats.client.not.TracedRequester;
+import io.nats.client.not.TracerOptions;
+import io.nats.client.not.TracingMessageHandler;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.tag.Tags;
+
+/**
+ * LoadGenerator drives publishers, subscribers, requestors and repliers
+ * against a NATS server, or an {@link InProcessBus} when no server is
+ * given, and measures throughput and latency with and without tracing.
+ * Publishers write their send time into the first eight bytes of each
+ * payload, so all the clients run in this process.
+ */
+public class LoadGenerator {
+
+    static final String usageString =
+            "\nUsage: java LoadGenerator [options]\n"
+            + "\nOptions:\n"
+            + "  -s <server>       the NATS server, the default is an in-process bus\n"
+            + "  -pub <n>          publishers, default 1\n"
+            + "  -sub <n>          subscribers, default 1\n"
+            + "  -req <n>          requestors, default 0\n"
+            + "  -rep <n>          repliers, in a queue group, default 1\n"
+            + "  -n <count>        messages for each publisher and requestor, default 10000\n"
+            + "  -size <bytes>     payload size, at least 8, default 128\n"
+            + "  -rate <n>         messages a second for each publisher and requestor, default unlimited\n"
+            + "  -sampling <p>     the probability a trace is sampled, default 1\n"
+            + "  -reporter <type>  noop, memory or jaeger, default noop\n"
+            + "  -untraced         only run without tracing\n"
+            + "  -traced           only run with tracing, the default runs both and compares\n";
+
+    /**
+     * Where spans are reported.
+     */
+    public enum Reporting {
+        /** Spans are dropped. */
+        NOOP,
+        /** Spans are kept in memory and counted. */
+        MEMORY,
+        /** Spans are sent to Jaeger, configured from the environment. */
+        JAEGER
+    }
+
+    private static final AtomicLong runs = new AtomicLong();
+
+    private final String server;
+    private final int publishers;
+    private final int subscribers;
+    private final int requestors;
+    private final int repliers;
+    private final int messages;
+    private final int payloadSize;
+    private final double rate;
+    private final double sampling;
+    private final Reporting reporting;
+    private final Duration timeout;
+
+    private LoadGenerator(Builder b) {
+        this.server = b.server;
+        this.publishers = b.publishers;
+        this.subscribers = b.subscribers;
+        this.requestors = b.requestors;
+        this.repliers = b.repliers;
+        this.messages = b.messages;
+        this.payloadSize = b.payloadSize;
+        this.rate = b.rate;
+        this.sampling = b.sampling;
+        this.reporting = b.reporting;
+        this.timeout = b.timeout;
+    }
+
+    /**
+     * Runs the load once.
+     * @param traced true to trace the messages
+     * @return the measurements
+     * @throws Exception if a client fails or a connection cannot be made
+     */
+    public Result run(boolean traced) throws Exception {
+        InProcessBus bus = server == null ? new InProcessBus() : null;
+        InMemoryReporter memory = reporting == Reporting.MEMORY ? new InMemoryReporter() : null;
+        Tracer tracer = traced ? JaegerTracing.initTracing("NATS load generator", tracerOptions(memory)) : null;
+        String subject = "not.load." + runs.incrementAndGet();
+        String requestSubject = subject + ".requests";
+
+        List<Connection> connections = new ArrayList<>();
+        ExecutorService clients = Executors.newCachedThreadPool();
+        LatencyHistogram latency = new LatencyHistogram();
+        LatencyHistogram requestLatency = new LatencyHistogram();
+        LongAdder received = new LongAdder();
+        try {
+            for (int i = 0; i < subscribers; i++) {
+                Connection nc = connect(bus, connections);
+                MessageHandler handler = traced
+                    ? new TracingMessageHandler.Builder(tracer, (tm, span) -> {
+                        recordLatency(latency, tm.getData());
+                        received.increment();
+                    }).build()
+                    : msg -> {
+                        recordLatency(latency, msg.getData());
+                        received.increment();
+                    };
+                nc.createDispatcher(handler).subscribe(subject);
+            }
+            for (int i = 0; i < (requestors > 0 ? repliers : 0); i++) {
+                Connection nc = connect(bus, connections);
+                MessageHandler handler = traced
+                    ? new TracingMessageHandler.Builder(tracer, (tm, span) ->
+                        nc.publish(tm.getReplyTo(), Not.encode(tracer, span.context(), tm.getData()))).build()
+                    : msg -> nc.publish(msg.getReplyTo(), msg.getData());
+                nc.createDispatcher(handler).subscribe(requestSubject, "repliers");
+            }
+            for (Connection nc : connections) {
+                nc.flush(timeout);
+            }
+
+            long start = System.nanoTime();
+            List<Future<?>> running = new ArrayList<>();
+            for (int i = 0; i < publishers; i++) {
+                Connection nc = connect(bus, connections);
+                running.add(clients.submit(() -> {
+                    publish(nc, tracer, subject);
+                    return null;
+                }));
+            }
+            for (int i = 0; i < requestors; i++) {
+                Connection nc = connect(bus, connections);
+                running.add(clients.submit(() -> {
+                    request(nc, tracer, requestSubject, requestLatency);
+                    return null;
+                }));
+            }
+            for (Future<?> f : running) {
+                f.get();
+            }
+
+            // Wait for the subscribers to catch up, until they stop making
+            // progress.
+            long expected = (long) publishers * messages * subscribers;
+            long last = -1;
+            long lastProgress = System.nanoTime();
+            while (received.sum() < expected && System.nanoTime() - lastProgress < timeout.toNanos()) {
+                long n = received.sum();
+                if (n != last) {
+                    last = n;
+                    lastProgress = System.nanoTime();
+                }
+                Thread.sleep(1);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            return new Result(traced, (long) publishers * messages, received.sum(), elapsed,
+                latency.snapshot(), requestLatency.snapshot(), memory == null ? -1 : memory.getSpans().size());
+        } finally {
+            clients.shutdownNow();
+            for (Connection nc : connections) {
+                nc.close();
+            }
+            if (tracer != null) {
+                tracer.close();
+            }
+        }
+    }
+
+    private TracerOptions tracerOptions(InMemoryReporter memory) {
+        TracerOptions.Builder b = new TracerOptions.Builder().logSpans(false);
+        if (sampling < 1) {
+            b.probabilisticSampler(sampling);
+        }
+        if (reporting == Reporting.NOOP) {
+            b.reporter(new NoopReporter());
+        } else if (reporting == Reporting.MEMORY) {
+            b.reporter(memory);
+        }
+        return b.build();
+    }
+
+    private Connection connect(InProcessBus bus, List<Connection> connections) throws Exception {
+        Connection nc = bus != null ? bus.connect() : Nats.connect(server);
+        connections.add(nc);
+        return nc;
+    }
+
+    private void publish(Connection nc, Tracer tracer, String subject) {
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            pace(start, i);
+            byte[] payload = payload();
+            if (tracer == null) {
+                nc.publish(subject, payload);
+                continue;
+            }
+            Span span = tracer.buildSpan("Publish")
+                .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_PRODUCER)
+                .start();
+            nc.publish(subject, Not.encode(tracer, span.context(), payload));
+            span.finish();
+        }
+    }
+
+    private void request(Connection nc, Tracer tracer, String subject, LatencyHistogram latency)
+            throws Exception {
+        TracedRequester requester = tracer == null ? null
+            : new TracedRequester.Builder(nc, tracer).timeout(timeout).build();
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            pace(start, i);
+            byte[] payload = payload();
+            long sent = System.nanoTime();
+            if (requester == null) {
+                nc.request(subject, payload).get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+            } else {
+                requester.request(subject, payload).get();
+            }
+            latency.record(System.nanoTime() - sent);
+        }
+    }
+
+    private byte[] payload() {
+        byte[] payload = new byte[payloadSize];
+        ByteBuffer.wrap(payload).putLong(System.nanoTime());
+        return payload;
+    }
+
+    /**
+     * Waits until the i'th message is due, when there is a rate.
+     */
+    private void pace(long start, int i) {
+        if (rate <= 0) {
+            return;
+        }
+        long due = start + (long) (i * 1_000_000_000L / rate);
+        long now;
+        while ((now = System.nanoTime()) < due) {
+            LockSupport.parkNanos(due - now);
+        }
+    }
+
+    private static void recordLatency(LatencyHistogram latency, byte[] data) {
+        latency.record(System.nanoTime() - ByteBuffer.wrap(data).getLong());
+    }
+
+    /**
+     * The measurements of a run.
+     */
+    public static final class Result {
+        private final boolean traced;
+        private final long sent;
+        private final long received;
+        private final long elapsedNanos;
+        private final LatencyHistogram.Snapshot latency;
+        private final LatencyHistogram.Snapshot requestLatency;
+        private final long spans;
+
+        Result(boolean traced, long sent, long received, long elapsedNanos, LatencyHistogram.Snapshot latency,
+                LatencyHistogram.Snapshot requestLatency, long spans) {
+            this.traced = traced;
+            this.sent = sent;
+            this.received = received;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+            this.requestLatency = requestLatency;
+            this.spans = spans;
+        }
+
+        /**
+         * @return true if the messages were traced.
+         */
+        public boolean isTraced() {
+            return traced;
+        }
+
+        /**
+         * @return the number of messages published.
+         */
+        public long getSentCount() {
+            return sent;
+        }
+
+        /**
+         * @return the number of messages subscribers received.
+         */
+        public long getReceivedCount() {
+            return received;
+        }
+
+        /**
+         * @return the number of requests that got a reply.
+         */
+        public long getRequestCount() {
+            return requestLatency.getCount();
+        }
+
+        /**
+         * @return how long the run took, in nanoseconds.
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return the messages received and replies a second.
+         */
+        public double getThroughput() {
+            return (received + requestLatency.getCount()) * 1e9 / Math.max(1, elapsedNanos);
+        }
+
+        /**
+         * @return the time from publishing to receiving messages.
+         */
+        public LatencyHistogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return the round trip time of requests.
+         */
+        public LatencyHistogram.Snapshot getRequestLatency() {
+            return requestLatency;
+        }
+
+        /**
+         * @return the number of spans reported to memory, -1 with another
+         * reporter.
+         */
+        public long getSpanCount() {
+            return spans;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%-9s %,d msgs/s over %.2fs", traced ? "traced" : "untraced",
+                (long) getThroughput(), elapsedNanos / 1e9));
+            if (sent > 0) {
+                sb.append(String.format("%n  pub/sub   %,d sent %,d received, %s", sent, received,
+                    percentiles(latency)));
+            }
+            if (requestLatency.getCount() > 0) {
+                sb.append(String.format("%n  req/reply %,d replies, %s", requestLatency.getCount(),
+                    percentiles(requestLatency)));
+            }
+            if (spans >= 0) {
+                sb.append(String.format("%n  %,d spans reported", spans));
+            }
+            return sb.toString();
+        }
+
+        private static String percentiles(LatencyHistogram.Snapshot s) {
+            return String.format("p50 %.1fus p99 %.1fus p999 %.1fus", s.getValueAtPercentile(50) / 1e3,
+                s.getValueAtPercentile(99) / 1e3, s.getValueAtPercentile(99.9) / 1e3);
+        }
+    }
+
+    /**
+     * LoadGenerators are created using a Builder.
+     */
+    public static class Builder {
+        private String server;
+        private int publishers = 1;
+        private int subscribers = 1;
+        private int requestors = 0;
+        private int repliers = 1;
+        private int messages = 10000;
+        private int payloadSize = 128;
+        private double rate = 0;
+        private double sampling = 1;
+        private Reporting reporting = Reporting.NOOP;
+        private Duration timeout = Duration.ofSeconds(10);
+
+        /**
+         * Constructs a new Builder with the default values.
+         */
+        public Builder() {}
+
+        /**
+         * Sets the NATS server, by default an in-process bus is used.
+         * @param server the server URL, or null for the in-process bus
+         * @return the Builder for chaining
+         */
+        public Builder server(String server) {
+            this.server = server;
+            return this;
+        }
+
+        /**
+         * Sets the number of publishers, the default is 1.
+         * @param publishers the number of publishers
+         * @return the Builder for chaining
+         */
+        public Builder publishers(int publishers) {
+            this.publishers = checkCount(publishers, "publishers");
+            return this;
+        }
+
+        /**
+         * Sets the number of subscribers, each receives every published
+         * message.  The default is 1.
+         * @param subscribers the number of subscribers
+         * @return the Builder for chaining
+         */
+        public Builder subscribers(int subscribers) {
+            this.subscribers = checkCount(subscribers, "subscribers");
+            return this;
+        }
+
+        /**
+         * Sets the number of requestors, the default is 0.
+         * @param requestors the number of requestors
+         * @return the Builder for chaining
+         */
+        public Builder requestors(int requestors) {
+            this.requestors = checkCount(requestors, "requestors");
+            return this;
+        }
+
+        /**
+         * Sets the number of repliers, they share the requests in a queue
+         * group.  The default is 1.
+         * @param repliers the number of repliers
+         * @return the Builder for chaining
+         */
+        public Builder repliers(int repliers) {
+            this.repliers = checkCount(repliers, "repliers");
+            return this;
+        }
+
+        /**
+         * Sets how many messages each publisher, and requests each
+         * requestor, sends.  The default is 10000.
+         * @param messages the number of messages
+         * @return the Builder for chaining
+         */
+        public Builder messages(int messages) {
+            this.messages = checkCount(messages, "messages");
+            return this;
+        }
+
+        /**
+         * Sets the payload size, the default is 128 bytes.
+         * @param payloadSize the payload size, at least 8 bytes
+         * @return the Builder for chaining
+         */
+        public Builder payloadSize(int payloadSize) {
+            if (payloadSize < 8) {
+                throw new IllegalArgumentException("payloadSize must be at least 8");
+            }
+            this.payloadSize = payloadSize;
+            return this;
+        }
+
+        /**
+         * Sets how many messages each publisher, and requests each
+         * requestor, sends a second.  The default, 0, is as fast as
+         * possible.
+         * @param rate the rate
+         * @return the Builder for chaining
+         */
+        public Builder rate(double rate) {
+            if (rate < 0) {
+                throw new IllegalArgumentException("rate cannot be negative");
+            }
+            this.rate = rate;
+            return this;
+        }
+
+        /**
+         * Sets the probability a trace is sampled in traced runs, the
+         * default is 1.
+         * @param sampling the probability, between 0 and 1
+         * @return the Builder for chaining
+         */
+        public Builder sampling(double sampling) {
+            if (sampling < 0 || sampling > 1) {
+                throw new IllegalArgumentException("sampling must be between 0 and 1");
+            }
+            this.sampling = sampling;
+            return this;
+        }
+
+        /**
+         * Sets where spans are reported, the default is
+         * {@link Reporting#NOOP}.
+         * @param reporting where spans go
+         * @return the Builder for chaining
+         */
+        public Builder reporting(Reporting reporting) {
+            if (reporting == null) {
+                throw new IllegalArgumentException("reporting cannot be null");
+            }
+            this.reporting = reporting;
+            return this;
+        }
+
+        /**
+         * Sets how long to wait for replies, and for subscribers to make
+         * progress at the end of a run.  The default is 10 seconds.
+         * @param timeout the timeout
+         * @return the Builder for chaining
+         */
+        public Builder timeout(Duration timeout) {
+            if (timeout == null || timeout.isNegative() || timeout.isZero()) {
+                throw new IllegalArgumentException("timeout must be greater than zero");
+            }
+            this.timeout = timeout;
+            return this;
+        }
+
+        private static int checkCount(int n, String name) {
+            if (n < 0) {
+                throw new IllegalArgumentException(name + " cannot be negative");
+            }
+            return n;
+        }
+
+        /**
+         * Builds the LoadGenerator.
+         * @return the new load generator
+         */
+        public LoadGenerator build() {
+            return new LoadGenerator(this);
+        }
+    }
+
+    public static void main(String args[]) {
+        Builder b = new Builder();
+        boolean untraced = true;
+        boolean traced = true;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-s":
+                        b.server(args[++i]);
+                        break;
+                    case "-pub":
+                        b.publishers(Integer.parseInt(args[++i]));
+                        break;
+                    case "-sub":
+                        b.subscribers(Integer.parseInt(args[++i]));
+                        break;
+                    case "-req":
+                        b.requestors(Integer.parseInt(args[++i]));
+                        break;
+                    case "-rep":
+                        b.repliers(Integer.parseInt(args[++i]));
+                        break;
+                    case "-n":
+                        b.messages(Integer.parseInt(args[++i]));
+                        break;
+                    case "-size":
+                        b.payloadSize(Integer.parseInt(args[++i]));
+                        break;
+                    case "-rate":
+                        b.rate(Double.parseDouble(args[++i]));
+                        break;
+                    case "-sampling":
+                        b.sampling(Double.parseDouble(args[++i]));
+                        break;
+                    case "-reporter":
+                        b.reporting(Reporting.valueOf(args[++i].toUpperCase()));
+                        break;
+                    case "-untraced":
+                        traced = false;
+                        break;
+                    case "-traced":
+                        untraced = false;
+                        break;
+                    default:
+                        usage();
+                        return;
+                }
+            }
+        } catch (RuntimeException e) {
+            usage();
+            return;
+        }
+
+        try {
+            LoadGenerator generator = b.build();
+            Result base = null;
+            if (untraced) {
+                base = generator.run(false);
+                System.out.println(base);
+            }
+            if (traced) {
+                Result result = generator.run(true);
+                System.out.println(result);
+                if (base != null && base.getThroughput() > 0) {
+                    System.out.printf("tracing overhead: %.1f%% throughput%n",
+                        100 * (1 - result.getThroughput() / base.getThroughput()));
+                }
+            }
+        } catch (Exception exp) {
+            exp.printStackTrace();
+        }
+    }
+
+    static void usage() {
+        System.err.println(usageString);
+        System.exit(-1);
+    }
+}
@@ -16,6 +16,7 @@ package io.nats.client.not.examples;
 import io.nats.client.Connection;
 import io.nats.client.Nats;
 import io.nats.client.Options;
+import io.nats.client.not.JaegerTracing;
 import io.nats.client.not.Not;
 import io.opentracing.Span;
 import io.opentracing.SpanContext;
@@ -51,7 +52,7 @@ public class Publish {
 
         try {
             // Initialize our tracer
-            Tracer tracer = Not.initTracing("NATS OpenTracing Publisher");
+            Tracer tracer = JaegerTracing.initTracing("NATS OpenTracing Publisher");
 
             // Connect to the NATS server
             System.out.printf("\n\nSending %s on %s, server is %s\n\n", message, subject, server);
@@ -21,6 +21,7 @@ import io.nats.client.Connection;
 import io.nats.client.Dispatcher;
 import io.nats.client.Nats;
 import io.nats.client.Options;
+import io.nats.client.not.JaegerTracing;
 import io.nats.client.not.Not;
 import io.nats.client.not.TraceMessage;
 import io.opentracing.Span;
@@ -51,7 +52,7 @@ public class Reply {
 
         try {
             // Build our tracer and a parent span for the received message.
-            Tracer tracer = Not.initTracing("NATS OpenTracing Replier");
+            Tracer tracer = JaegerTracing.initTracing("NATS OpenTracing Replier");
 
             Connection nc = Nats.connect(server);
             CountDownLatch latch = new CountDownLatch(1); // dispatcher runs callback in another thread
@@ -14,14 +14,14 @@
 package io.nats.client.not.examples;
 
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.time.Duration;
 
 import io.nats.client.Connection;
-import io.nats.client.Message;
 import io.nats.client.Nats;
 import io.nats.client.Options;
+import io.nats.client.not.JaegerTracing;
 import io.nats.client.not.Not;
+import io.nats.client.not.TraceMessage;
 
 import io.opentracing.Span;
 import io.opentracing.SpanContext;
@@ -54,7 +54,7 @@ public class Request {
 
         try {
             // Initialize our tracer
-            Tracer tracer = Not.initTracing("NATS OpenTracing Requestor");
+            Tracer tracer = JaegerTracing.initTracing("NATS OpenTracing Requestor");
 
             // Connect to the server
             Connection nc = Nats.connect(server);
@@ -63,12 +63,10 @@ public class Request {
             Span span = tracer.buildSpan("Request").withTag("type", "requestor").start();
             SpanContext spanContext = span.context();
 
-            // Publish the message using the tracer and spanContext to 
-            // encode it.
-            Future<Message> replyFuture = nc.request(subject, 
-                Not.encode(tracer, spanContext,
-                message.getBytes(StandardCharsets.UTF_8)));
-            Message reply = replyFuture.get(5, TimeUnit.MINUTES);
+            // Send the request under a client span, a child of our span,
+            // and wait for the decoded reply.
+            TraceMessage reply = Not.request(nc, tracer, spanContext, subject,
+                message.getBytes(StandardCharsets.UTF_8), Duration.ofMinutes(5)).get();
 
             System.out.println();
             String logMsg = String.format(
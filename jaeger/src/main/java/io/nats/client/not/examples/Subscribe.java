@@ -21,6 +21,7 @@ import io.nats.client.Message;
 import io.nats.client.Nats;
 import io.nats.client.Options;
 import io.nats.client.Subscription;
+import io.nats.client.not.JaegerTracing;
 import io.nats.client.not.Not;
 import io.nats.client.not.TraceMessage;
 import io.opentracing.Span;
@@ -51,7 +52,7 @@ public class Subscribe {
 
         try {
             // Build our tracer and a parent span for the received message.
-            Tracer tracer = Not.initTracing("NATS OpenTracing Subscriber");
+            Tracer tracer = JaegerTracing.initTracing("NATS OpenTracing Subscriber");
 
             // Connect to the NATS server and subscribe.
             Connection nc = Nats.connect(server);
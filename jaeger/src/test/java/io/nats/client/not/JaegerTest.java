@@ -0,0 +1,469 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.jaegertracing.internal.JaegerSpan;
+import io.jaegertracing.internal.JaegerSpanContext;
+import io.jaegertracing.internal.reporters.InMemoryReporter;
+import io.jaegertracing.spi.Reporter;
+import io.nats.client.not.examples.LoadGenerator;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+
+import static org.junit.Assert.*;
+
+public class JaegerTest {
+    @Test
+    public void simpleInitTest() {
+        JaegerTracing.initTracing("test");
+    }
+
+    @Test
+    public void testSamplers() {
+        TracerOptions[] options = {
+            new TracerOptions.Builder().probabilisticSampler(0.001).logSpans(false).build(),
+            new TracerOptions.Builder().rateLimitingSampler(10).build(),
+            new TracerOptions.Builder().constSampler(false).build(),
+        };
+        for (TracerOptions o : options) {
+            assertNotNull(JaegerTracing.initTracing("test", o).buildSpan("op").start());
+        }
+
+        TracerOptions perOperation = new TracerOptions.Builder()
+            .perOperationSampler(1, 0)
+            .operationProbability("never", 0)
+            .build();
+        Tracer tracer = JaegerTracing.initTracing("test", perOperation);
+        assertTrue(((JaegerSpanContext) tracer.buildSpan("always").start().context()).isSampled());
+
+        // The lower bound rate limiter lets the first span through.
+        int sampled = 0;
+        for (int i = 0; i < 10; i++) {
+            if (((JaegerSpanContext) tracer.buildSpan("never").start().context()).isSampled()) {
+                sampled++;
+            }
+        }
+        assertTrue(sampled <= 1);
+    }
+
+    private static List<JaegerSpan> reportWhileBlocked(AsyncReporter.OverflowPolicy policy, AsyncReporter[] out)
+            throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        InMemoryReporter sink = new InMemoryReporter();
+        Reporter blocking = new Reporter() {
+            public void report(JaegerSpan span) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                sink.report(span);
+            }
+
+            public void close() {
+                sink.close();
+            }
+        };
+        AsyncReporter reporter = new AsyncReporter(blocking, 4, 1, 10, policy);
+        out[0] = reporter;
+        Tracer tracer = JaegerTracing.initTracing("test", new TracerOptions.Builder().reporter(reporter).build());
+
+        // The background thread takes the first span and blocks in the delegate.
+        tracer.buildSpan("s0").start().finish();
+        while (reporter.getFlushedCount() == 0 && reporter.getQueueSize() > 0) {
+            Thread.sleep(1);
+        }
+        for (int i = 1; i <= 6; i++) {
+            tracer.buildSpan("s" + i).start().finish();
+        }
+        assertEquals(4, reporter.getQueueSize());
+        assertEquals(2, reporter.getDroppedCount());
+
+        release.countDown();
+        reporter.close();
+        return sink.getSpans();
+    }
+
+    @Test
+    public void testAsyncReporter() throws InterruptedException {
+        AsyncReporter[] reporter = new AsyncReporter[1];
+
+        List<JaegerSpan> spans = reportWhileBlocked(AsyncReporter.OverflowPolicy.DROP_NEWEST, reporter);
+        assertEquals(5, spans.size());
+        assertEquals("s4", spans.get(4).getOperationName());
+        assertEquals(5, reporter[0].getQueuedCount());
+        assertEquals(5, reporter[0].getFlushedCount());
+        assertEquals(0, reporter[0].getQueueSize());
+
+        spans = reportWhileBlocked(AsyncReporter.OverflowPolicy.DROP_OLDEST, reporter);
+        assertEquals(5, spans.size());
+        assertEquals("s0", spans.get(0).getOperationName());
+        assertEquals("s3", spans.get(1).getOperationName());
+        assertEquals("s6", spans.get(4).getOperationName());
+        assertEquals(7, reporter[0].getQueuedCount());
+        assertEquals(5, reporter[0].getFlushedCount());
+
+        // Spans reported after close are dropped.
+        reporter[0].report(null);
+        assertEquals(3, reporter[0].getDroppedCount());
+
+        // A delegate still blocked when close gives up gets no more spans,
+        // the queued ones are dropped and it is closed once it returns.
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch closed = new CountDownLatch(1);
+        InMemoryReporter sink = new InMemoryReporter();
+        AsyncReporter stuck = new AsyncReporter(new Reporter() {
+            public void report(JaegerSpan span) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                sink.report(span);
+            }
+
+            public void close() {
+                closed.countDown();
+            }
+        }, 4, 1, 10, AsyncReporter.OverflowPolicy.DROP_NEWEST);
+        Tracer stuckTracer = JaegerTracing.initTracing("test", new TracerOptions.Builder().reporter(stuck).build());
+        stuckTracer.buildSpan("s0").start().finish();
+        while (stuck.getQueueSize() > 0) {
+            Thread.sleep(1);
+        }
+        stuckTracer.buildSpan("s1").start().finish();
+        stuckTracer.buildSpan("s2").start().finish();
+        stuck.close();
+        assertEquals(2, stuck.getDroppedCount());
+        assertEquals(1, closed.getCount());
+        release.countDown();
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, sink.getSpans().size());
+
+        Tracer tracer = JaegerTracing.initTracing("test", new TracerOptions.Builder()
+            .asyncReporter(1000, AsyncReporter.OverflowPolicy.DROP_OLDEST).build());
+        tracer.buildSpan("async").start().finish();
+
+        // The background thread would spin without a flush interval.
+        try {
+            new TracerOptions.Builder().asyncReporter(10, AsyncReporter.OverflowPolicy.DROP_OLDEST, 10, 0);
+            fail("expected a flush interval error");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new AsyncReporter(sink, 10, 10, -1, AsyncReporter.OverflowPolicy.DROP_OLDEST);
+            fail("expected a flush interval error");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTailSamplingReporter() {
+        InMemoryReporter sink = new InMemoryReporter();
+        TailSamplingReporter reporter = new TailSamplingReporter.Builder(sink)
+            .latencyThresholdMillis(100)
+            .decisionWaitMillis(60000)
+            .build();
+        Tracer tracer = JaegerTracing.initTracing("test", new TracerOptions.Builder().reporter(reporter).build());
+
+        // A trace with an error is kept when its root finishes.
+        Span root = tracer.buildSpan("root").start();
+        Span child = tracer.buildSpan("child").asChildOf(root).start();
+        child.setTag("error", true);
+        child.finish();
+        assertEquals(0, sink.getSpans().size());
+        root.finish();
+        assertEquals(2, sink.getSpans().size());
+
+        // A fast trace without errors is dropped.
+        Span fast = tracer.buildSpan("fast").start();
+        fast.finish();
+        assertEquals(2, sink.getSpans().size());
+        assertEquals(1, reporter.getDroppedTraceCount());
+
+        // A slow span of a remote trace waits for the decision.
+        SpanContext remote = tracer.buildSpan("remote").start().context();
+        tracer.buildSpan("slow").asChildOf(remote).withStartTimestamp(1000).start().finish(1000 + 200000);
+        assertEquals(1, reporter.getBufferedTraceCount());
+        reporter.flush();
+        assertEquals(0, reporter.getBufferedTraceCount());
+        assertEquals(3, sink.getSpans().size());
+        assertEquals("slow", sink.getSpans().get(2).getOperationName());
+        assertEquals(2, reporter.getKeptTraceCount());
+
+        // Spans finishing after their trace was decided follow the
+        // decision.
+        tracer.buildSpan("late").asChildOf(root).start().finish();
+        tracer.buildSpan("late").asChildOf(fast).withTag("error", true).start().finish();
+        assertEquals(0, reporter.getBufferedTraceCount());
+        assertEquals(4, sink.getSpans().size());
+        assertEquals("late", sink.getSpans().get(3).getOperationName());
+        assertEquals(2, reporter.getKeptTraceCount());
+        assertEquals(1, reporter.getDroppedTraceCount());
+        reporter.close();
+
+        // A span continuing a trace from another process is its local
+        // root, a child finishing first does not decide the trace.
+        sink.clear();
+        TailSamplingReporter consumer = new TailSamplingReporter.Builder(sink)
+            .decisionWaitMillis(60000)
+            .build();
+        tracer = JaegerTracing.initTracing("test", new TracerOptions.Builder().reporter(consumer).build());
+        Span receive = tracer.buildSpan("receive").asChildOf(new JaegerSpanContext(0, 42, 7, 0, (byte) 1)).start();
+        Span work = tracer.buildSpan("work").asChildOf(receive).withTag("error", true).start();
+        work.finish();
+        assertEquals(1, consumer.getBufferedTraceCount());
+        assertEquals(0, sink.getSpans().size());
+        receive.finish();
+        assertEquals(0, consumer.getBufferedTraceCount());
+        assertEquals(2, sink.getSpans().size());
+        consumer.close();
+
+        // Every process keeps the same traces at random.
+        sink.clear();
+        InMemoryReporter otherSink = new InMemoryReporter();
+        TailSamplingReporter here = new TailSamplingReporter.Builder(sink).probability(0.5).build();
+        TailSamplingReporter there = new TailSamplingReporter.Builder(otherSink).probability(0.5).build();
+        Tracer hereTracer = JaegerTracing.initTracing("here", new TracerOptions.Builder().reporter(here).build());
+        Tracer thereTracer = JaegerTracing.initTracing("there", new TracerOptions.Builder().reporter(there).build());
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            JaegerSpanContext upstream = new JaegerSpanContext(0, random.nextLong(), 1, 0, (byte) 1);
+            hereTracer.buildSpan("publish").asChildOf(upstream).start().finish();
+            thereTracer.buildSpan("receive").asChildOf(upstream).start().finish();
+        }
+        assertEquals(here.getKeptTraceCount(), there.getKeptTraceCount());
+        assertTrue(here.getKeptTraceCount() > 50 && here.getKeptTraceCount() < 150);
+        for (int i = 0; i < sink.getSpans().size(); i++) {
+            assertEquals(sink.getSpans().get(i).context().getTraceIdLow(),
+                otherSink.getSpans().get(i).context().getTraceIdLow());
+        }
+        here.close();
+        there.close();
+
+        // When full the oldest trace is decided early.
+        sink.clear();
+        TailSamplingReporter small = new TailSamplingReporter.Builder(sink)
+            .probability(1)
+            .maxTraces(1)
+            .maxSpansPerTrace(1)
+            .build();
+        tracer = JaegerTracing.initTracing("test", new TracerOptions.Builder().reporter(small).build());
+        Span first = tracer.buildSpan("first").start();
+        tracer.buildSpan("a").asChildOf(first).start().finish();
+        tracer.buildSpan("b").asChildOf(first).start().finish();
+        assertEquals(1, small.getDroppedSpanCount());
+        Span second = tracer.buildSpan("second").start();
+        tracer.buildSpan("c").asChildOf(second).start().finish();
+        assertEquals(1, sink.getSpans().size());
+        assertEquals("a", sink.getSpans().get(0).getOperationName());
+        small.close();
+        assertEquals(2, sink.getSpans().size());
+    }
+
+    @Test
+    public void testSpoolReporter() throws Exception {
+        Path dir = Files.createTempDirectory("spool");
+        try {
+            SpoolReporter spool = new SpoolReporter.Builder(dir).segmentSize(1024).segments(2).build();
+            Tracer tracer = JaegerTracing.initTracing("test", new TracerOptions.Builder().reporter(spool).build());
+            Span root = tracer.buildSpan("root").start();
+            Span child = tracer.buildSpan("child").asChildOf(root).withTag("n", 42).withTag("ok", true).start();
+            child.log("done");
+            child.finish();
+            root.finish();
+            assertEquals(2, spool.getWrittenCount());
+
+            // Nothing is exported until a segment is sealed.
+            List<SpanRecord> exported = new ArrayList<>();
+            SpoolExporter exporter = new SpoolExporter(dir);
+            assertEquals(0, exporter.exportTo(exported::addAll));
+            spool.close();
+            assertEquals(2, exporter.exportTo(exported::addAll));
+            assertEquals(0, exporter.exportTo(exported::addAll));
+
+            SpanRecord c = exported.get(0);
+            SpanRecord r = exported.get(1);
+            assertEquals("child", c.getOperationName());
+            assertEquals("test", c.getServiceName());
+            assertEquals(r.getSpanId(), c.getParentId());
+            assertEquals(r.getTraceIdLow(), c.getTraceIdLow());
+            assertEquals(42L, c.getTags().get("n"));
+            assertEquals(true, c.getTags().get("ok"));
+            assertEquals("done", c.getLogs().get(0).getFields().get("event"));
+            assertEquals(1, SpoolExporter.toThrift(c).getReferences().size());
+
+            // A reopened spool continues after the last segment, and the
+            // oldest sealed segment is overwritten when the ring is full.
+            spool = new SpoolReporter.Builder(dir).segmentSize(1024).segments(2).build();
+            tracer = JaegerTracing.initTracing("test", new TracerOptions.Builder().reporter(spool).build());
+            for (int i = 0; i < 40; i++) {
+                tracer.buildSpan("span-" + i).start().finish();
+            }
+            assertEquals(40, spool.getWrittenCount());
+            assertTrue(spool.getOverwrittenSegmentCount() > 0);
+            spool.close();
+            exported.clear();
+            int count = exporter.exportTo(exported::addAll);
+            assertTrue(count > 0 && count < 40);
+            assertEquals("span-39", exported.get(count - 1).getOperationName());
+
+            // A sink that fails keeps the segment.
+            spool = new SpoolReporter.Builder(dir).segmentSize(1024).segments(2).build();
+            tracer = JaegerTracing.initTracing("test", new TracerOptions.Builder().reporter(spool).build());
+            tracer.buildSpan("kept").start().finish();
+            spool.close();
+            try {
+                exporter.exportTo(spans -> {
+                    throw new IOException("down");
+                });
+                fail();
+            } catch (IOException e) {
+                // expected
+            }
+            exported.clear();
+            assertEquals(1, exporter.exportTo(exported::addAll));
+            assertEquals("kept", exported.get(0).getOperationName());
+
+            // A segment claimed again while it is exported is not emptied.
+            spool = new SpoolReporter.Builder(dir).segmentSize(1024).segments(2).build();
+            Tracer reclaiming = JaegerTracing.initTracing("test", new TracerOptions.Builder().reporter(spool).build());
+            SpoolReporter writer = spool;
+            reclaiming.buildSpan("first").start().finish();
+            writer.seal();
+            exported.clear();
+            assertEquals(1, exporter.exportTo(spans -> {
+                exported.addAll(spans);
+                reclaiming.buildSpan("second").start().finish();
+                writer.seal();
+                reclaiming.buildSpan("third").start().finish();
+            }));
+            writer.close();
+            exported.clear();
+            assertEquals(2, exporter.exportTo(exported::addAll));
+            assertEquals("second", exported.get(0).getOperationName());
+            assertEquals("third", exported.get(1).getOperationName());
+        } finally {
+            try (java.nio.file.DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path p : files) {
+                    Files.delete(p);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testTracerRegistry() {
+        TracerOptions quiet = new TracerOptions.Builder().logSpans(false).build();
+        assertSame(JaegerTracing.sharedTracing("test", quiet),
+            JaegerTracing.sharedTracing("test", new TracerOptions.Builder().logSpans(false).build()));
+        assertNotSame(JaegerTracing.sharedTracing("test", quiet), JaegerTracing.sharedTracing("other", quiet));
+        assertNotSame(JaegerTracing.sharedTracing("test"), JaegerTracing.sharedTracing("test", quiet));
+
+        InMemoryReporter reporter = new InMemoryReporter();
+        TracerRegistry registry = new TracerRegistry();
+        TracerOptions withReporter = new TracerOptions.Builder().reporter(reporter).build();
+        Tracer tracer = registry.get("test", withReporter);
+        assertSame(tracer, registry.get("test", new TracerOptions.Builder().reporter(reporter).build()));
+        assertNotSame(tracer, registry.get("test", new TracerOptions.Builder()
+            .reporter(new InMemoryReporter()).build()));
+        assertEquals(2, registry.size());
+        tracer.buildSpan("op").start().finish();
+        assertEquals(1, reporter.getSpans().size());
+        registry.close();
+        assertEquals(0, registry.size());
+        assertNotSame(tracer, registry.get("test", withReporter));
+        registry.close();
+
+        // The reporters from the environment start with the first span.
+        LazyReporter lazy = new LazyReporter(InMemoryReporter::new);
+        assertFalse(lazy.isStarted());
+        tracer = JaegerTracing.initTracing("test", new TracerOptions.Builder().reporter(lazy).build());
+        tracer.buildSpan("op").start().finish();
+        assertTrue(lazy.isStarted());
+        lazy.close();
+
+        // Once closed no reporter is created and spans are dropped.
+        int[] created = new int[1];
+        LazyReporter closed = new LazyReporter(() -> {
+            created[0]++;
+            return new InMemoryReporter();
+        });
+        closed.close();
+        tracer = JaegerTracing.initTracing("test", new TracerOptions.Builder().reporter(closed).build());
+        tracer.buildSpan("op").start().finish();
+        assertFalse(closed.isStarted());
+        assertEquals(0, created[0]);
+    }
+
+    @Test
+    public void testSpanContextInspector() {
+        // The core finds the Jaeger inspector through its service file.
+        assertTrue(Not.INSPECTOR instanceof JaegerSpanContextInspector);
+        Tracer tracer = JaegerTracing.sharedTracing("test", new TracerOptions.Builder().constSampler(false).build());
+        SpanContext unsampled = tracer.buildSpan("op").start().context();
+        assertFalse(Not.INSPECTOR.isSampled(unsampled));
+        long id = ((JaegerSpanContext) unsampled).getTraceIdLow();
+        assertEquals((int) (id ^ (id >>> 32)), Not.INSPECTOR.traceHash(unsampled));
+        assertTrue(SpanContextInspector.GENERIC.isSampled(unsampled));
+        assertEquals(unsampled.toTraceId().hashCode(), SpanContextInspector.GENERIC.traceHash(unsampled));
+    }
+
+    @Test
+    public void testLoadGenerator() throws Exception {
+        LoadGenerator generator = new LoadGenerator.Builder()
+            .publishers(2)
+            .subscribers(2)
+            .requestors(1)
+            .repliers(2)
+            .messages(200)
+            .payloadSize(64)
+            .reporting(LoadGenerator.Reporting.MEMORY)
+            .build();
+
+        LoadGenerator.Result untraced = generator.run(false);
+        assertFalse(untraced.isTraced());
+        assertEquals(400, untraced.getSentCount());
+        assertEquals(800, untraced.getReceivedCount());
+        assertEquals(200, untraced.getRequestCount());
+        assertEquals(800, untraced.getLatency().getCount());
+        assertTrue(untraced.getThroughput() > 0);
+        assertEquals(0, untraced.getSpanCount());
+
+        // Publish and receive spans for each message, a client and a
+        // replier span for each request.  The last receiving spans may
+        // still be finishing when the run ends.
+        LoadGenerator.Result traced = generator.run(true);
+        assertEquals(800, traced.getReceivedCount());
+        assertEquals(200, traced.getRequestCount());
+        assertTrue(traced.getSpanCount() > 400 + 200);
+        assertTrue(traced.getSpanCount() <= 400 + 800 + 2 * 200);
+        assertTrue(traced.toString().contains("p999"));
+    }
+}
@@ -0,0 +1,5 @@
+#!/bin/bash
+
+export CLASSPATH=`pwd`/jaeger/build/libs/not-fat.jar:$CLASSPATH
+
+java io.nats.client.not.examples.LoadGenerator "$@"
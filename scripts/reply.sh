@@ -1,6 +1,6 @@
 #!/bin/bash
 
-export CLASSPATH=`pwd`/build/libs/not-fat.jar:$CLASSPATH
+export CLASSPATH=`pwd`/jaeger/build/libs/not-fat.jar:$CLASSPATH
 
 if [ "$#" -eq 0 ]; then
     java io.nats.client.not.examples.Reply foo
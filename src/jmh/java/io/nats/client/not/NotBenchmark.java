@@ -0,0 +1,138 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.jaegertracing.internal.JaegerTracer;
+import io.nats.client.Message;
+import io.nats.client.impl.NatsMessage;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+
+/**
+ * Benchmarks for the encode and decode hot paths, run single threaded.
+ * Run with the gc profiler, which the jmh task enables, to see the
+ * allocation rate along with throughput.
+ *
+ * <pre>
+ * gradle jmh
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NotBenchmark {
+
+    @Param({"0", "128", "8192", "65536", "1048576"})
+    public int payloadSize;
+
+    @Param({"0", "4"})
+    public int baggageItems;
+
+    @Param({"true", "false"})
+    public boolean traced;
+
+    Tracer tracer;
+    Span span;
+    SpanContext spanContext;
+    byte[] payload;
+    Message message;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        tracer = JaegerTracing.initTracing("benchmark");
+        span = tracer.buildSpan("benchmark").start();
+        for (int i = 0; i < baggageItems; i++) {
+            span.setBaggageItem("key" + i, "value" + i);
+        }
+        spanContext = span.context();
+
+        payload = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; i++) {
+            payload[i] = (byte) ('a' + (i % 26));
+        }
+
+        byte[] wireData = traced ? Not.encode(tracer, spanContext, payload) : payload;
+        message = new NatsMessage("benchmark", null, wireData, false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ((JaegerTracer) tracer).close();
+    }
+
+    /**
+     * Per thread buffer for the ByteBuffer encode.
+     */
+    @State(Scope.Thread)
+    public static class EncodeBuffer {
+        ByteBuffer heap;
+
+        @Setup(Level.Trial)
+        public void setup(NotBenchmark b) {
+            heap = ByteBuffer.allocate(b.payloadSize + 4096);
+        }
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return Not.encode(tracer, spanContext, payload);
+    }
+
+    @Benchmark
+    public int encodeIntoBuffer(EncodeBuffer b) {
+        b.heap.clear();
+        return Not.encode(tracer, spanContext, payload, b.heap);
+    }
+
+    @Benchmark
+    public TraceMessage decode() {
+        return Not.decode(tracer, message);
+    }
+
+    @Benchmark
+    public byte[] decodeGetData() {
+        return Not.decode(tracer, message).getData();
+    }
+
+    @Benchmark
+    public ByteBuffer decodeLazyGetDataBuffer() {
+        return Not.decodeLazy(tracer, message).getDataBuffer();
+    }
+
+    @Benchmark
+    public SpanContext decodeLazyGetSpanContext() {
+        return Not.decodeLazy(tracer, message).getSpanContext();
+    }
+}
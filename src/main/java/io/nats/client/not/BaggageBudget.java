@@ -0,0 +1,222 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.opentracing.SpanContext;
+
+/**
+ * BaggageBudget limits the baggage encoded into messages, so traces that
+ * collect baggage do not inflate every message they reach.  Set it on the
+ * {@link TraceOptions} used to encode messages.
+ *
+ * <pre>
+ * BaggageBudget budget = new BaggageBudget.Builder().maxItems(8).maxValueBytes(64).maxBytes(256).build();
+ * TraceOptions options = new TraceOptions.Builder().baggageBudget(budget).build();
+ * </pre>
+ *
+ * Values longer than the value limit are truncated, on a character
+ * boundary.  Items beyond the item limit, or that would take the baggage
+ * past the total limit, are dropped.  Sizes are UTF-8 bytes of keys and
+ * values.  Only the encoded span context is trimmed, the span keeps its
+ * baggage.  Replacing baggage needs a {@link SpanContextInspector} that
+ * supports it, baggage of other tracers is encoded unchanged.  Budgets are
+ * thread safe and can be shared between options.
+ */
+public final class BaggageBudget {
+
+    private final int maxItems;
+    private final int maxValueBytes;
+    private final int maxBytes;
+    private final LongAdder truncated = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private BaggageBudget(Builder b) {
+        this.maxItems = b.maxItems;
+        this.maxValueBytes = b.maxValueBytes;
+        this.maxBytes = b.maxBytes;
+    }
+
+    /**
+     * Trims the baggage of a span context to the budget.
+     * @return the span context, or a copy with trimmed baggage.
+     */
+    SpanContext apply(SpanContext spanContext) {
+        int count = 0;
+        int bytes = 0;
+        boolean over = false;
+        for (Map.Entry<String, String> e : spanContext.baggageItems()) {
+            int valueBytes = utf8Length(e.getValue());
+            count++;
+            bytes += utf8Length(e.getKey()) + valueBytes;
+            if (count > maxItems || bytes > maxBytes || valueBytes > maxValueBytes) {
+                over = true;
+                break;
+            }
+        }
+        if (!over) {
+            return spanContext;
+        }
+
+        Map<String, String> baggage = new HashMap<>();
+        int left = maxBytes;
+        long truncations = 0;
+        long drops = 0;
+        for (Map.Entry<String, String> e : spanContext.baggageItems()) {
+            String key = e.getKey();
+            String value = e.getValue();
+            if (utf8Length(value) > maxValueBytes) {
+                String cut = truncate(value, maxValueBytes);
+                if (cut != value) {
+                    value = cut;
+                    truncations++;
+                }
+            }
+            int size = utf8Length(key) + utf8Length(value);
+            if (baggage.size() >= maxItems || size > left) {
+                drops++;
+                continue;
+            }
+            baggage.put(key, value);
+            left -= size;
+        }
+
+        SpanContext trimmed = Not.INSPECTOR.withBaggage(spanContext, baggage);
+        if (trimmed == null) {
+            return spanContext;
+        }
+        truncated.add(truncations);
+        dropped.add(drops);
+        return trimmed;
+    }
+
+    /**
+     * @return the UTF-8 length of a string, without encoding it.
+     */
+    static int utf8Length(String s) {
+        int n = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x800) {
+                n += 2;
+                if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    // A pair is four bytes, two chars counted as one each.
+                    i++;
+                }
+            } else if (c >= 0x80) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Cuts a string to at most a number of UTF-8 bytes, without splitting
+     * a character.
+     */
+    static String truncate(String s, int maxBytes) {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        if (utf8.length <= maxBytes) {
+            return s;
+        }
+        int end = maxBytes;
+        // Back off continuation bytes to the start of a character.
+        while (end > 0 && (utf8[end] & 0xC0) == 0x80) {
+            end--;
+        }
+        return new String(utf8, 0, end, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the number of baggage values truncated.
+     */
+    public long getTruncatedCount() {
+        return truncated.sum();
+    }
+
+    /**
+     * @return the number of baggage items dropped.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * BaggageBudgets are created using a Builder.
+     */
+    public static class Builder {
+        private int maxItems = Integer.MAX_VALUE;
+        private int maxValueBytes = Integer.MAX_VALUE;
+        private int maxBytes = Integer.MAX_VALUE;
+
+        /**
+         * Constructs a new Builder with the default values, which do not
+         * limit baggage.
+         */
+        public Builder() {}
+
+        /**
+         * Sets the largest number of baggage items encoded.
+         * @param maxItems the number of items
+         * @return the Builder for chaining
+         */
+        public Builder maxItems(int maxItems) {
+            if (maxItems < 0) {
+                throw new IllegalArgumentException("maxItems cannot be negative");
+            }
+            this.maxItems = maxItems;
+            return this;
+        }
+
+        /**
+         * Sets the largest baggage value encoded, longer values are
+         * truncated.
+         * @param maxValueBytes the size in UTF-8 bytes
+         * @return the Builder for chaining
+         */
+        public Builder maxValueBytes(int maxValueBytes) {
+            if (maxValueBytes < 0) {
+                throw new IllegalArgumentException("maxValueBytes cannot be negative");
+            }
+            this.maxValueBytes = maxValueBytes;
+            return this;
+        }
+
+        /**
+         * Sets the largest total size of the baggage keys and values
+         * encoded.
+         * @param maxBytes the size in UTF-8 bytes
+         * @return the Builder for chaining
+         */
+        public Builder maxBytes(int maxBytes) {
+            if (maxBytes < 0) {
+                throw new IllegalArgumentException("maxBytes cannot be negative");
+            }
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Builds the BaggageBudget.
+         * @return the new budget
+         */
+        public BaggageBudget build() {
+            return new BaggageBudget(this);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.nio.ByteBuffer;
+
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+import io.opentracing.propagation.Format;
+
+/**
+ * BinaryTraceCodec hands span contexts to the tracer's
+ * {@link Format.Builtin#BINARY} injector and extractor.  Use
+ * {@link TraceCodec#BINARY}.
+ */
+final class BinaryTraceCodec implements TraceCodec {
+
+    @Override
+    public int id() {
+        return 0;
+    }
+
+    @Override
+    public void encode(Tracer tracer, SpanContext spanContext, ByteBuffer buffer) {
+        tracer.inject(spanContext, Format.Builtin.BINARY, new Not.Carrier(buffer));
+    }
+
+    @Override
+    public SpanContext decode(Tracer tracer, byte[] data, int offset, int length) {
+        // The extractor rewinds the buffer, so it has to start at the carrier.
+        ByteBuffer carrier = ByteBuffer.wrap(data, offset, length).slice();
+        return tracer.extract(Format.Builtin.BINARY, new Not.Carrier(carrier));
+    }
+}
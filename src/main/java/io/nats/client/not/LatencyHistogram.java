@@ -0,0 +1,195 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram counts nanosecond values in log linear buckets, like
+ * HdrHistogram.  Each power of two is split into sixteen buckets, so
+ * percentiles are accurate to about six percent over the whole range of
+ * long values, in a fixed amount of memory.  Recording is lock free and
+ * does not allocate.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAdder negative = new LongAdder();
+    private final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a value.  Negative values, which clock differences between
+     * hosts can produce, are counted as zero.
+     * @param nanos the value
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            negative.increment();
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucket(nanos));
+        total.increment();
+        sum.add(nanos);
+        min.accumulate(nanos);
+        max.accumulate(nanos);
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the highest value that falls in the bucket.
+     */
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exp = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exp - SUB_BUCKET_BITS);
+        return lowest + (1L << (exp - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Clears the histogram.  Values recorded at the same time may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+        negative.reset();
+        min.reset();
+        max.reset();
+    }
+
+    /**
+     * Takes a copy of the histogram.  Values recorded at the same time may
+     * or may not be included.
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, sum.sum(), negative.sum(),
+            count == 0 ? 0 : min.get(), max.get());
+    }
+
+    /**
+     * A point in time copy of a histogram.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long negative;
+        private final long min;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long negative, long min, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.negative = negative;
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * @return the number of values recorded.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the number of negative values recorded, they are
+         * counted as zero.
+         */
+        public long getNegativeCount() {
+            return negative;
+        }
+
+        /**
+         * @return the smallest value recorded, 0 if there are none.
+         */
+        public long getMin() {
+            return min;
+        }
+
+        /**
+         * @return the largest value recorded, 0 if there are none.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return the mean of the values recorded, 0 if there are none.
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Gets a percentile.  The result is the highest value of the bucket
+         * holding the percentile, and never more than the largest value.
+         * @param percentile the percentile, between 0 and 100
+         * @return the value at the percentile, 0 if there are no values.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile must be between 0 and 100");
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d min=%d p50=%d p90=%d p99=%d p999=%d max=%d",
+                count, min, getValueAtPercentile(50), getValueAtPercentile(90),
+                getValueAtPercentile(99), getValueAtPercentile(99.9), max);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LatencyRecorder keeps a {@link LatencyHistogram} of message transit times
+ * for each subject.  Publishers write send times with
+ * {@link TraceOptions.Builder#timestamps()}, receivers set the recorder on
+ * the options they decode with.
+ *
+ * <pre>
+ * LatencyRecorder recorder = new LatencyRecorder();
+ * TraceOptions options = new TraceOptions.Builder().latencyRecorder(recorder).build();
+ * ...
+ * for (Map.Entry&lt;String, LatencyHistogram.Snapshot&gt; e : recorder.snapshot().entrySet()) {
+ *     System.out.println(e.getKey() + " " + e.getValue());
+ * }
+ * </pre>
+ *
+ * To keep memory bounded when subjects are unique, such as reply inboxes,
+ * subjects past the limit are recorded under {@link #OTHER}.
+ */
+public final class LatencyRecorder {
+
+    /**
+     * The key for subjects past the limit, and messages without a subject.
+     */
+    public static final String OTHER = "_other";
+
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final int maxSubjects;
+
+    /**
+     * Creates a recorder for up to 1000 subjects.
+     */
+    public LatencyRecorder() {
+        this(1000);
+    }
+
+    /**
+     * Creates a recorder.
+     * @param maxSubjects the most subjects with their own histogram
+     */
+    public LatencyRecorder(int maxSubjects) {
+        if (maxSubjects < 0) {
+            throw new IllegalArgumentException("maxSubjects cannot be negative");
+        }
+        this.maxSubjects = maxSubjects;
+    }
+
+    /**
+     * Records a transit time.
+     * @param subject the subject, may be null
+     * @param nanos the transit time in nanoseconds
+     */
+    public void record(String subject, long nanos) {
+        LatencyHistogram h = subject == null ? null : histograms.get(subject);
+        if (h == null) {
+            h = histogram(subject);
+        }
+        h.record(nanos);
+    }
+
+    private LatencyHistogram histogram(String subject) {
+        if (subject == null || histograms.size() >= maxSubjects) {
+            subject = OTHER;
+        }
+        return histograms.computeIfAbsent(subject, k -> new LatencyHistogram());
+    }
+
+    /**
+     * Gets a snapshot of one subject.
+     * @param subject the subject
+     * @return the snapshot, null if nothing was recorded for the subject.
+     */
+    public LatencyHistogram.Snapshot snapshot(String subject) {
+        LatencyHistogram h = histograms.get(subject);
+        return h == null ? null : h.snapshot();
+    }
+
+    /**
+     * Gets snapshots of every subject.
+     * @return the snapshots, by subject
+     */
+    public Map<String, LatencyHistogram.Snapshot> snapshot() {
+        Map<String, LatencyHistogram.Snapshot> snapshots = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+            snapshots.put(e.getKey(), e.getValue().snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * Removes every histogram.
+     */
+    public void reset() {
+        histograms.clear();
+    }
+}
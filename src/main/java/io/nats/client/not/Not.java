@@ -13,15 +13,35 @@
 
 package io.nats.client.not;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.CompletableFuture;
 
-import io.jaegertracing.Configuration;
-import io.jaegertracing.Configuration.ReporterConfiguration;
-import io.jaegertracing.Configuration.SamplerConfiguration;
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import io.nats.client.impl.Headers;
+import io.nats.client.impl.NatsMessage;
 import io.opentracing.SpanContext;
 import io.opentracing.Tracer;
 import io.opentracing.propagation.Binary;
 import io.opentracing.propagation.Format;
+import io.opentracing.propagation.TextMap;
 
 /**
  * This class provides the java NATS open tracing implemention.
@@ -44,6 +64,7 @@ public class Not {
     static class Carrier implements Binary {
    
         ByteBuffer buffer = null;
+        boolean inPlace = false;
 
         /**
          * Creates a NatsCarrier for extraction
@@ -76,13 +97,32 @@ public class Not {
          * Creates a NatsCarrier with an uninitalized buffer for injection
          */
         public Carrier() {}
-        
+
+        /**
+         * Creates a NatsCarrier that injects in place into the supplied
+         * buffer, starting at its current position.  The buffer's position
+         * is advanced past the span context once injection completes.
+         * 
+         * @param target - the buffer to write the span context into.
+         */
+        public Carrier(ByteBuffer target) {
+            buffer = target;
+            inPlace = true;
+        }
+
         @Override
         public ByteBuffer injectionBuffer(int length) {
             if (length <= 0) {
                 throw new IllegalArgumentException("length must be greater than zero");
             }
 
+            if (inPlace) {
+                if (buffer.remaining() < length) {
+                    throw new BufferOverflowException();
+                }
+                return buffer;
+            }
+
             buffer = ByteBuffer.allocate(length);        
             return buffer;
         }
@@ -93,6 +133,67 @@ public class Not {
         }  
     }
 
+    /**
+     * HeadersCarrier is an opentracing text map carrier over NATS message
+     * headers.  Span contexts propagated this way leave the message payload
+     * untouched, so publishing and receiving never copy it, and consumers that
+     * know nothing about tracing see the payload as it was sent.
+     */
+    static class HeadersCarrier implements TextMap {
+
+        final Headers headers;
+
+        /**
+         * Creates a HeadersCarrier over the given headers.
+         * 
+         * @param headers - the headers to inject into or extract from.
+         */
+        public HeadersCarrier(Headers headers) {
+            this.headers = headers;
+        }
+
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+            Iterator<Map.Entry<String, List<String>>> entries = headers.entrySet().iterator();
+            return new Iterator<Map.Entry<String, String>>() {
+                String key;
+                Iterator<String> values = Collections.emptyIterator();
+
+                @Override
+                public boolean hasNext() {
+                    while (!values.hasNext() && entries.hasNext()) {
+                        Map.Entry<String, List<String>> e = entries.next();
+                        key = e.getKey();
+                        values = e.getValue().iterator();
+                    }
+                    return values.hasNext();
+                }
+
+                @Override
+                public Map.Entry<String, String> next() {
+                    hasNext();
+                    return new AbstractMap.SimpleImmutableEntry<>(key, values.next());
+                }
+            };
+        }
+
+        @Override
+        public void put(String key, String value) {
+            headers.put(key, value);
+        }
+    }
+
+    // Reads sampling decisions the OpenTracing API does not expose.
+    static final SpanContextInspector INSPECTOR = loadInspector();
+
+    // Per thread scratch buffer for span contexts, so encoding into a byte
+    // array only has to allocate the array that is returned.
+    private static final ThreadLocal<ByteBuffer[]> scratchBuffer =
+        ThreadLocal.withInitial(() -> new ByteBuffer[] { ByteBuffer.allocate(256) });
+
+    // Size of the buffer streamed payloads are copied through.
+    private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
     /**
      * encode generates a byte array with tracing information and
      * the NATS payload.
@@ -103,32 +204,740 @@ public class Not {
      * @return a byte array with trace information and the payload
      */
     public static byte[] encode(Tracer tracer, SpanContext spanContext, byte[] payload) {
-        if (tracer == null) {
-            throw new IllegalArgumentException("tracer cannot be null");
-        }
+        return encode(tracer, spanContext, payload, TraceOptions.DEFAULT);
+    }
 
-        if (spanContext == null) {
-            throw new IllegalArgumentException("spanContext cannot be null");
+    /**
+     * encode generates a byte array with tracing information and
+     * the NATS payload.
+     * 
+     * @param tracer The OpenTracing tracer
+     * @param spanContext The span context of this trace
+     * @param payload The payload you want to publish
+     * @param options The options controlling the encoding
+     * @return a byte array with trace information and the payload.  If
+     * unsampled span contexts are skipped this may be the payload itself.
+     */
+    public static byte[] encode(Tracer tracer, SpanContext spanContext, byte[] payload, TraceOptions options) {
+        checkEncodeArgs(tracer, spanContext);
+        long startNanos = startTiming(options);
+
+        switch (unsampledAction(spanContext, options)) {
+            case SKIP:
+                recordEncode(spanContext, options, 0, startNanos);
+                return payload;
+            case MARKER:
+                int markerFlags = headerFlags(WireFormat.FLAG_UNSAMPLED, options);
+                int markerLen = WireFormat.headerSize(markerFlags);
+                byte[] marked = new byte[markerLen + payload.length];
+                WireFormat.writeHeader(marked, markerFlags, 0);
+                System.arraycopy(payload, 0, marked, markerLen, payload.length);
+                recordEncode(spanContext, options, markerLen, startNanos);
+                return marked;
+            default:
+                break;
         }
 
-        Not.Carrier c = new Not.Carrier();
-        tracer.inject(spanContext, Format.Builtin.BINARY, c);
-        ByteBuffer bb = c.extractionBuffer();
+        ByteBuffer bb = encodeCarrier(tracer, spanContext, options);
 
-        // Create a buffer to hold the span information and payload.
-        // we have to use the position of the carriers buffer to determine
+        // Create a buffer to hold the header, span information and payload.
+        // we have to use the position of the scratch buffer to determine
         // the size of the carrier information.
         int len = bb.position();
-        byte[] buffer = new byte[len + payload.length];
+        int flags = headerFlags(options.getCodec().id(), options);
+        int headerLen = options.isLegacyFormat() ? 0 : WireFormat.headerSize(flags);
+        byte[] buffer = new byte[headerLen + len + payload.length];
+        if (headerLen > 0) {
+            WireFormat.writeHeader(buffer, flags, len);
+        }
 
-        // Rewind the carrier buffer, then copy the carrier and payload into
-        // our buffer.
-        bb.rewind();
-        bb.get(buffer, 0, len);
-        System.arraycopy(payload, 0, buffer, len, payload.length);
+        // Copy the carrier straight out of the scratch buffer's backing
+        // array, then the payload into our buffer.
+        System.arraycopy(bb.array(), bb.arrayOffset(), buffer, headerLen, len);
+        System.arraycopy(payload, 0, buffer, headerLen + len, payload.length);
+        recordEncode(spanContext, options, headerLen + len, startNanos);
         return buffer;
     }
 
+    /**
+     * encode generates a byte array with tracing information and
+     * the NATS payload for a subject.  When the options' subject policy
+     * does not trace the subject the payload is returned as it is, as
+     * encodeMessage leaves such messages without headers.
+     * 
+     * @param tracer The OpenTracing tracer
+     * @param spanContext The span context of this trace
+     * @param subject The subject the payload will be published to
+     * @param payload The payload you want to publish
+     * @param options The options controlling the encoding
+     * @return a byte array with trace information and the payload, or the
+     * payload itself if it is sent without trace information.
+     */
+    public static byte[] encode(Tracer tracer, SpanContext spanContext, String subject, byte[] payload,
+            TraceOptions options) {
+        checkEncodeArgs(tracer, spanContext);
+        if (!options.isTraced(subject)) {
+            return payload;
+        }
+        return encode(tracer, spanContext, payload, options);
+    }
+
+    /**
+     * encode writes tracing information followed by the NATS payload into
+     * the supplied buffer, starting at the buffer's current position.  The
+     * buffer may be heap or direct, and can be pooled and reused across calls
+     * so the publish path does not allocate.  On return the position of the
+     * buffer is just past the payload.
+     * 
+     * @param tracer The OpenTracing tracer
+     * @param spanContext The span context of this trace
+     * @param payload The payload you want to publish
+     * @param buffer The buffer to encode into
+     * @return the number of bytes written into the buffer
+     * @throws BufferOverflowException if the buffer does not have enough
+     * space remaining, in which case its position is left unchanged.
+     */
+    public static int encode(Tracer tracer, SpanContext spanContext, byte[] payload, ByteBuffer buffer) {
+        return encode(tracer, spanContext, payload, buffer, TraceOptions.DEFAULT);
+    }
+
+    /**
+     * encode writes tracing information followed by the NATS payload into
+     * the supplied buffer.  See {@link #encode(Tracer, SpanContext, byte[], ByteBuffer)}.
+     * 
+     * @param tracer The OpenTracing tracer
+     * @param spanContext The span context of this trace
+     * @param payload The payload you want to publish
+     * @param buffer The buffer to encode into
+     * @param options The options controlling the encoding
+     * @return the number of bytes written into the buffer
+     * @throws BufferOverflowException if the buffer does not have enough
+     * space remaining, in which case its position is left unchanged.
+     */
+    public static int encode(Tracer tracer, SpanContext spanContext, byte[] payload, ByteBuffer buffer,
+            TraceOptions options) {
+        checkEncodeArgs(tracer, spanContext);
+        long startNanos = startTiming(options);
+
+        int start = buffer.position();
+        try {
+            injectCarrier(tracer, spanContext, buffer, options);
+            buffer.put(payload);
+        } catch (BufferOverflowException e) {
+            buffer.position(start);
+            throw e;
+        }
+        recordEncode(spanContext, options, buffer.position() - start - payload.length, startNanos);
+        return buffer.position() - start;
+    }
+
+    /**
+     * encode writes tracing information followed by the remaining bytes of
+     * the payload buffer into the supplied buffer.  See
+     * {@link #encode(Tracer, SpanContext, byte[], ByteBuffer)}.
+     * 
+     * @param tracer The OpenTracing tracer
+     * @param spanContext The span context of this trace
+     * @param payload The payload you want to publish, it is consumed.
+     * @param buffer The buffer to encode into
+     * @return the number of bytes written into the buffer
+     * @throws BufferOverflowException if the buffer does not have enough
+     * space remaining, in which case neither buffer's position is changed.
+     */
+    public static int encode(Tracer tracer, SpanContext spanContext, ByteBuffer payload, ByteBuffer buffer) {
+        return encode(tracer, spanContext, payload, buffer, TraceOptions.DEFAULT);
+    }
+
+    /**
+     * encode writes tracing information followed by the remaining bytes of
+     * the payload buffer into the supplied buffer.  See
+     * {@link #encode(Tracer, SpanContext, byte[], ByteBuffer)}.
+     * 
+     * @param tracer The OpenTracing tracer
+     * @param spanContext The span context of this trace
+     * @param payload The payload you want to publish, it is consumed.
+     * @param buffer The buffer to encode into
+     * @param options The options controlling the encoding
+     * @return the number of bytes written into the buffer
+     * @throws BufferOverflowException if the buffer does not have enough
+     * space remaining, in which case neither buffer's position is changed.
+     */
+    public static int encode(Tracer tracer, SpanContext spanContext, ByteBuffer payload, ByteBuffer buffer,
+            TraceOptions options) {
+        checkEncodeArgs(tracer, spanContext);
+        long startNanos = startTiming(options);
+
+        int start = buffer.position();
+        int payloadStart = payload.position();
+        try {
+            injectCarrier(tracer, spanContext, buffer, options);
+            buffer.put(payload);
+        } catch (BufferOverflowException e) {
+            buffer.position(start);
+            payload.position(payloadStart);
+            throw e;
+        }
+        recordEncode(spanContext, options,
+            buffer.position() - start - (payload.position() - payloadStart), startNanos);
+        return buffer.position() - start;
+    }
+
+    /**
+     * encode writes tracing information followed by the remaining bytes of
+     * the payload buffers to a channel with gathering writes, so a large
+     * payload held in several buffers is never copied into one array.  See
+     * {@link #encode(Tracer, SpanContext, ByteBuffer[], GatheringByteChannel, TraceOptions)}.
+     * 
+     * @param tracer The OpenTracing tracer
+     * @param spanContext The span context of this trace
+     * @param payload The payload you want to publish, it is consumed.
+     * @param out The channel to write to
+     * @return the number of bytes written
+     * @throws IOException if the channel cannot be written
+     */
+    public static long encode(Tracer tracer, SpanContext spanContext, ByteBuffer[] payload,
+            GatheringByteChannel out) throws IOException {
+        return encode(tracer, spanContext, payload, out, TraceOptions.DEFAULT);
+    }
+
+    /**
+     * encode writes tracing information followed by the remaining bytes of
+     * the payload buffers to a channel with gathering writes.  The channel
+     * should be blocking, an IOException is thrown if a non-blocking
+     * channel is not ready to accept everything.
+     * 
+     * @param tracer The OpenTracing tracer
+     * @param spanContext The span context of this trace
+     * @param payload The payload you want to publish, it is consumed.
+     * @param out The channel to write to
+     * @param options The options controlling the encoding
+     * @return the number of bytes written
+     * @throws IOException if the channel cannot be written
+     */
+    public static long encode(Tracer tracer, SpanContext spanContext, ByteBuffer[] payload,
+            GatheringByteChannel out, TraceOptions options) throws IOException {
+        checkEncodeArgs(tracer, spanContext);
+        checkStreamArgs(payload, out);
+        long startNanos = startTiming(options);
+
+        ByteBuffer prefix = encodePrefix(tracer, spanContext, options);
+        int prefixLen = prefix.remaining();
+        ByteBuffer[] srcs = new ByteBuffer[payload.length + 1];
+        srcs[0] = prefix;
+        System.arraycopy(payload, 0, srcs, 1, payload.length);
+
+        long total = prefixLen;
+        for (ByteBuffer b : payload) {
+            total += b.remaining();
+        }
+        long written = 0;
+        while (written < total) {
+            long n = out.write(srcs);
+            checkProgress(n, out);
+            written += n;
+        }
+        recordEncode(spanContext, options, prefixLen, startNanos);
+        return written;
+    }
+
+    /**
+     * encode gathers tracing information and the remaining bytes of the
+     * payload buffers into one array of exactly the encoded size, for
+     * publishing a payload held in several buffers.
+     * 
+     * @param tracer The OpenTracing tracer
+     * @param spanContext The span context of this trace
+     * @param payload The payload you want to publish, it is consumed.
+     * @param options The options controlling the encoding
+     * @return a byte array with trace information and the payload
+     */
+    public static byte[] encode(Tracer tracer, SpanContext spanContext, ByteBuffer[] payload,
+            TraceOptions options) {
+        checkEncodeArgs(tracer, spanContext);
+        if (payload == null) {
+            throw new IllegalArgumentException("payload cannot be null");
+        }
+        long startNanos = startTiming(options);
+
+        ByteBuffer prefix = encodePrefix(tracer, spanContext, options);
+        int prefixLen = prefix.remaining();
+        int len = prefixLen;
+        for (ByteBuffer b : payload) {
+            len += b.remaining();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(len);
+        buffer.put(prefix);
+        for (ByteBuffer b : payload) {
+            buffer.put(b);
+        }
+        recordEncode(spanContext, options, prefixLen, startNanos);
+        return buffer.array();
+    }
+
+    /**
+     * encode writes tracing information to a channel, then copies the
+     * payload channel to it until the end of stream.  See
+     * {@link #encode(Tracer, SpanContext, ReadableByteChannel, WritableByteChannel, TraceOptions)}.
+     * 
+     * @param tracer The OpenTracing tracer
+     * @param spanContext The span context of this trace
+     * @param payload The channel to read the payload from
+     * @param out The channel to write to
+     * @return the number of bytes written
+     * @throws IOException if either channel fails
+     */
+    public static long encode(Tracer tracer, SpanContext spanContext, ReadableByteChannel payload,
+            WritableByteChannel out) throws IOException {
+        return encode(tracer, spanContext, payload, out, TraceOptions.DEFAULT);
+    }
+
+    /**
+     * encode writes tracing information to a channel, then copies the
+     * payload channel to it until the end of stream.  The payload is copied
+     * through a small buffer, or transferred by the file system when it is a
+     * {@link FileChannel}, so it is never held in memory.  Both channels
+     * should be blocking, an IOException is thrown if a non-blocking
+     * channel is not ready.  A file payload is copied from its position to
+     * the end of the file, or until the file is found to be shorter.
+     * 
+     * @param tracer The OpenTracing tracer
+     * @param spanContext The span context of this trace
+     * @param payload The channel to read the payload from
+     * @param out The channel to write to
+     * @param options The options controlling the encoding
+     * @return the number of bytes written
+     * @throws IOException if either channel fails
+     */
+    public static long encode(Tracer tracer, SpanContext spanContext, ReadableByteChannel payload,
+            WritableByteChannel out, TraceOptions options) throws IOException {
+        checkEncodeArgs(tracer, spanContext);
+        checkStreamArgs(payload, out);
+        long startNanos = startTiming(options);
+
+        ByteBuffer prefix = encodePrefix(tracer, spanContext, options);
+        int prefixLen = prefix.remaining();
+        while (prefix.hasRemaining()) {
+            checkProgress(out.write(prefix), out);
+        }
+        recordEncode(spanContext, options, prefixLen, startNanos);
+
+        long written = prefixLen;
+        if (payload instanceof FileChannel) {
+            FileChannel file = (FileChannel) payload;
+            long pos = file.position();
+            long end = file.size();
+            while (pos < end) {
+                long n = file.transferTo(pos, end - pos, out);
+                if (n == 0) {
+                    if (pos >= file.size()) {
+                        // The file was truncated, there is nothing left.
+                        break;
+                    }
+                    checkProgress(n, out);
+                }
+                pos += n;
+            }
+            written += pos - file.position();
+            file.position(pos);
+            return written;
+        }
+
+        ByteBuffer chunk = ByteBuffer.allocate(STREAM_CHUNK_SIZE);
+        int read;
+        while ((read = payload.read(chunk)) >= 0) {
+            checkProgress(read, payload);
+            chunk.flip();
+            while (chunk.hasRemaining()) {
+                long n = out.write(chunk);
+                checkProgress(n, out);
+                written += n;
+            }
+            chunk.clear();
+        }
+        return written;
+    }
+
+    /**
+     * encode writes tracing information to a stream, then copies the
+     * payload stream to it until the end of stream.  See
+     * {@link #encode(Tracer, SpanContext, ReadableByteChannel, WritableByteChannel, TraceOptions)}.
+     * 
+     * @param tracer The OpenTracing tracer
+     * @param spanContext The span context of this trace
+     * @param payload The stream to read the payload from
+     * @param out The stream to write to, it is not flushed or closed
+     * @return the number of bytes written
+     * @throws IOException if either stream fails
+     */
+    public static long encode(Tracer tracer, SpanContext spanContext, InputStream payload,
+            OutputStream out) throws IOException {
+        return encode(tracer, spanContext, payload, out, TraceOptions.DEFAULT);
+    }
+
+    /**
+     * encode writes tracing information to a stream, then copies the
+     * payload stream to it until the end of stream.
+     * 
+     * @param tracer The OpenTracing tracer
+     * @param spanContext The span context of this trace
+     * @param payload The stream to read the payload from
+     * @param out The stream to write to, it is not flushed or closed
+     * @param options The options controlling the encoding
+     * @return the number of bytes written
+     * @throws IOException if either stream fails
+     */
+    public static long encode(Tracer tracer, SpanContext spanContext, InputStream payload,
+            OutputStream out, TraceOptions options) throws IOException {
+        checkEncodeArgs(tracer, spanContext);
+        checkStreamArgs(payload, out);
+        long startNanos = startTiming(options);
+
+        ByteBuffer prefix = encodePrefix(tracer, spanContext, options);
+        int prefixLen = prefix.remaining();
+        out.write(prefix.array(), prefix.arrayOffset(), prefixLen);
+        recordEncode(spanContext, options, prefixLen, startNanos);
+
+        long written = prefixLen;
+        byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+        int n;
+        while ((n = payload.read(chunk)) >= 0) {
+            out.write(chunk, 0, n);
+            written += n;
+        }
+        return written;
+    }
+
+    /**
+     * Throws if a read or write on a channel made no progress and the
+     * channel will not block until it can, so copying never spins on a
+     * non-blocking channel that is not ready.
+     */
+    private static void checkProgress(long n, Channel channel) throws IOException {
+        if (n == 0 && !(channel instanceof SelectableChannel && ((SelectableChannel) channel).isBlocking())) {
+            throw new IOException("no bytes were transferred, the channel is not ready or not blocking");
+        }
+    }
+
+    private static void checkStreamArgs(Object payload, Object out) {
+        if (payload == null) {
+            throw new IllegalArgumentException("payload cannot be null");
+        }
+        if (out == null) {
+            throw new IllegalArgumentException("out cannot be null");
+        }
+    }
+
+    /**
+     * Writes the header and span context that go in front of a payload into
+     * the per thread scratch buffer, growing it as needed.
+     * @return the scratch buffer, flipped to read the prefix.  It must be
+     * consumed before the next encode on this thread.
+     */
+    private static ByteBuffer encodePrefix(Tracer tracer, SpanContext spanContext, TraceOptions options) {
+        ByteBuffer[] holder = scratchBuffer.get();
+        while (true) {
+            ByteBuffer bb = holder[0];
+            bb.clear();
+            try {
+                injectCarrier(tracer, spanContext, bb, options);
+                bb.flip();
+                return bb;
+            } catch (BufferOverflowException e) {
+                holder[0] = ByteBuffer.allocate(bb.capacity() * 2);
+            }
+        }
+    }
+
+    /**
+     * encodeEnvelope packs several payloads behind a single span context,
+     * so a burst of related records is sent in one NATS message and the
+     * receiver extracts the span context once.  Decode envelopes with
+     * {@link #decodeEnvelope(Tracer, io.nats.client.Message)}.
+     * 
+     * @param tracer The OpenTracing tracer
+     * @param spanContext The span context shared by the payloads
+     * @param payloads The payloads you want to publish
+     * @return a byte array with trace information and the payloads
+     */
+    public static byte[] encodeEnvelope(Tracer tracer, SpanContext spanContext, List<byte[]> payloads) {
+        return encodeEnvelope(tracer, spanContext, payloads, TraceOptions.DEFAULT);
+    }
+
+    /**
+     * encodeEnvelope packs several payloads behind a single span context.
+     * See {@link #encodeEnvelope(Tracer, SpanContext, List)}.  Envelopes
+     * are always framed, with the legacy format the span context is
+     * written with the tracer's binary format.  Unsampled span contexts
+     * that would be skipped are sent as a marker.
+     * 
+     * @param tracer The OpenTracing tracer
+     * @param spanContext The span context shared by the payloads
+     * @param payloads The payloads you want to publish
+     * @param options The options controlling the encoding
+     * @return a byte array with trace information and the payloads
+     */
+    public static byte[] encodeEnvelope(Tracer tracer, SpanContext spanContext, List<byte[]> payloads,
+            TraceOptions options) {
+        checkEncodeArgs(tracer, spanContext);
+        if (payloads == null) {
+            throw new IllegalArgumentException("payloads cannot be null");
+        }
+        long startNanos = startTiming(options);
+
+        int recordsLen = 4;
+        for (byte[] p : payloads) {
+            recordsLen += 4 + p.length;
+        }
+
+        int flags = WireFormat.FLAG_ENVELOPE;
+        ByteBuffer bb = null;
+        int len = 0;
+        if (unsampledAction(spanContext, options) == TraceOptions.Unsampled.INJECT) {
+            bb = encodeCarrier(tracer, spanContext, options);
+            len = bb.position();
+            flags |= options.isLegacyFormat() ? TraceCodec.BINARY.id() : options.getCodec().id();
+        } else {
+            flags |= WireFormat.FLAG_UNSAMPLED;
+        }
+        flags = headerFlags(flags, options);
+        int headerLen = WireFormat.headerSize(flags);
+
+        byte[] buffer = new byte[headerLen + len + recordsLen];
+        WireFormat.writeHeader(buffer, flags, len);
+        if (bb != null) {
+            System.arraycopy(bb.array(), bb.arrayOffset(), buffer, headerLen, len);
+        }
+
+        int pos = headerLen + len;
+        WireFormat.putInt(buffer, pos, payloads.size());
+        pos += 4;
+        for (byte[] p : payloads) {
+            WireFormat.putInt(buffer, pos, p.length);
+            System.arraycopy(p, 0, buffer, pos + 4, p.length);
+            pos += 4 + p.length;
+        }
+        recordEncode(spanContext, options, headerLen + len, startNanos);
+        return buffer;
+    }
+
+    /**
+     * Encodes the span context into the per thread scratch buffer, growing
+     * it as needed.
+     * @return the scratch buffer, positioned after the carrier.
+     */
+    private static ByteBuffer encodeCarrier(Tracer tracer, SpanContext spanContext, TraceOptions options) {
+        TraceCodec codec = options.isLegacyFormat() ? TraceCodec.BINARY : options.getCodec();
+        spanContext = applyBudget(spanContext, options);
+        ByteBuffer[] holder = scratchBuffer.get();
+        while (true) {
+            ByteBuffer bb = holder[0];
+            bb.clear();
+            try {
+                codec.encode(tracer, spanContext, bb);
+                return bb;
+            } catch (BufferOverflowException e) {
+                holder[0] = ByteBuffer.allocate(bb.capacity() * 2);
+            }
+        }
+    }
+
+    /**
+     * Writes the header, unless the legacy format is in use, and encodes the
+     * span context in place at the buffer's position.
+     */
+    private static void injectCarrier(Tracer tracer, SpanContext spanContext, ByteBuffer buffer,
+            TraceOptions options) {
+        switch (unsampledAction(spanContext, options)) {
+            case SKIP:
+                return;
+            case MARKER:
+                WireFormat.writeHeader(buffer, headerFlags(WireFormat.FLAG_UNSAMPLED, options));
+                return;
+            default:
+                break;
+        }
+
+        spanContext = applyBudget(spanContext, options);
+        if (options.isLegacyFormat()) {
+            TraceCodec.BINARY.encode(tracer, spanContext, buffer);
+            return;
+        }
+
+        TraceCodec codec = options.getCodec();
+        int flags = headerFlags(codec.id(), options);
+        int headerStart = buffer.position();
+        WireFormat.writeHeader(buffer, flags);
+        codec.encode(tracer, spanContext, buffer);
+        WireFormat.setCarrierLength(buffer, headerStart,
+            buffer.position() - headerStart - WireFormat.headerSize(flags));
+    }
+
+    /**
+     * @return the span context, trimmed to the options' baggage budget.
+     */
+    private static SpanContext applyBudget(SpanContext spanContext, TraceOptions options) {
+        BaggageBudget budget = options.getBaggageBudget();
+        return budget == null ? spanContext : budget.apply(spanContext);
+    }
+
+    /**
+     * @return the header flags, adding the timestamp flag if the options
+     * ask for send times.
+     */
+    private static int headerFlags(int flags, TraceOptions options) {
+        return options.isTimestamps() ? flags | WireFormat.FLAG_TIMESTAMP : flags;
+    }
+
+    /**
+     * @return the time to measure encoding from, 0 when there are no
+     * metrics so the clock is not read.
+     */
+    private static long startTiming(TraceOptions options) {
+        return options.getMetrics() == TraceMetrics.NOOP ? 0 : System.nanoTime();
+    }
+
+    private static void recordEncode(SpanContext spanContext, TraceOptions options, int overheadBytes,
+            long startNanos) {
+        TraceMetrics metrics = options.getMetrics();
+        if (metrics != TraceMetrics.NOOP) {
+            metrics.encoded(unsampledAction(spanContext, options) == TraceOptions.Unsampled.INJECT,
+                overheadBytes, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * @return the size of the header names and values, roughly what they
+     * add to a message.
+     */
+    private static int headerBytes(Headers headers) {
+        if (headers == null) {
+            return 0;
+        }
+        int bytes = 0;
+        for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+            for (String v : e.getValue()) {
+                bytes += e.getKey().length() + v.length() + 4;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * inject adds the span context to NATS message headers.  Unlike
+     * {@link #encode(Tracer, SpanContext, byte[])} the payload is not
+     * touched.  Headers require a NATS server that supports them.
+     * 
+     * @param tracer The OpenTracing tracer
+     * @param spanContext The span context of this trace
+     * @param headers The headers to add the span context to, may be null
+     * @return the headers holding the span context, new headers if
+     * headers was null.
+     */
+    public static Headers inject(Tracer tracer, SpanContext spanContext, Headers headers) {
+        checkEncodeArgs(tracer, spanContext);
+
+        if (headers == null) {
+            headers = new Headers();
+        }
+        tracer.inject(spanContext, Format.Builtin.TEXT_MAP, new HeadersCarrier(headers));
+        return headers;
+    }
+
+    /**
+     * encodeMessage creates a NATS message for publishing or requesting that
+     * carries the span context in its headers.  The payload is used as is,
+     * it is not copied.
+     * 
+     * @param tracer The OpenTracing tracer
+     * @param spanContext The span context of this trace
+     * @param subject The subject to publish to
+     * @param replyTo The reply subject, may be null
+     * @param payload The payload you want to publish
+     * @return a message to pass to Connection.publish or Connection.request
+     */
+    public static Message encodeMessage(Tracer tracer, SpanContext spanContext, String subject, String replyTo,
+            byte[] payload) {
+        return encodeMessage(tracer, spanContext, subject, replyTo, payload, TraceOptions.DEFAULT);
+    }
+
+    /**
+     * encodeMessage creates a NATS message for publishing or requesting that
+     * carries the span context in its headers.  The payload is used as is,
+     * it is not copied.  Unless the options inject unsampled span contexts,
+     * the message has no headers when the span is not sampled, or when the
+     * options' subject policy does not trace the subject.
+     * 
+     * @param tracer The OpenTracing tracer
+     * @param spanContext The span context of this trace
+     * @param subject The subject to publish to
+     * @param replyTo The reply subject, may be null
+     * @param payload The payload you want to publish
+     * @param options The options controlling the encoding
+     * @return a message to pass to Connection.publish or Connection.request
+     */
+    public static Message encodeMessage(Tracer tracer, SpanContext spanContext, String subject, String replyTo,
+            byte[] payload, TraceOptions options) {
+        checkEncodeArgs(tracer, spanContext);
+        if (!options.isTraced(subject)) {
+            return NatsMessage.builder().subject(subject).replyTo(replyTo).data(payload).build();
+        }
+
+        long startNanos = startTiming(options);
+        Headers headers = null;
+        if (unsampledAction(spanContext, options) == TraceOptions.Unsampled.INJECT) {
+            headers = inject(tracer, applyBudget(spanContext, options), null);
+        }
+        if (options.getMetrics() != TraceMetrics.NOOP) {
+            recordEncode(spanContext, options, headerBytes(headers), startNanos);
+        }
+        return NatsMessage.builder()
+            .subject(subject)
+            .replyTo(replyTo)
+            .headers(headers)
+            .data(payload)
+            .build();
+    }
+
+    /**
+     * @return how to encode the span context, INJECT for sampled spans.
+     */
+    private static TraceOptions.Unsampled unsampledAction(SpanContext spanContext, TraceOptions options) {
+        TraceOptions.Unsampled action = options.getUnsampled();
+        if (action == TraceOptions.Unsampled.INJECT || isSampled(spanContext)) {
+            return TraceOptions.Unsampled.INJECT;
+        }
+        if (action == TraceOptions.Unsampled.MARKER && options.isLegacyFormat()) {
+            return TraceOptions.Unsampled.SKIP;
+        }
+        return action;
+    }
+
+    /**
+     * Checks the sampling decision of a span context with the inspector
+     * found on the class path, see {@link SpanContextInspector}.
+     * @param spanContext the span context
+     * @return true if the span context is sampled.
+     */
+    static boolean isSampled(SpanContext spanContext) {
+        return INSPECTOR.isSampled(spanContext);
+    }
+
+    private static SpanContextInspector loadInspector() {
+        Iterator<SpanContextInspector> it = ServiceLoader.load(SpanContextInspector.class,
+            SpanContextInspector.class.getClassLoader()).iterator();
+        return it.hasNext() ? it.next() : SpanContextInspector.GENERIC;
+    }
+
+    private static void checkEncodeArgs(Tracer tracer, SpanContext spanContext) {
+        if (tracer == null) {
+            throw new IllegalArgumentException("tracer cannot be null");
+        }
+
+        if (spanContext == null) {
+            throw new IllegalArgumentException("spanContext cannot be null");
+        }
+    }
+
     /**
      * Decodes a NATS message with trace information.
      * @param tracer the tracer to decode.
@@ -136,18 +945,87 @@ public class Not {
      * @return a TraceMessage
      */
     public static TraceMessage decode(Tracer tracer, io.nats.client.Message msg) {
-        return new TraceMessage(tracer, msg);
+        return decode(tracer, msg, TraceOptions.DEFAULT);
+    }
+
+    /**
+     * Decodes a NATS message with trace information.
+     * @param tracer the tracer to decode.
+     * @param msg the NATS message to decode.
+     * @param options the options controlling the decoding.
+     * @return a TraceMessage
+     */
+    public static TraceMessage decode(Tracer tracer, io.nats.client.Message msg, TraceOptions options) {
+        return new TraceMessage(tracer, msg, options, false);
+    }
+
+    /**
+     * Lazily decodes a NATS message with trace information.  The span
+     * context is not extracted until the trace message's span context is
+     * first requested, so consumers that only look at the subject, reply to
+     * or payload never pay for extraction.
+     * @param tracer the tracer to decode.
+     * @param msg the NATS message to decode.
+     * @return a TraceMessage
+     */
+    public static TraceMessage decodeLazy(Tracer tracer, io.nats.client.Message msg) {
+        return decodeLazy(tracer, msg, TraceOptions.DEFAULT);
     }
 
     /**
-     * A helper function to initalize tracing
-     * @param serviceName Name of the service.
-     * @return an OpenTracing tracer
+     * Lazily decodes a NATS message with trace information.  See
+     * {@link #decodeLazy(Tracer, io.nats.client.Message)}.
+     * @param tracer the tracer to decode.
+     * @param msg the NATS message to decode.
+     * @param options the options controlling the decoding.
+     * @return a TraceMessage
+     */
+    public static TraceMessage decodeLazy(Tracer tracer, io.nats.client.Message msg, TraceOptions options) {
+        return new TraceMessage(tracer, msg, options, true);
+    }
+
+    /**
+     * Decodes a NATS message holding an envelope, see
+     * {@link #encodeEnvelope(Tracer, SpanContext, List)}.
+     * @param tracer the tracer to decode.
+     * @param msg the NATS message to decode.
+     * @return a TraceEnvelope
+     */
+    public static TraceEnvelope decodeEnvelope(Tracer tracer, io.nats.client.Message msg) {
+        return decodeEnvelope(tracer, msg, TraceOptions.DEFAULT);
+    }
+
+    /**
+     * Decodes a NATS message holding an envelope.  The span context is
+     * extracted once, when the first record is read or the span context is
+     * requested.
+     * @param tracer the tracer to decode.
+     * @param msg the NATS message to decode.
+     * @param options the options controlling the decoding.
+     * @return a TraceEnvelope
+     */
+    public static TraceEnvelope decodeEnvelope(Tracer tracer, io.nats.client.Message msg, TraceOptions options) {
+        TraceMessage tm = msg instanceof TraceMessage ? (TraceMessage) msg : new TraceMessage(tracer, msg, options, true);
+        return new TraceEnvelope(tm);
+    }
+
+    /**
+     * request sends a traced request without blocking.  A client span is
+     * started for the request and finished when the reply arrives or the
+     * request times out.  To send many requests, or gather replies from
+     * many subjects, use a {@link TracedRequester}.
+     *
+     * @param nc The connection to send the request with
+     * @param tracer The OpenTracing tracer
+     * @param parent The span context of the caller, null to start a trace
+     * @param subject The subject to send the request to
+     * @param payload The request payload
+     * @param timeout How long to wait for the reply
+     * @return a future completed with the decoded reply, or exceptionally
+     * with a TimeoutException
      */
-    public static io.opentracing.Tracer initTracing(String serviceName) {
-            SamplerConfiguration samplerConfig = SamplerConfiguration.fromEnv().withType("const").withParam(1);
-            ReporterConfiguration reporterConfig = ReporterConfiguration.fromEnv().withLogSpans(true);
-            Configuration config = new Configuration(serviceName).withSampler(samplerConfig).withReporter(reporterConfig);
-            return config.getTracer();
+    public static CompletableFuture<TraceMessage> request(Connection nc, Tracer tracer, SpanContext parent,
+            String subject, byte[] payload, Duration timeout) {
+        return new TracedRequester.Builder(nc, tracer).timeout(timeout).build().request(subject, payload, parent);
     }
 }
@@ -0,0 +1,410 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.nats.client.Message;
+import io.nats.client.MessageHandler;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+
+/**
+ * ShardedMessageHandler spreads messages from a dispatcher over a number
+ * of worker threads.  Each message is decoded and assigned to a shard by
+ * its trace id, or by its subject, and every shard is processed in order by
+ * its own thread.  Messages of the same trace therefore stay in order while
+ * unrelated traces use all the cores.
+ *
+ * <pre>
+ * ShardedMessageHandler sharded = new ShardedMessageHandler.Builder(tracer,
+ *     new TracingMessageHandler.Builder(tracer, (tm, span) -&gt; process(tm)).build())
+ *     .shards(8)
+ *     .build();
+ * nc.createDispatcher(sharded).subscribe(subject);
+ * </pre>
+ *
+ * The handler is given {@link TraceMessage}s, which a
+ * {@link TracingMessageHandler} uses as they are.  Messages without a
+ * trace id are sharded by subject.  When a shard's queue is full the
+ * dispatcher thread waits, so NATS slow consumer limits still apply.
+ * Exceptions and errors thrown by the handler are counted, see
+ * {@link #getFailedCount(int)}, and the shard carries on with the next
+ * message; workers only stop when the handler is closed.
+ */
+public class ShardedMessageHandler implements MessageHandler, AutoCloseable {
+
+    /**
+     * How messages are assigned to shards.
+     */
+    public enum ShardBy {
+        /**
+         * By the trace id of the span context, the span context is
+         * extracted on the dispatcher thread.
+         */
+        TRACE_ID,
+        /**
+         * By subject, span contexts are extracted on the worker threads.
+         */
+        SUBJECT
+    }
+
+    private static final TraceMessage STOP = new TraceMessage();
+
+    private final Tracer tracer;
+    private final MessageHandler handler;
+    private final TraceOptions options;
+    private final ShardBy shardBy;
+    private final Shard[] shards;
+    private final long closeTimeoutNanos;
+    // Messages past the closed check that are not queued yet.
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean closed;
+    private volatile boolean stopped;
+
+    private ShardedMessageHandler(Builder b) {
+        this.tracer = b.tracer;
+        this.handler = b.handler;
+        this.options = b.options;
+        this.shardBy = b.shardBy;
+        this.closeTimeoutNanos = b.closeTimeout.toNanos();
+        this.shards = new Shard[b.shards];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(i, b.queueCapacity);
+        }
+    }
+
+    @Override
+    public void onMessage(Message msg) throws InterruptedException {
+        pending.incrementAndGet();
+        try {
+            if (closed) {
+                throw new IllegalStateException("handler is closed");
+            }
+
+            TraceMessage tm = msg instanceof TraceMessage ? (TraceMessage) msg : Not.decodeLazy(tracer, msg, options);
+            shards[shardOf(tm)].put(tm);
+        } finally {
+            pending.decrementAndGet();
+        }
+    }
+
+    int shardOf(TraceMessage tm) {
+        int hash = 0;
+        if (shardBy == ShardBy.TRACE_ID) {
+            hash = traceHash(tm.getSpanContext());
+        }
+        if (hash == 0 && tm.getSubject() != null) {
+            hash = tm.getSubject().hashCode();
+        }
+        // Spread the bits so nearby hashes land on different shards.
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % shards.length;
+    }
+
+    private static int traceHash(SpanContext sc) {
+        if (sc == null) {
+            return 0;
+        }
+        return Not.INSPECTOR.traceHash(sc);
+    }
+
+    /**
+     * @return the number of shards.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @param shard the shard index
+     * @return the number of messages waiting in the shard's queue.
+     */
+    public int getQueueDepth(int shard) {
+        return shards[shard].queue.size();
+    }
+
+    /**
+     * @param shard the shard index
+     * @return the highest number of messages that have waited in the
+     * shard's queue.
+     */
+    public int getMaxQueueDepth(int shard) {
+        return shards[shard].maxDepth;
+    }
+
+    /**
+     * @param shard the shard index
+     * @return the number of messages the shard has processed.
+     */
+    public long getProcessedCount(int shard) {
+        return shards[shard].processed.sum();
+    }
+
+    /**
+     * @param shard the shard index
+     * @return the number of messages the handler failed on, by throwing an
+     * exception or error.
+     */
+    public long getFailedCount(int shard) {
+        return shards[shard].failed.sum();
+    }
+
+    /**
+     * @param shard the shard index
+     * @return the number of messages dropped from the shard's queue
+     * because the workers were stopped before processing them.
+     */
+    public long getDroppedCount(int shard) {
+        return shards[shard].dropped.sum();
+    }
+
+    /**
+     * Stops accepting messages, waits for the queued messages to be
+     * processed and stops the worker threads.  Workers that have not
+     * finished within the close timeout, see
+     * {@link Builder#closeTimeout(Duration)}, are interrupted and the
+     * messages left in their queues are dropped and counted.  If
+     * interrupted while waiting the workers are stopped the same way and
+     * the thread's interrupt flag is set.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        long deadline = System.nanoTime() + closeTimeoutNanos;
+        try {
+            // Let messages already past the closed check be queued, so
+            // none ends up behind STOP.
+            while (pending.get() > 0 && deadline - System.nanoTime() > 0) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+            for (Shard s : shards) {
+                if (!s.queue.offer(STOP, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    break;
+                }
+            }
+            for (Shard s : shards) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining > 0) {
+                    TimeUnit.NANOSECONDS.timedJoin(s.thread, remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stopped = true;
+            for (Shard s : shards) {
+                if (s.thread.isAlive()) {
+                    s.thread.interrupt();
+                }
+                s.dropQueued();
+            }
+        }
+    }
+
+    private class Shard implements Runnable {
+        private final BlockingQueue<TraceMessage> queue;
+        private final LongAdder processed = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private final Thread thread;
+        private volatile int maxDepth;
+
+        Shard(int index, int capacity) {
+            queue = new ArrayBlockingQueue<>(capacity);
+            thread = new Thread(this, "not-shard-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void put(TraceMessage tm) throws InterruptedException {
+            // Wait for room, but give up if the workers are stopped so the
+            // dispatcher thread is never left waiting on a dead shard.
+            while (!queue.offer(tm, 100, TimeUnit.MILLISECONDS)) {
+                if (stopped) {
+                    throw new IllegalStateException("handler is closed");
+                }
+            }
+            if (stopped && queue.remove(tm)) {
+                // Queued after close gave up waiting, no worker will take it.
+                dropped.increment();
+                throw new IllegalStateException("handler is closed");
+            }
+            int depth = queue.size();
+            if (depth > maxDepth) {
+                maxDepth = depth;
+            }
+        }
+
+        /**
+         * Empties the queue of a stopped shard, counting the messages no
+         * worker will process.
+         */
+        void dropQueued() {
+            TraceMessage tm;
+            while ((tm = queue.poll()) != null) {
+                if (tm != STOP) {
+                    dropped.increment();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            // Interrupts don't stop the shard, only STOP or close() giving
+            // up on it do.  The flag is restored when the worker exits.
+            boolean interrupted = false;
+            try {
+                while (!stopped) {
+                    TraceMessage tm;
+                    try {
+                        tm = queue.take();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        continue;
+                    }
+                    if (tm == STOP) {
+                        return;
+                    }
+                    try {
+                        handler.onMessage(tm);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (RuntimeException | Error e) {
+                        // Keep the shard running, a failing message must not
+                        // stop the messages queued behind it.
+                        failed.increment();
+                    }
+                    processed.increment();
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * ShardedMessageHandlers are created using a Builder.
+     */
+    public static class Builder {
+        private final Tracer tracer;
+        private final MessageHandler handler;
+        private TraceOptions options = TraceOptions.DEFAULT;
+        private ShardBy shardBy = ShardBy.TRACE_ID;
+        private int shards = Runtime.getRuntime().availableProcessors();
+        private int queueCapacity = 1024;
+        private Duration closeTimeout = Duration.ofSeconds(30);
+
+        /**
+         * Constructs a new Builder with the default values.
+         * @param tracer the tracer used to decode messages
+         * @param handler the handler called on the worker threads, it is
+         * given {@link TraceMessage}s
+         */
+        public Builder(Tracer tracer, MessageHandler handler) {
+            if (tracer == null) {
+                throw new IllegalArgumentException("tracer cannot be null");
+            }
+            if (handler == null) {
+                throw new IllegalArgumentException("handler cannot be null");
+            }
+            this.tracer = tracer;
+            this.handler = handler;
+        }
+
+        /**
+         * Sets the number of shards, each with its own thread.  The default
+         * is the number of available processors.
+         * @param shards the number of shards
+         * @return the Builder for chaining
+         */
+        public Builder shards(int shards) {
+            if (shards <= 0) {
+                throw new IllegalArgumentException("shards must be greater than zero");
+            }
+            this.shards = shards;
+            return this;
+        }
+
+        /**
+         * Sets how many messages each shard can queue, the default is 1024.
+         * @param queueCapacity the queue capacity
+         * @return the Builder for chaining
+         */
+        public Builder queueCapacity(int queueCapacity) {
+            if (queueCapacity <= 0) {
+                throw new IllegalArgumentException("queueCapacity must be greater than zero");
+            }
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * Sets how long {@link ShardedMessageHandler#close()} waits for the
+         * queued messages to be processed before interrupting the workers,
+         * the default is 30 seconds.
+         * @param closeTimeout the close timeout
+         * @return the Builder for chaining
+         */
+        public Builder closeTimeout(Duration closeTimeout) {
+            if (closeTimeout == null || closeTimeout.isNegative()) {
+                throw new IllegalArgumentException("closeTimeout cannot be null or negative");
+            }
+            this.closeTimeout = closeTimeout;
+            return this;
+        }
+
+        /**
+         * Sets how messages are assigned to shards, the default is by
+         * trace id.
+         * @param shardBy the sharding
+         * @return the Builder for chaining
+         */
+        public Builder shardBy(ShardBy shardBy) {
+            if (shardBy == null) {
+                throw new IllegalArgumentException("shardBy cannot be null");
+            }
+            this.shardBy = shardBy;
+            return this;
+        }
+
+        /**
+         * Sets the options used to decode messages.
+         * @param options the trace options
+         * @return the Builder for chaining
+         */
+        public Builder traceOptions(TraceOptions options) {
+            this.options = options;
+            return this;
+        }
+
+        /**
+         * Builds the ShardedMessageHandler and starts its threads.
+         * @return the new handler
+         */
+        public ShardedMessageHandler build() {
+            return new ShardedMessageHandler(this);
+        }
+    }
+}
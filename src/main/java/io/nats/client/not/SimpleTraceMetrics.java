@@ -0,0 +1,156 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SimpleTraceMetrics keeps {@link TraceMetrics} in striped counters, so
+ * many publishing threads can update them without contending.
+ *
+ * <pre>
+ * SimpleTraceMetrics metrics = new SimpleTraceMetrics();
+ * TraceOptions options = new TraceOptions.Builder().metrics(metrics).build();
+ * ...
+ * System.out.println(metrics);
+ * </pre>
+ */
+public class SimpleTraceMetrics implements TraceMetrics {
+    private final LongAdder encoded = new LongAdder();
+    private final LongAdder encodedTraced = new LongAdder();
+    private final LongAdder overheadBytes = new LongAdder();
+    private final LongAdder encodeNanos = new LongAdder();
+    private final LongAdder decoded = new LongAdder();
+    private final LongAdder decodedTraced = new LongAdder();
+    private final LongAdder decodeNanos = new LongAdder();
+    private final LongAdder extractionFailures = new LongAdder();
+    private final LongAdder payloadBytesCopied = new LongAdder();
+
+    @Override
+    public void encoded(boolean traced, int overheadBytes, long nanos) {
+        encoded.increment();
+        if (traced) {
+            encodedTraced.increment();
+        }
+        this.overheadBytes.add(overheadBytes);
+        encodeNanos.add(nanos);
+    }
+
+    @Override
+    public void decoded(boolean traced, long nanos) {
+        decoded.increment();
+        if (traced) {
+            decodedTraced.increment();
+        }
+        decodeNanos.add(nanos);
+    }
+
+    @Override
+    public void extractionFailed() {
+        extractionFailures.increment();
+    }
+
+    @Override
+    public void payloadCopied(int bytes) {
+        payloadBytesCopied.add(bytes);
+    }
+
+    /**
+     * @return the number of messages encoded.
+     */
+    public long getEncodedCount() {
+        return encoded.sum();
+    }
+
+    /**
+     * @return the number of messages encoded with a span context.
+     */
+    public long getEncodedTracedCount() {
+        return encodedTraced.sum();
+    }
+
+    /**
+     * @return the bytes tracing added to encoded messages.
+     */
+    public long getOverheadBytes() {
+        return overheadBytes.sum();
+    }
+
+    /**
+     * @return the total time spent encoding, in nanoseconds.
+     */
+    public long getEncodeNanos() {
+        return encodeNanos.sum();
+    }
+
+    /**
+     * @return the number of messages whose span context was extracted.
+     */
+    public long getDecodedCount() {
+        return decoded.sum();
+    }
+
+    /**
+     * @return the number of received messages that carried a span context.
+     */
+    public long getDecodedTracedCount() {
+        return decodedTraced.sum();
+    }
+
+    /**
+     * @return the total time spent extracting span contexts, in
+     * nanoseconds.
+     */
+    public long getDecodeNanos() {
+        return decodeNanos.sum();
+    }
+
+    /**
+     * @return the number of carriers no span context could be read from.
+     */
+    public long getExtractionFailureCount() {
+        return extractionFailures.sum();
+    }
+
+    /**
+     * @return the bytes of payload copied out of received messages.
+     */
+    public long getPayloadBytesCopied() {
+        return payloadBytesCopied.sum();
+    }
+
+    /**
+     * Sets every counter to zero.
+     */
+    public void reset() {
+        encoded.reset();
+        encodedTraced.reset();
+        overheadBytes.reset();
+        encodeNanos.reset();
+        decoded.reset();
+        decodedTraced.reset();
+        decodeNanos.reset();
+        extractionFailures.reset();
+        payloadBytesCopied.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "SimpleTraceMetrics(encoded=" + getEncodedCount() + ", encodedTraced=" + getEncodedTracedCount()
+            + ", overheadBytes=" + getOverheadBytes() + ", encodeNanos=" + getEncodeNanos()
+            + ", decoded=" + getDecodedCount() + ", decodedTraced=" + getDecodedTracedCount()
+            + ", decodeNanos=" + getDecodeNanos() + ", extractionFailures=" + getExtractionFailureCount()
+            + ", payloadBytesCopied=" + getPayloadBytesCopied() + ")";
+    }
+}
@@ -0,0 +1,165 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+
+/**
+ * SpanContextCache remembers the span contexts decoded from carriers, so
+ * when the same carrier reaches many subscribers in one process it is only
+ * decoded once and the span context is shared.  Set it on the
+ * {@link TraceOptions} used to decode messages.
+ *
+ * <pre>
+ * SpanContextCache cache = new SpanContextCache(1024, 5000);
+ * TraceOptions options = new TraceOptions.Builder().spanContextCache(cache).build();
+ * </pre>
+ *
+ * The cache is a fixed size table indexed by a hash of the carrier bytes.
+ * A new carrier replaces whatever was in its slot, and entries older than
+ * the time to live are decoded again.  Lookups compare the carrier bytes,
+ * so a hash collision is a miss, never a wrong span context.  The cache is
+ * thread safe and lock free.  Only carriers in the message payload are
+ * cached, not those in headers or the legacy format.
+ */
+public final class SpanContextCache {
+
+    private static final class Entry {
+        final int hash;
+        final Tracer tracer;
+        final TraceCodec codec;
+        final byte[] carrier;
+        final SpanContext spanContext;
+        final long expires;
+
+        Entry(int hash, Tracer tracer, TraceCodec codec, byte[] carrier, SpanContext spanContext, long expires) {
+            this.hash = hash;
+            this.tracer = tracer;
+            this.codec = codec;
+            this.carrier = carrier;
+            this.spanContext = spanContext;
+            this.expires = expires;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> table;
+    private final int mask;
+    private final long ttlNanos;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a cache.
+     * @param size the number of span contexts kept, rounded up to a power
+     * of two
+     * @param ttlMillis how long a span context is kept, 0 to keep it until
+     * it is replaced
+     */
+    public SpanContextCache(int size, long ttlMillis) {
+        if (size <= 0 || size > (1 << 30)) {
+            throw new IllegalArgumentException("size must be between 1 and 2^30");
+        }
+        if (ttlMillis < 0) {
+            throw new IllegalArgumentException("ttlMillis cannot be negative");
+        }
+        int n = Integer.highestOneBit(size);
+        if (n < size) {
+            n <<= 1;
+        }
+        this.table = new AtomicReferenceArray<>(n);
+        this.mask = n - 1;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Returns the cached span context for a carrier, decoding and caching
+     * it on a miss.
+     */
+    SpanContext decode(Tracer tracer, TraceCodec codec, byte[] data, int offset, int length) {
+        int hash = hash(data, offset, length) * 31 + codec.id();
+        int index = (hash ^ (hash >>> 16)) & mask;
+        long now = ttlNanos > 0 ? System.nanoTime() : 0;
+
+        Entry e = table.get(index);
+        if (e != null && e.hash == hash && e.tracer == tracer && e.codec == codec
+                && (ttlNanos == 0 || now - e.expires < 0) && equal(e.carrier, data, offset, length)) {
+            hits.increment();
+            return e.spanContext;
+        }
+
+        misses.increment();
+        SpanContext sc = codec.decode(tracer, data, offset, length);
+        if (sc != null) {
+            byte[] carrier = new byte[length];
+            System.arraycopy(data, offset, carrier, 0, length);
+            table.set(index, new Entry(hash, tracer, codec, carrier, sc, now + ttlNanos));
+        }
+        return sc;
+    }
+
+    private static int hash(byte[] data, int offset, int length) {
+        int h = 1;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + data[i];
+        }
+        return h;
+    }
+
+    private static boolean equal(byte[] carrier, byte[] data, int offset, int length) {
+        if (carrier.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (carrier[i] != data[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes every span context from the cache.
+     */
+    public void clear() {
+        for (int i = 0; i < table.length(); i++) {
+            table.set(i, null);
+        }
+    }
+
+    /**
+     * @return the number of span contexts the cache can hold.
+     */
+    public int getSize() {
+        return table.length();
+    }
+
+    /**
+     * @return the number of lookups that found a span context.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups that had to decode the carrier.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,67 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.util.Map;
+
+import io.opentracing.SpanContext;
+
+/**
+ * A SpanContextInspector reads what the OpenTracing API does not expose
+ * about a tracer's span contexts.  The core library does not depend on a
+ * tracer, so tracer modules provide an inspector as a service, listed in
+ * {@code META-INF/services/io.nats.client.not.SpanContextInspector}.  The
+ * first one found on the class path is used; without one every span context
+ * is treated as sampled.
+ *
+ * Inspectors must be thread safe.
+ */
+public interface SpanContextInspector {
+
+    /**
+     * The inspector for span contexts of unknown tracers.
+     */
+    SpanContextInspector GENERIC = new SpanContextInspector() {};
+
+    /**
+     * Checks the sampling decision of a span context.
+     * @param spanContext the span context
+     * @return true if the span context is sampled, the default is true
+     */
+    default boolean isSampled(SpanContext spanContext) {
+        return true;
+    }
+
+    /**
+     * Hashes the trace id of a span context.  The default hashes
+     * {@link SpanContext#toTraceId()}, which allocates a string.
+     * @param spanContext the span context
+     * @return the hash
+     */
+    default int traceHash(SpanContext spanContext) {
+        String id = spanContext.toTraceId();
+        return id == null ? 0 : id.hashCode();
+    }
+
+    /**
+     * Copies a span context with different baggage, used to enforce a
+     * {@link BaggageBudget}.  The default does not support it.
+     * @param spanContext the span context
+     * @param baggage the baggage of the copy
+     * @return the copy, or null if the span context cannot be copied
+     */
+    default SpanContext withBaggage(SpanContext spanContext, Map<String, String> baggage) {
+        return null;
+    }
+}
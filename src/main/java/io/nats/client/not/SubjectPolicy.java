@@ -0,0 +1,335 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SubjectPolicy decides by NATS subject whether messages are traced, and
+ * how often new traces are started for them.  Rules are keyed by subject
+ * patterns that may use the {@code *} and {@code >} wildcards, and are set
+ * on the {@link TraceOptions} used to encode and decode messages.
+ *
+ * <pre>
+ * SubjectPolicy policy = new SubjectPolicy.Builder()
+ *     .add("orders.&gt;", SubjectPolicy.Rule.sample(0.1))
+ *     .add("metrics.*", SubjectPolicy.Rule.OFF)
+ *     .add("payments.refund", SubjectPolicy.Rule.ALWAYS)
+ *     .build();
+ * TraceOptions options = new TraceOptions.Builder().subjectPolicy(policy).build();
+ * </pre>
+ *
+ * Messages on subjects that are not traced are sent without trace
+ * information and received without extracting it.  The sampling rate
+ * applies where a new trace would be started, messages that continue a
+ * trace follow its sampling decision.
+ *
+ * The patterns are compiled into a trie of subject tokens.  When several
+ * patterns match a subject, a literal token wins over {@code *}, which wins
+ * over {@code >}, comparing tokens from the left.  Decisions are cached in
+ * a fixed size table indexed by the subject's hash, so looking up a
+ * subject that was seen recently is a hash and a string comparison.  The
+ * policy is immutable and thread safe.
+ */
+public final class SubjectPolicy {
+
+    /**
+     * What happens to messages on a subject.
+     */
+    public static final class Rule {
+
+        /**
+         * Trace every message and start a trace for every new message.
+         */
+        public static final Rule ALWAYS = new Rule(1.0);
+
+        /**
+         * Never trace.
+         */
+        public static final Rule OFF = new Rule(0.0);
+
+        private final double rate;
+
+        private Rule(double rate) {
+            this.rate = rate;
+        }
+
+        /**
+         * Creates a rule that traces messages and starts a trace for a
+         * fraction of new messages.
+         * @param rate the fraction of new traces that are started, between
+         * 0 and 1
+         * @return the rule
+         */
+        public static Rule sample(double rate) {
+            if (!(rate >= 0.0 && rate <= 1.0)) {
+                throw new IllegalArgumentException("rate must be between 0 and 1");
+            }
+            return rate == 1.0 ? ALWAYS : new Rule(rate);
+        }
+
+        /**
+         * @return true if trace information is injected into and extracted
+         * from messages on the subject.
+         */
+        public boolean isTraced() {
+            return rate > 0.0;
+        }
+
+        /**
+         * @return the fraction of new traces that are started.
+         */
+        public double getRate() {
+            return rate;
+        }
+
+        /**
+         * Makes the sampling decision for a new trace.
+         * @return true if a trace should be started
+         */
+        public boolean sample() {
+            return rate >= 1.0 || (rate > 0.0 && ThreadLocalRandom.current().nextDouble() < rate);
+        }
+
+        @Override
+        public String toString() {
+            return rate >= 1.0 ? "ALWAYS" : rate <= 0.0 ? "OFF" : "sample(" + rate + ")";
+        }
+    }
+
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<>();
+        Node star;
+        // The rule of the pattern ending here, and of the pattern ending
+        // with '>' here.
+        Rule rule;
+        Rule rest;
+    }
+
+    private static final class Entry {
+        final String subject;
+        final Rule rule;
+
+        Entry(String subject, Rule rule) {
+            this.subject = subject;
+            this.rule = rule;
+        }
+    }
+
+    private final Node root;
+    private final Rule otherwise;
+    private final AtomicReferenceArray<Entry> cache;
+    private final int mask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private SubjectPolicy(Builder b) {
+        this.root = b.compile();
+        this.otherwise = b.otherwise;
+        int n = Integer.highestOneBit(b.cacheSize);
+        if (n < b.cacheSize) {
+            n <<= 1;
+        }
+        this.cache = new AtomicReferenceArray<>(n);
+        this.mask = n - 1;
+    }
+
+    /**
+     * Finds the rule for a subject.
+     * @param subject the subject of a message
+     * @return the rule of the most specific matching pattern, or the
+     * default rule if none matches
+     */
+    public Rule rule(String subject) {
+        if (subject == null) {
+            return otherwise;
+        }
+        int hash = subject.hashCode();
+        int index = (hash ^ (hash >>> 16)) & mask;
+        Entry e = cache.get(index);
+        if (e != null && e.subject.equals(subject)) {
+            hits.increment();
+            return e.rule;
+        }
+
+        misses.increment();
+        Rule rule = match(root, subject, 0);
+        if (rule == null) {
+            rule = otherwise;
+        }
+        cache.set(index, new Entry(subject, rule));
+        return rule;
+    }
+
+    /**
+     * Matches the subject from a token start against the trie, trying the
+     * literal token, then '*', then '>'.
+     */
+    private static Rule match(Node node, String subject, int start) {
+        int end = subject.indexOf('.', start);
+        boolean last = end < 0;
+        if (last) {
+            end = subject.length();
+        }
+
+        Node child = node.children.get(subject.substring(start, end));
+        Rule rule = next(child, subject, end, last);
+        if (rule == null) {
+            rule = next(node.star, subject, end, last);
+        }
+        return rule != null ? rule : node.rest;
+    }
+
+    private static Rule next(Node node, String subject, int end, boolean last) {
+        if (node == null) {
+            return null;
+        }
+        return last ? node.rule : match(node, subject, end + 1);
+    }
+
+    /**
+     * Removes every decision from the cache.
+     */
+    public void clearCache() {
+        for (int i = 0; i < cache.length(); i++) {
+            cache.set(i, null);
+        }
+    }
+
+    /**
+     * @return the number of lookups answered from the cache.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of lookups that matched the subject in the trie.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * SubjectPolicies are created using a Builder.
+     */
+    public static class Builder {
+        private final Map<String, Rule> rules = new LinkedHashMap<>();
+        private Rule otherwise = Rule.ALWAYS;
+        private int cacheSize = 1024;
+
+        /**
+         * Constructs a new Builder with the default values.
+         */
+        public Builder() {}
+
+        /**
+         * Adds a rule for the subjects matching a pattern.  A later rule for
+         * the same pattern replaces the earlier one.
+         * @param pattern a subject, whose tokens may be {@code *} to match
+         * any one token, and whose last token may be {@code >} to match one
+         * or more tokens
+         * @param rule the rule
+         * @return the Builder for chaining
+         */
+        public Builder add(String pattern, Rule rule) {
+            if (pattern == null) {
+                throw new IllegalArgumentException("pattern cannot be null");
+            }
+            if (rule == null) {
+                throw new IllegalArgumentException("rule cannot be null");
+            }
+            String[] tokens = pattern.split("\\.", -1);
+            for (int i = 0; i < tokens.length; i++) {
+                String token = tokens[i];
+                if (token.isEmpty() || (token.length() > 1 && (token.contains("*") || token.contains(">")))
+                        || (token.equals(">") && i != tokens.length - 1)) {
+                    throw new IllegalArgumentException("invalid subject pattern: " + pattern);
+                }
+            }
+            rules.put(pattern, rule);
+            return this;
+        }
+
+        /**
+         * Sets the rule for subjects that match no pattern, the default is
+         * {@link Rule#ALWAYS}.
+         * @param rule the rule
+         * @return the Builder for chaining
+         */
+        public Builder otherwise(Rule rule) {
+            if (rule == null) {
+                throw new IllegalArgumentException("rule cannot be null");
+            }
+            this.otherwise = rule;
+            return this;
+        }
+
+        /**
+         * Sets the number of subjects whose decisions are cached, rounded up
+         * to a power of two.  The default is 1024.
+         * @param cacheSize the cache size
+         * @return the Builder for chaining
+         */
+        public Builder cacheSize(int cacheSize) {
+            if (cacheSize <= 0 || cacheSize > (1 << 30)) {
+                throw new IllegalArgumentException("cacheSize must be between 1 and 2^30");
+            }
+            this.cacheSize = cacheSize;
+            return this;
+        }
+
+        /**
+         * Builds the SubjectPolicy.
+         * @return the new policy
+         */
+        public SubjectPolicy build() {
+            return new SubjectPolicy(this);
+        }
+
+        /**
+         * Compiles the patterns into a trie.
+         */
+        private Node compile() {
+            Node root = new Node();
+            for (Map.Entry<String, Rule> e : rules.entrySet()) {
+                Node node = root;
+                for (String token : e.getKey().split("\\.", -1)) {
+                    if (token.equals(">")) {
+                        node.rest = e.getValue();
+                        node = null;
+                        break;
+                    }
+                    if (token.equals("*")) {
+                        if (node.star == null) {
+                            node.star = new Node();
+                        }
+                        node = node.star;
+                    } else {
+                        node = node.children.computeIfAbsent(token, t -> new Node());
+                    }
+                }
+                if (node != null) {
+                    node.rule = e.getValue();
+                }
+            }
+            return root;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.nio.ByteBuffer;
+
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+
+/**
+ * A TraceCodec serializes span contexts into the carrier section of a
+ * traced message.  The codec used to encode a message is recorded in the
+ * framing header by its id, so receivers pick the matching codec when
+ * decoding.  Set the codec with {@link TraceOptions.Builder#codec(TraceCodec)}.
+ *
+ * Codecs must be thread safe.
+ */
+public interface TraceCodec {
+
+    /**
+     * The default codec, which uses the tracer's binary format.
+     */
+    TraceCodec BINARY = new BinaryTraceCodec();
+
+    /**
+     * The largest codec id that fits in the framing header.
+     */
+    int MAX_ID = 7;
+
+    /**
+     * @return the id written into the framing header, between 0 and
+     * {@link #MAX_ID}.  Id 0 is used by {@link #BINARY}.
+     */
+    int id();
+
+    /**
+     * Writes the span context into the buffer, starting at its position and
+     * leaving the position just past the written bytes.
+     * 
+     * @param tracer the tracer that created the span context
+     * @param spanContext the span context to write
+     * @param buffer the buffer to write to
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     */
+    void encode(Tracer tracer, SpanContext spanContext, ByteBuffer buffer);
+
+    /**
+     * Reads a span context.
+     * 
+     * @param tracer the tracer that will use the span context
+     * @param data the array holding the encoded span context
+     * @param offset the offset of the span context in data
+     * @param length the number of bytes encoded
+     * @return the span context, or null if it could not be read
+     */
+    SpanContext decode(Tracer tracer, byte[] data, int offset, int length);
+}
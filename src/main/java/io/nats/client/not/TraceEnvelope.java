@@ -0,0 +1,135 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import io.nats.client.Message;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+
+/**
+ * A decoded envelope, several records published in one NATS message behind
+ * a single span context.  Envelopes are created with
+ * {@link Not#decodeEnvelope(Tracer, Message)}.  The span context is
+ * extracted once and shared by every record.
+ *
+ * Iterating gives a {@link TraceMessage} for each record, with the subject,
+ * reply to and headers of the NATS message.  Records are not copied until
+ * {@link TraceMessage#getData()} is called.  A message that is not an
+ * envelope decodes as an envelope with a single record.
+ */
+public class TraceEnvelope implements Iterable<TraceMessage> {
+    private final TraceMessage message;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int count;
+
+    TraceEnvelope(TraceMessage message) {
+        this.message = message;
+
+        if (!message.isEnvelope()) {
+            offsets = null;
+            lengths = null;
+            count = 1;
+            return;
+        }
+
+        byte[] data = message.getRawData();
+        int pos = message.getPayloadOffset();
+        int end = pos + message.getPayloadLength();
+        int n = end - pos >= 4 ? WireFormat.readInt(data, pos) : 0;
+        pos += 4;
+
+        // A record takes at least four bytes, so a corrupt count can't
+        // make us allocate more than the message size.
+        n = Math.max(0, Math.min(n, (end - pos) / 4));
+        offsets = new int[n];
+        lengths = new int[n];
+        int i = 0;
+        while (i < n && end - pos >= 4) {
+            int len = WireFormat.readInt(data, pos);
+            pos += 4;
+            if (len < 0 || len > end - pos) {
+                break;
+            }
+            offsets[i] = pos;
+            lengths[i] = len;
+            pos += len;
+            i++;
+        }
+        // Malformed trailing records are ignored.
+        count = i;
+    }
+
+    /**
+     * Gets the span context shared by all the records.
+     * @return a span context, null if the message did not contain trace
+     * information.
+     */
+    public SpanContext getSpanContext() {
+        return message.getSpanContext();
+    }
+
+    /**
+     * @return true if the publisher marked the envelope as not sampled.
+     */
+    public boolean isUnsampled() {
+        return message.isUnsampled();
+    }
+
+    /**
+     * @return the number of records.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Gets a record.
+     * @param index the index of the record
+     * @return the record as a trace message
+     * @throws IndexOutOfBoundsException if there is no such record
+     */
+    public TraceMessage get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("no record " + index);
+        }
+        if (offsets == null) {
+            return message;
+        }
+        return new TraceMessage(message, offsets[index], lengths[index]);
+    }
+
+    @Override
+    public Iterator<TraceMessage> iterator() {
+        return new Iterator<TraceMessage>() {
+            int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < count;
+            }
+
+            @Override
+            public TraceMessage next() {
+                if (next >= count) {
+                    throw new NoSuchElementException();
+                }
+                return get(next++);
+            }
+        };
+    }
+}
@@ -13,38 +13,134 @@
 
 package io.nats.client.not;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+
+import io.nats.client.Connection;
 import io.nats.client.Message;
 import io.nats.client.Subscription;
+import io.nats.client.impl.Headers;
+import io.nats.client.impl.NatsJetStreamMetaData;
+import io.nats.client.support.Status;
 import io.opentracing.SpanContext;
 import io.opentracing.Tracer;
 import io.opentracing.propagation.Format;
 
+/**
+ * A NATS message that may carry trace information.  Trace messages are
+ * created with {@link Not#decode(Tracer, Message)}, or lazily with
+ * {@link Not#decodeLazy(Tracer, Message)}.
+ *
+ * A trace message keeps a reference to the raw message data and only copies
+ * the payload when {@link #getData()} is called, {@link #getDataBuffer()}
+ * gives a read only view of the payload without copying.  A lazily decoded
+ * trace message also defers extracting the span context until it is needed,
+ * the payload itself is located from the framing header without the tracer.
+ * Span contexts propagated in NATS message headers, see
+ * {@link Not#inject(Tracer, SpanContext, Headers)}, are extracted from the
+ * headers and leave the payload as it was sent.
+ * Trace messages are not thread safe.
+ */
 public class TraceMessage implements io.nats.client.Message {
     private Message message;
+    private Tracer tracer;
+    private TraceOptions options;
+    private Headers headers;
+    private byte[] rawPayload;
+    private int codecId;
+    private int carrierOffset;
+    private int carrierLength;
+    private long sentTimestamp;
+    private long transitNanos;
+    private int offset;
+    private int length;
+    private boolean legacy;
+    private boolean unsampled;
+    private boolean envelope;
     private byte[] payload;
     private SpanContext spanContext;
+    private boolean extracted;
 
     /**
      * Creates a trace message from a NATS message payload an tracer.
-     * 
+     *
      * @param tracer
      * @param rawPayload
      */
     TraceMessage(Tracer tracer, byte[] rawPayload) {
-        if (rawPayload == null) {
-            spanContext = null;
-            payload = null;
-        }
+        this(tracer, rawPayload, TraceOptions.DEFAULT, false);
+    }
 
-        // Use a carrier to deserialize the encoded message.
-        // The received message byte array has |carrier|payload|
-        Not.Carrier c = new Not.Carrier(rawPayload);
-        spanContext = tracer.extract(Format.Builtin.BINARY, c);
-        if (spanContext != null) {
-            payload = c.getRemaining();
-        } else {
-            // There's no trace data in this message
-            payload = rawPayload;
+    /**
+     * Creates a trace message from a NATS message payload an tracer.
+     *
+     * @param tracer
+     * @param rawPayload
+     * @param options options controlling the decoding.
+     * @param lazy if true, extraction is deferred until the span context
+     * is first requested.
+     */
+    TraceMessage(Tracer tracer, byte[] rawPayload, TraceOptions options, boolean lazy) {
+        this(tracer, null, rawPayload, options, lazy);
+    }
+
+    private TraceMessage(Tracer tracer, Message msg, byte[] rawPayload, TraceOptions options, boolean lazy) {
+        reset(tracer, msg, rawPayload, options, lazy);
+    }
+
+    /**
+     * Creates an empty trace message, to be filled in with
+     * {@link #reset(Tracer, Message, TraceOptions, boolean)}.
+     */
+    TraceMessage() {
+    }
+
+    /**
+     * Reuses this trace message for another NATS message, so a thread
+     * decoding many messages can keep a single instance.
+     * @param tracer The OpenTracing tracer
+     * @param msg a NATS message payload
+     * @param options options controlling the decoding.
+     * @param lazy if true, extraction is deferred.
+     */
+    void reset(Tracer tracer, Message msg, TraceOptions options, boolean lazy) {
+        reset(tracer, msg, msg.getData(), options, lazy);
+    }
+
+    private void reset(Tracer tracer, Message msg, byte[] rawPayload, TraceOptions options, boolean lazy) {
+        this.tracer = tracer;
+        this.message = msg;
+        this.rawPayload = rawPayload;
+        this.options = options;
+        this.headers = msg != null && msg.hasHeaders() ? msg.getHeaders() : null;
+        this.codecId = 0;
+        this.carrierOffset = 0;
+        this.carrierLength = 0;
+        this.sentTimestamp = -1;
+        this.transitNanos = -1;
+        this.offset = 0;
+        this.length = 0;
+        this.legacy = false;
+        this.unsampled = false;
+        this.envelope = false;
+        this.payload = null;
+        this.spanContext = null;
+        this.extracted = false;
+        boolean timestamped = locate();
+        if (!legacy && msg != null && !options.isTraced(msg.getSubject())) {
+            // The subject is not traced, leave the span context null and
+            // keep its latency out of the recorder.
+            extracted = true;
+        } else if (timestamped) {
+            recordTransit();
+        }
+        if (!lazy) {
+            extract();
         }
     }
 
@@ -54,8 +150,180 @@ public class TraceMessage implements io.nats.client.Message {
      * @param msg a NATS message payload
      */
     TraceMessage(Tracer tracer, Message msg) {
-        this(tracer, msg.getData());
-        message = msg;
+        this(tracer, msg, TraceOptions.DEFAULT, false);
+    }
+
+    /**
+     * Creates a trace message.  Use Not.decode or Not.decodeLazy instead.
+     * @param tracer The OpenTracing tracer
+     * @param msg a NATS message payload
+     * @param options options controlling the decoding.
+     * @param lazy if true, extraction is deferred.
+     */
+    TraceMessage(Tracer tracer, Message msg, TraceOptions options, boolean lazy) {
+        this(tracer, msg, msg.getData(), options, lazy);
+    }
+
+    /**
+     * Creates a view of one record of an envelope.  The view shares the
+     * envelope's span context and raw data.
+     * @param envelope the trace message holding the envelope
+     * @param offset the offset of the record in the raw data
+     * @param length the length of the record
+     */
+    TraceMessage(TraceMessage envelope, int offset, int length) {
+        this.tracer = envelope.tracer;
+        this.message = envelope.message;
+        this.options = envelope.options;
+        this.rawPayload = envelope.rawPayload;
+        this.codecId = envelope.codecId;
+        this.unsampled = envelope.unsampled;
+        this.sentTimestamp = envelope.sentTimestamp;
+        this.transitNanos = envelope.transitNanos;
+        this.spanContext = envelope.getSpanContext();
+        this.extracted = true;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * @return the raw data of the NATS message.
+     */
+    byte[] getRawData() {
+        return rawPayload;
+    }
+
+    /**
+     * @return the offset of the payload in the raw data.
+     */
+    int getPayloadOffset() {
+        if (legacy) {
+            extract();
+        }
+        return offset;
+    }
+
+    /**
+     * @return the length of the payload in the raw data.
+     */
+    int getPayloadLength() {
+        if (legacy) {
+            extract();
+        }
+        return length;
+    }
+
+    /**
+     * Finds the carrier and payload from the framing header.  This only
+     * looks at a few bytes, the tracer is not involved.
+     * @return true if the framing header says a send time follows it.
+     */
+    private boolean locate() {
+        if (rawPayload == null) {
+            return false;
+        }
+
+        if (WireFormat.isFramed(rawPayload)) {
+            int len = WireFormat.carrierLength(rawPayload);
+            if (len >= 0) {
+                codecId = WireFormat.codecId(rawPayload);
+                unsampled = WireFormat.isUnsampled(rawPayload);
+                envelope = WireFormat.isEnvelope(rawPayload);
+                carrierOffset = WireFormat.carrierOffset(rawPayload);
+                carrierLength = len;
+                offset = carrierOffset + len;
+                length = rawPayload.length - offset;
+                return WireFormat.hasTimestamp(rawPayload);
+            }
+        }
+
+        if (options.isAcceptLegacyFormat()) {
+            // The payload boundary of the legacy format is only known
+            // once the tracer has parsed the carrier.
+            legacy = true;
+            return false;
+        }
+
+        // There's no trace data in the payload, but there may be some in
+        // the headers.
+        offset = 0;
+        length = rawPayload.length;
+        return false;
+    }
+
+    /**
+     * Reads the send time and works out how long the message took to
+     * arrive, recording it if the options have a recorder.
+     */
+    private void recordTransit() {
+        sentTimestamp = WireFormat.timestamp(rawPayload);
+        transitNanos = WireFormat.now() - sentTimestamp;
+        LatencyRecorder recorder = options.getLatencyRecorder();
+        if (recorder != null) {
+            recorder.record(message != null ? message.getSubject() : null, transitNanos);
+        }
+    }
+
+    /**
+     * Extracts the span context, once, telling the metrics.  For the legacy
+     * format this also locates the start of the payload within the raw
+     * data.
+     */
+    private void extract() {
+        if (extracted) {
+            return;
+        }
+        extracted = true;
+
+        TraceMetrics metrics = options.getMetrics();
+        if (metrics == TraceMetrics.NOOP) {
+            extractSpanContext();
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            extractSpanContext();
+        } catch (RuntimeException e) {
+            // The codec or the tracer could not read the carrier.
+            metrics.extractionFailed();
+            throw e;
+        }
+        metrics.decoded(spanContext != null, System.nanoTime() - start);
+        if (spanContext == null && carrierLength > 0) {
+            metrics.extractionFailed();
+        }
+    }
+
+    private void extractSpanContext() {
+        if (!legacy) {
+            if (carrierLength > 0) {
+                TraceCodec codec = options.getCodec(codecId);
+                if (codec != null) {
+                    SpanContextCache cache = options.getSpanContextCache();
+                    spanContext = cache != null
+                        ? cache.decode(tracer, codec, rawPayload, carrierOffset, carrierLength)
+                        : codec.decode(tracer, rawPayload, carrierOffset, carrierLength);
+                }
+            } else if (offset == 0 && headers != null) {
+                spanContext = tracer.extract(Format.Builtin.TEXT_MAP, new Not.HeadersCarrier(headers));
+            }
+            return;
+        }
+
+        // Use a carrier to deserialize the encoded message.
+        // The received message byte array has |carrier|payload|
+        Not.Carrier c = new Not.Carrier(rawPayload);
+        spanContext = tracer.extract(Format.Builtin.BINARY, c);
+        if (spanContext != null) {
+            offset = c.buffer.position();
+        } else {
+            // There's no trace data in the payload
+            offset = 0;
+            if (headers != null) {
+                spanContext = tracer.extract(Format.Builtin.TEXT_MAP, new Not.HeadersCarrier(headers));
+            }
+        }
+        length = rawPayload.length - offset;
     }
 
     /**
@@ -64,9 +332,91 @@ public class TraceMessage implements io.nats.client.Message {
      * inforamtion.
      */
     public SpanContext getSpanContext() {
+        extract();
         return spanContext;
     }
 
+    /**
+     * Checks if the publisher marked this message as not sampled, see
+     * {@link TraceOptions.Unsampled#MARKER}.  Such messages have no span
+     * context, receivers should not start new traces for them.
+     * @return true if the message was marked as not sampled.
+     */
+    public boolean isUnsampled() {
+        return unsampled;
+    }
+
+    /**
+     * Gets the time the message was sent, if the publisher wrote it, see
+     * {@link TraceOptions.Builder#timestamps()}.
+     * @return the send time in nanoseconds since the epoch, or -1 if the
+     * message has none or its subject is not traced.
+     */
+    public long getSentTimestamp() {
+        return sentTimestamp;
+    }
+
+    /**
+     * Gets how long the message took from being encoded to being decoded.
+     * Between hosts this depends on their clocks being synchronized, and
+     * can even be negative.
+     * @return the transit time in nanoseconds, or -1 if the message has no
+     * send time or its subject is not traced.
+     */
+    public long getTransitNanos() {
+        return transitNanos;
+    }
+
+    /**
+     * Checks if the message is an envelope holding several records, see
+     * {@link Not#encodeEnvelope(Tracer, SpanContext, java.util.List)}.  The
+     * payload of an envelope is the encoded records, use
+     * {@link Not#decodeEnvelope(Tracer, Message)} to read them.
+     * @return true if the message is an envelope.
+     */
+    public boolean isEnvelope() {
+        return envelope;
+    }
+
+    /**
+     * Gets a read only view of the payload, backed by the data of the
+     * received NATS message.  No bytes are copied.
+     * @return the payload, null if the message had no data.
+     */
+    public ByteBuffer getDataBuffer() {
+        if (legacy) {
+            extract();
+        }
+        if (rawPayload == null) {
+            return null;
+        }
+        return ByteBuffer.wrap(rawPayload, offset, length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets a stream over the payload, positioned just after the trace
+     * information and backed by the data of the received NATS message.
+     * No bytes are copied.
+     * @return the payload stream, empty if the message had no data.
+     */
+    public InputStream getDataStream() {
+        if (legacy) {
+            extract();
+        }
+        if (rawPayload == null) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        return new ByteArrayInputStream(rawPayload, offset, length);
+    }
+
+    /**
+     * Gets a channel over the payload.  See {@link #getDataStream()}.
+     * @return the payload channel, empty if the message had no data.
+     */
+    public ReadableByteChannel getDataChannel() {
+        return Channels.newChannel(getDataStream());
+    }
+
     /*
      *  NATS Message overrides
      */
@@ -80,11 +430,54 @@ public class TraceMessage implements io.nats.client.Message {
         return message.getReplyTo();
     }
 
+    @Override
+    public boolean hasHeaders() {
+        return message.hasHeaders();
+    }
+
+    @Override
+    public Headers getHeaders() {
+        return message.getHeaders();
+    }
+
+    @Override
+    public boolean isStatusMessage() {
+        return message.isStatusMessage();
+    }
+
+    @Override
+    public Status getStatus() {
+        return message.getStatus();
+    }
+
+    /**
+     * Gets the payload of the message, without trace information.  The
+     * payload is copied out of the raw message data on the first call
+     * if the message carried trace information.
+     * @return the payload, null if there is none.
+     */
     @Override
     public byte[] getData() {
+        if (legacy) {
+            extract();
+        }
+        if (payload == null && rawPayload != null) {
+            if (offset == 0) {
+                payload = rawPayload;
+            } else if (length > 0) {
+                payload = new byte[length];
+                System.arraycopy(rawPayload, offset, payload, 0, length);
+                options.getMetrics().payloadCopied(length);
+            }
+        }
         return payload;
     }
 
+    @Override
+    public boolean isUtf8mode() {
+        return message.isUtf8mode();
+    }
+
     @Override
     public Subscription getSubscription() {
         return message.getSubscription();
@@ -94,4 +487,44 @@ public class TraceMessage implements io.nats.client.Message {
 	public String getSID() {
 		return message.getSID();
 	}
-}
\ No newline at end of file
+
+    @Override
+    public Connection getConnection() {
+        return message.getConnection();
+    }
+
+    @Override
+    public NatsJetStreamMetaData metaData() {
+        return message.metaData();
+    }
+
+    @Override
+    public void ack() {
+        message.ack();
+    }
+
+    @Override
+    public void ackSync(Duration timeout) throws TimeoutException, InterruptedException {
+        message.ackSync(timeout);
+    }
+
+    @Override
+    public void nak() {
+        message.nak();
+    }
+
+    @Override
+    public void term() {
+        message.term();
+    }
+
+    @Override
+    public void inProgress() {
+        message.inProgress();
+    }
+
+    @Override
+    public boolean isJetStream() {
+        return message.isJetStream();
+    }
+}
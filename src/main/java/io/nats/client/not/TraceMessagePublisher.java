@@ -0,0 +1,414 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+import io.opentracing.tag.Tags;
+
+/**
+ * TraceMessagePublisher is a Reactive Streams publisher of the trace
+ * messages received on a NATS subject, for consumers that need
+ * backpressure.
+ *
+ * <pre>
+ * TraceMessagePublisher publisher = new TraceMessagePublisher.Builder(nc, tracer, "orders.&gt;")
+ *     .bufferSize(256)
+ *     .build();
+ * Flux.from(publisher).map(tm -&gt; process(tm.getData())).subscribe();
+ * </pre>
+ *
+ * Each subscriber gets its own NATS subscription, and a daemon thread that
+ * takes messages from it only while the subscriber has outstanding demand.
+ * Demand is accounted once for each batch the subscriber requests rather
+ * than for each message.  Messages wait in the NATS subscription, whose
+ * pending limits are set from {@link Builder#bufferSize(int)} and
+ * {@link Builder#bufferBytes(long)}; NATS has no flow control to the
+ * server, so once a slow subscriber fills the buffer further messages are
+ * dropped and counted, see {@link #getDroppedCount()}.
+ *
+ * Messages are decoded lazily.  When a message carries a span context a
+ * consumer span is started as its child, and is active while
+ * {@code onNext} runs, so synchronous operators downstream see it as the
+ * tracer's active span.  Asynchronous stages can continue the trace from
+ * {@link TraceMessage#getSpanContext()}.  The publisher can be subscribed
+ * to any number of times.  On Java 9 and later,
+ * {@code org.reactivestreams.FlowAdapters} turns it into a
+ * {@code java.util.concurrent.Flow.Publisher}.
+ */
+public class TraceMessagePublisher implements Publisher<TraceMessage> {
+
+    // How often a waiting subscription thread checks that it is still
+    // subscribed.
+    private static final Duration POLL_INTERVAL = Duration.ofMillis(100);
+
+    private final Connection nc;
+    private final Tracer tracer;
+    private final String subject;
+    private final String queueName;
+    private final TraceOptions options;
+    private final String operationName;
+    private final int bufferSize;
+    private final long bufferBytes;
+
+    private final Map<Drain, Boolean> active = new ConcurrentHashMap<>();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private TraceMessagePublisher(Builder b) {
+        this.nc = b.nc;
+        this.tracer = b.tracer;
+        this.subject = b.subject;
+        this.queueName = b.queueName;
+        this.options = b.options;
+        this.operationName = b.operationName;
+        this.bufferSize = b.bufferSize;
+        this.bufferBytes = b.bufferBytes;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super TraceMessage> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber cannot be null");
+        }
+
+        io.nats.client.Subscription sub;
+        try {
+            sub = queueName == null ? nc.subscribe(subject) : nc.subscribe(subject, queueName);
+            sub.setPendingLimits(bufferSize, bufferBytes);
+        } catch (RuntimeException e) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(e);
+            return;
+        }
+
+        Drain drain = new Drain(subscriber, sub);
+        active.put(drain, Boolean.TRUE);
+        subscriber.onSubscribe(drain);
+        Thread t = new Thread(drain, "not-publisher-" + subject);
+        t.setDaemon(true);
+        drain.thread = t;
+        t.start();
+    }
+
+    /**
+     * @return the number of messages delivered to subscribers.
+     */
+    public long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    /**
+     * @return the number of messages NATS dropped because a subscriber's
+     * buffer was full.
+     */
+    public long getDroppedCount() {
+        long n = dropped.sum();
+        for (Drain d : active.keySet()) {
+            n += d.sub.getDroppedCount();
+        }
+        return n;
+    }
+
+    /**
+     * The subscription of one subscriber, and the thread that delivers its
+     * messages.  Only that thread signals the subscriber.
+     */
+    private final class Drain implements Subscription, Runnable {
+        private final Subscriber<? super TraceMessage> subscriber;
+        private final io.nats.client.Subscription sub;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+        volatile Thread thread;
+
+        Drain(Subscriber<? super TraceMessage> subscriber, io.nats.client.Subscription sub) {
+            this.subscriber = subscriber;
+            this.sub = sub;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("request must be greater than zero");
+            } else {
+                demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            }
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            finish();
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    long n = awaitDemand();
+                    if (n == 0) {
+                        return;
+                    }
+                    long count = 0;
+                    while (count < n) {
+                        if (cancelled || invalidRequest != null) {
+                            break;
+                        }
+                        Message m;
+                        try {
+                            m = sub.nextMessage(POLL_INTERVAL);
+                        } catch (IllegalStateException e) {
+                            // Unsubscribed by cancel, or the connection closed.
+                            terminate(null);
+                            return;
+                        }
+                        if (m == null) {
+                            if (!sub.isActive()) {
+                                terminate(null);
+                                return;
+                            }
+                            continue;
+                        }
+                        deliver(m);
+                        count++;
+                    }
+                    if (n != Long.MAX_VALUE) {
+                        demand.addAndGet(-count);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                terminate(e);
+            }
+        }
+
+        /**
+         * Waits until the subscriber requests messages.
+         * @return the outstanding demand, 0 once the subscription is over
+         */
+        private long awaitDemand() {
+            while (true) {
+                if (cancelled) {
+                    return 0;
+                }
+                Throwable invalid = invalidRequest;
+                if (invalid != null) {
+                    terminate(invalid);
+                    return 0;
+                }
+                long n = demand.get();
+                if (n > 0) {
+                    return n;
+                }
+                LockSupport.park(this);
+            }
+        }
+
+        private void deliver(Message m) {
+            TraceMessage tm = Not.decodeLazy(tracer, m, options);
+            delivered.increment();
+            SpanContext sc = tm.isUnsampled() ? null : tm.getSpanContext();
+            if (sc == null) {
+                signal(tm);
+                return;
+            }
+
+            Span span = tracer.buildSpan(operationName)
+                .asChildOf(sc)
+                .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CONSUMER)
+                .withTag(Tags.MESSAGE_BUS_DESTINATION.getKey(), m.getSubject())
+                .start();
+            Scope scope = tracer.activateSpan(span);
+            try {
+                signal(tm);
+            } catch (RuntimeException | Error e) {
+                Tags.ERROR.set(span, true);
+                throw e;
+            } finally {
+                scope.close();
+                span.finish();
+            }
+        }
+
+        private void signal(TraceMessage tm) {
+            try {
+                subscriber.onNext(tm);
+            } catch (RuntimeException | Error e) {
+                // The subscriber broke the contract, stop delivering.
+                cancel();
+                throw e;
+            }
+        }
+
+        private void terminate(Throwable err) {
+            if (cancelled || !finish()) {
+                return;
+            }
+            if (err != null) {
+                subscriber.onError(err);
+            } else {
+                subscriber.onComplete();
+            }
+        }
+
+        /**
+         * Unsubscribes from NATS, once.
+         * @return true if this call unsubscribed
+         */
+        private boolean finish() {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+            active.remove(this);
+            dropped.add(sub.getDroppedCount());
+            try {
+                sub.unsubscribe();
+            } catch (IllegalStateException e) {
+                // Already closed.
+            }
+            return true;
+        }
+    }
+
+    /**
+     * TraceMessagePublishers are created using a Builder.
+     */
+    public static class Builder {
+        private final Connection nc;
+        private final Tracer tracer;
+        private final String subject;
+        private String queueName;
+        private TraceOptions options = TraceOptions.DEFAULT;
+        private String operationName = "Receive message";
+        private int bufferSize = 1024;
+        private long bufferBytes = 8 * 1024 * 1024;
+
+        /**
+         * Constructs a new Builder with the default values.
+         * @param nc the connection to subscribe with
+         * @param tracer the tracer to decode messages and start spans with
+         * @param subject the subject to subscribe to, may contain wildcards
+         */
+        public Builder(Connection nc, Tracer tracer, String subject) {
+            if (nc == null) {
+                throw new IllegalArgumentException("connection cannot be null");
+            }
+            if (tracer == null) {
+                throw new IllegalArgumentException("tracer cannot be null");
+            }
+            if (subject == null) {
+                throw new IllegalArgumentException("subject cannot be null");
+            }
+            this.nc = nc;
+            this.tracer = tracer;
+            this.subject = subject;
+        }
+
+        /**
+         * Subscribes as a member of a queue group, so subscribers share the
+         * messages with the group instead of each receiving all of them.
+         * @param queueName the queue group
+         * @return the Builder for chaining
+         */
+        public Builder queueName(String queueName) {
+            this.queueName = queueName;
+            return this;
+        }
+
+        /**
+         * Sets the options used to decode messages.
+         * @param options the trace options
+         * @return the Builder for chaining
+         */
+        public Builder traceOptions(TraceOptions options) {
+            this.options = options == null ? TraceOptions.DEFAULT : options;
+            return this;
+        }
+
+        /**
+         * Sets the operation name of the spans, the default is
+         * "Receive message".
+         * @param operationName the operation name
+         * @return the Builder for chaining
+         */
+        public Builder operationName(String operationName) {
+            this.operationName = operationName;
+            return this;
+        }
+
+        /**
+         * Sets how many messages are buffered for each subscriber that has
+         * no demand, the default is 1024.
+         * @param bufferSize the number of messages
+         * @return the Builder for chaining
+         */
+        public Builder bufferSize(int bufferSize) {
+            if (bufferSize <= 0) {
+                throw new IllegalArgumentException("bufferSize must be greater than zero");
+            }
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        /**
+         * Sets how many bytes of messages are buffered for each subscriber
+         * that has no demand, the default is 8MB.
+         * @param bufferBytes the number of bytes
+         * @return the Builder for chaining
+         */
+        public Builder bufferBytes(long bufferBytes) {
+            if (bufferBytes <= 0) {
+                throw new IllegalArgumentException("bufferBytes must be greater than zero");
+            }
+            this.bufferBytes = bufferBytes;
+            return this;
+        }
+
+        /**
+         * Builds the TraceMessagePublisher.
+         * @return the new publisher
+         */
+        public TraceMessagePublisher build() {
+            return new TraceMessagePublisher(this);
+        }
+    }
+}
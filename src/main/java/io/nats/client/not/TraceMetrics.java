@@ -0,0 +1,78 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+/**
+ * TraceMetrics is told about the work done to encode and decode trace
+ * information, so the cost of tracing can be measured.  Set an
+ * implementation on the {@link TraceOptions}.  {@link SimpleTraceMetrics}
+ * keeps counters in process, other implementations can forward to a
+ * metrics library such as Micrometer.
+ *
+ * Methods are called on publishing and receiving threads, often many at
+ * once, and must be thread safe and cheap.
+ */
+public interface TraceMetrics {
+
+    /**
+     * Metrics that ignore everything, the default.  Encoding and decoding
+     * skip timing entirely when these are in use.
+     */
+    TraceMetrics NOOP = new TraceMetrics() {
+        @Override
+        public void encoded(boolean traced, int overheadBytes, long nanos) {
+        }
+
+        @Override
+        public void decoded(boolean traced, long nanos) {
+        }
+
+        @Override
+        public void extractionFailed() {
+        }
+
+        @Override
+        public void payloadCopied(int bytes) {
+        }
+    };
+
+    /**
+     * Called after a message is encoded.
+     * @param traced true if a span context was written
+     * @param overheadBytes the bytes added to the payload, header and
+     * carrier, or the size of the headers for header propagation
+     * @param nanos how long encoding took
+     */
+    void encoded(boolean traced, int overheadBytes, long nanos);
+
+    /**
+     * Called once the span context of a received message has been
+     * extracted, when it is first needed for lazily decoded messages.
+     * @param traced true if the message carried a span context
+     * @param nanos how long extraction took
+     */
+    void decoded(boolean traced, long nanos);
+
+    /**
+     * Called when a message had a carrier but no span context could be
+     * read from it.
+     */
+    void extractionFailed();
+
+    /**
+     * Called when a payload is copied out of the received data.
+     * @param bytes the number of bytes copied
+     */
+    void payloadCopied(int bytes);
+}
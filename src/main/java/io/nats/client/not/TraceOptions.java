@@ -0,0 +1,378 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+/**
+ * TraceOptions control how {@link Not} encodes and decodes trace
+ * information.  Options are immutable, create them with a
+ * {@link TraceOptions.Builder} and share them between calls.
+ *
+ * <pre>
+ * TraceOptions options = new TraceOptions.Builder().acceptLegacyFormat().build();
+ * TraceMessage tm = Not.decode(tracer, msg, options);
+ * </pre>
+ */
+public class TraceOptions {
+
+    static final TraceOptions DEFAULT = new TraceOptions.Builder().build();
+
+    /**
+     * What to send for span contexts that are not sampled.
+     */
+    public enum Unsampled {
+        /**
+         * Encode the span context like any other, so receivers continue
+         * the trace unsampled.
+         */
+        INJECT,
+        /**
+         * Send only the header, marked as not sampled.  Receivers get no
+         * span context, see {@link TraceMessage#isUnsampled()}.  With the
+         * legacy format this is the same as {@link #SKIP}.
+         */
+        MARKER,
+        /**
+         * Send the payload as is, receivers see an untraced message.
+         */
+        SKIP
+    }
+
+    private final boolean legacyFormat;
+    private final boolean acceptLegacyFormat;
+    private final TraceCodec codec;
+    private final TraceCodec[] codecs;
+    private final Unsampled unsampled;
+    private final SpanContextCache spanContextCache;
+    private final boolean timestamps;
+    private final LatencyRecorder latencyRecorder;
+    private final TraceMetrics metrics;
+    private final SubjectPolicy subjectPolicy;
+    private final BaggageBudget baggageBudget;
+
+    private TraceOptions(Builder b) {
+        this.metrics = b.metrics;
+        this.baggageBudget = b.baggageBudget;
+        this.subjectPolicy = b.subjectPolicy;
+        this.timestamps = b.timestamps;
+        this.latencyRecorder = b.latencyRecorder;
+        this.unsampled = b.unsampled;
+        this.spanContextCache = b.spanContextCache;
+        this.legacyFormat = b.legacyFormat;
+        this.acceptLegacyFormat = b.acceptLegacyFormat || b.legacyFormat;
+        this.codec = b.codec;
+        this.codecs = b.codecs.clone();
+        this.codecs[b.codec.id()] = b.codec;
+    }
+
+    private TraceOptions(TraceOptions o, TraceMetrics metrics) {
+        this.metrics = metrics;
+        this.baggageBudget = o.baggageBudget;
+        this.subjectPolicy = o.subjectPolicy;
+        this.timestamps = o.timestamps;
+        this.latencyRecorder = o.latencyRecorder;
+        this.unsampled = o.unsampled;
+        this.spanContextCache = o.spanContextCache;
+        this.legacyFormat = o.legacyFormat;
+        this.acceptLegacyFormat = o.acceptLegacyFormat;
+        this.codec = o.codec;
+        this.codecs = o.codecs;
+    }
+
+    /**
+     * @return these options without metrics, for encodes whose cost is
+     * recorded by the caller.
+     */
+    TraceOptions withoutMetrics() {
+        return metrics == TraceMetrics.NOOP ? this : new TraceOptions(this, TraceMetrics.NOOP);
+    }
+
+    /**
+     * @return the codec used to encode span contexts.
+     */
+    public TraceCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @param id a codec id read from the framing header.
+     * @return the codec to decode with, or null if none is registered.
+     */
+    TraceCodec getCodec(int id) {
+        return codecs[id];
+    }
+
+    /**
+     * @return what is sent for span contexts that are not sampled.
+     */
+    public Unsampled getUnsampled() {
+        return unsampled;
+    }
+
+    /**
+     * @return the cache of decoded span contexts, null if there is none.
+     */
+    public SpanContextCache getSpanContextCache() {
+        return spanContextCache;
+    }
+
+    /**
+     * @return true if encoding writes the send time into the header.
+     */
+    public boolean isTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * @return the recorder of transit times, null if there is none.
+     */
+    public LatencyRecorder getLatencyRecorder() {
+        return latencyRecorder;
+    }
+
+    /**
+     * @return the metrics told about encoding and decoding.
+     */
+    public TraceMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the policy deciding which subjects are traced, null if
+     * every subject is.
+     */
+    public SubjectPolicy getSubjectPolicy() {
+        return subjectPolicy;
+    }
+
+    /**
+     * @return the limits on encoded baggage, null if there are none.
+     */
+    public BaggageBudget getBaggageBudget() {
+        return baggageBudget;
+    }
+
+    /**
+     * @param subject a message subject, may be null
+     * @return the rule for the subject, {@link SubjectPolicy.Rule#ALWAYS}
+     * without a policy.
+     */
+    SubjectPolicy.Rule rule(String subject) {
+        return subjectPolicy == null ? SubjectPolicy.Rule.ALWAYS : subjectPolicy.rule(subject);
+    }
+
+    /**
+     * @param subject a message subject, may be null
+     * @return true if messages on the subject carry trace information.
+     */
+    boolean isTraced(String subject) {
+        return subjectPolicy == null || subjectPolicy.rule(subject).isTraced();
+    }
+
+    /**
+     * @return true if encoding writes the legacy, unframed, format.
+     */
+    public boolean isLegacyFormat() {
+        return legacyFormat;
+    }
+
+    /**
+     * @return true if decoding hands unframed messages to the tracer to look
+     * for a legacy span context.
+     */
+    public boolean isAcceptLegacyFormat() {
+        return acceptLegacyFormat;
+    }
+
+    /**
+     * TraceOptions are created using a Builder.
+     */
+    public static class Builder {
+        private boolean legacyFormat = false;
+        private boolean acceptLegacyFormat = false;
+        private TraceCodec codec = TraceCodec.BINARY;
+        private TraceCodec[] codecs = new TraceCodec[TraceCodec.MAX_ID + 1];
+        private Unsampled unsampled = Unsampled.INJECT;
+        private SpanContextCache spanContextCache;
+        private boolean timestamps = false;
+        private LatencyRecorder latencyRecorder;
+        private TraceMetrics metrics = TraceMetrics.NOOP;
+        private SubjectPolicy subjectPolicy;
+        private BaggageBudget baggageBudget;
+
+        {
+            codecs[TraceCodec.BINARY.id()] = TraceCodec.BINARY;
+        }
+
+        /**
+         * Constructs a new Builder with the default values.
+         */
+        public Builder() {}
+
+        /**
+         * Encode messages with the legacy format, where the carrier is
+         * written directly in front of the payload with no framing, and
+         * accept it when decoding.  Use this to interoperate with
+         * applications that use older versions of this library.
+         * @return the Builder for chaining
+         */
+        public Builder legacyFormat() {
+            this.legacyFormat = true;
+            return this;
+        }
+
+        /**
+         * Accept the legacy, unframed, format when decoding.  Messages
+         * without framing are passed to the tracer, which is slower and may
+         * misinterpret untraced payloads, so only turn this on while older
+         * publishers are still around.
+         * @return the Builder for chaining
+         */
+        public Builder acceptLegacyFormat() {
+            this.acceptLegacyFormat = true;
+            return this;
+        }
+
+        /**
+         * Sets the codec used to encode span contexts, it is also used to
+         * decode messages that were encoded with it.  The default is
+         * {@link TraceCodec#BINARY}.  The legacy format always uses the
+         * tracer's binary format.
+         * @param codec the codec
+         * @return the Builder for chaining
+         */
+        public Builder codec(TraceCodec codec) {
+            this.codec = checkCodec(codec);
+            return this;
+        }
+
+        /**
+         * Adds a codec for decoding, so messages from publishers that use
+         * it can be read.  {@link TraceCodec#BINARY} is always available.
+         * @param codec the codec
+         * @return the Builder for chaining
+         */
+        public Builder addCodec(TraceCodec codec) {
+            codecs[checkCodec(codec).id()] = codec;
+            return this;
+        }
+
+        /**
+         * Sets what is sent for span contexts that are not sampled.  The
+         * default, {@link Unsampled#INJECT}, always sends the span context.
+         * With a low sampling rate {@link Unsampled#MARKER} or
+         * {@link Unsampled#SKIP} make tracing close to free for the
+         * messages that are not sampled, on both sides.
+         * @param unsampled the policy
+         * @return the Builder for chaining
+         */
+        public Builder unsampled(Unsampled unsampled) {
+            if (unsampled == null) {
+                throw new IllegalArgumentException("unsampled cannot be null");
+            }
+            this.unsampled = unsampled;
+            return this;
+        }
+
+        /**
+         * Sets a cache of decoded span contexts.  When the same message
+         * reaches several subscribers in one process its span context is
+         * decoded once and shared.  The cache can be shared between
+         * options.  By default there is no cache.
+         * @param cache the cache, or null for none
+         * @return the Builder for chaining
+         */
+        public Builder spanContextCache(SpanContextCache cache) {
+            this.spanContextCache = cache;
+            return this;
+        }
+
+        /**
+         * Write the send time into the header of encoded messages, so
+         * receivers can measure how long messages take to arrive, see
+         * {@link TraceMessage#getTransitNanos()}.  This adds eight bytes to
+         * each message.  The legacy format has no send time.
+         * @return the Builder for chaining
+         */
+        public Builder timestamps() {
+            this.timestamps = true;
+            return this;
+        }
+
+        /**
+         * Records the transit time of decoded messages that carry a send
+         * time, by subject.
+         * @param recorder the recorder, or null for none
+         * @return the Builder for chaining
+         */
+        public Builder latencyRecorder(LatencyRecorder recorder) {
+            this.latencyRecorder = recorder;
+            return this;
+        }
+
+        /**
+         * Sets the metrics told about encoding and decoding, such as a
+         * {@link SimpleTraceMetrics}.  By default nothing is measured.
+         * @param metrics the metrics, or null for none
+         * @return the Builder for chaining
+         */
+        public Builder metrics(TraceMetrics metrics) {
+            this.metrics = metrics == null ? TraceMetrics.NOOP : metrics;
+            return this;
+        }
+
+        /**
+         * Sets the policy deciding by subject which messages are traced and
+         * how often new traces are started.  It applies wherever the
+         * subject is known: encoding messages with
+         * {@link Not#encodeMessage(io.opentracing.Tracer, io.opentracing.SpanContext, String, String, byte[], TraceOptions)},
+         * decoding received messages, and in the traced publisher, requester
+         * and message handler.  By default every subject is traced.
+         * @param policy the policy, or null for none
+         * @return the Builder for chaining
+         */
+        public Builder subjectPolicy(SubjectPolicy policy) {
+            this.subjectPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Sets limits on the baggage encoded into messages.  By default all
+         * baggage is encoded.
+         * @param budget the budget, or null for none
+         * @return the Builder for chaining
+         */
+        public Builder baggageBudget(BaggageBudget budget) {
+            this.baggageBudget = budget;
+            return this;
+        }
+
+        private static TraceCodec checkCodec(TraceCodec codec) {
+            if (codec == null) {
+                throw new IllegalArgumentException("codec cannot be null");
+            }
+            if (codec.id() < 0 || codec.id() > TraceCodec.MAX_ID) {
+                throw new IllegalArgumentException("codec id must be between 0 and " + TraceCodec.MAX_ID);
+            }
+            return codec;
+        }
+
+        /**
+         * Builds the TraceOptions.
+         * @return the new options
+         */
+        public TraceOptions build() {
+            return new TraceOptions(this);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import io.nats.client.Connection;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.tag.Tags;
+
+/**
+ * TracedPublisher publishes many messages under one span.  Messages are
+ * grouped in batches, each batch has a span and its span context is encoded
+ * once and copied in front of every payload in the batch.  Receivers see the
+ * batch span as the parent of their spans.
+ *
+ * <pre>
+ * try (TracedPublisher publisher = new TracedPublisher.Builder(nc, tracer).batchSize(1000).build()) {
+ *     for (byte[] payload : payloads) {
+ *         publisher.publish(subject, payload);
+ *     }
+ * }
+ * </pre>
+ *
+ * With {@link TraceOptions.Builder#timestamps()} each message still
+ * carries its own send time, it is written into its copy of the prefix.
+ * A batch ends after {@link Builder#batchSize(int)} messages or when
+ * {@link #flush()} is called.  At the end of a batch the connection is
+ * flushed once, see {@link Builder#flushTimeout(Duration)}, and the span
+ * is finished.  Messages on subjects that the options'
+ * {@link SubjectPolicy} does not trace are published as they are, outside
+ * the batch.  The sampling rate of the policy's rule for the subject of the
+ * first message of a batch decides whether the batch is sampled, batches
+ * that are not are sent as the options' {@link TraceOptions.Unsampled}
+ * policy says.
+ * TracedPublishers are not thread safe.
+ */
+public class TracedPublisher implements AutoCloseable {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Connection nc;
+    private final Tracer tracer;
+    private final TraceOptions options;
+    private final TraceOptions batchOptions;
+    private final String operationName;
+    private final int batchSize;
+    private final Duration flushTimeout;
+    private final boolean logMessages;
+
+    private ByteBuffer staging = ByteBuffer.allocate(256);
+    private int prefixLength;
+    private boolean timestamped;
+    private boolean injected;
+    private Span span;
+    private int count;
+    private long bytes;
+
+    private TracedPublisher(Builder b) {
+        this.nc = b.nc;
+        this.tracer = b.tracer;
+        this.options = b.options;
+        // The metrics are told about each message, not the batch encode.
+        this.batchOptions = b.options.withoutMetrics();
+        this.operationName = b.operationName;
+        this.batchSize = b.batchSize;
+        this.flushTimeout = b.flushTimeout;
+        this.logMessages = b.logMessages;
+    }
+
+    /**
+     * Publishes a payload as part of the current batch.
+     * @param subject the subject to publish to
+     * @param payload the message payload
+     * @throws TimeoutException if this message ends the batch and the
+     * connection could not be flushed in time
+     * @throws InterruptedException if interrupted while flushing
+     */
+    public void publish(String subject, byte[] payload) throws TimeoutException, InterruptedException {
+        publish(subject, null, payload);
+    }
+
+    /**
+     * Publishes a payload as part of the current batch.
+     * @param subject the subject to publish to
+     * @param replyTo the reply subject, may be null
+     * @param payload the message payload
+     * @throws TimeoutException if this message ends the batch and the
+     * connection could not be flushed in time
+     * @throws InterruptedException if interrupted while flushing
+     */
+    public void publish(String subject, String replyTo, byte[] payload)
+            throws TimeoutException, InterruptedException {
+        SubjectPolicy.Rule rule = options.rule(subject);
+        if (!rule.isTraced()) {
+            // Not part of the batch, the subject policy turned tracing off.
+            nc.publish(subject, replyTo, payload);
+            return;
+        }
+        TraceMetrics metrics = options.getMetrics();
+        long startNanos = metrics == TraceMetrics.NOOP ? 0 : System.nanoTime();
+        if (span == null) {
+            startBatch(rule.sample());
+        }
+
+        int len = payload == null ? 0 : payload.length;
+        byte[] data = new byte[prefixLength + len];
+        System.arraycopy(staging.array(), 0, data, 0, prefixLength);
+        if (timestamped) {
+            WireFormat.putTimestamp(data, WireFormat.now());
+        }
+        if (len > 0) {
+            System.arraycopy(payload, 0, data, prefixLength, len);
+        }
+        if (metrics != TraceMetrics.NOOP) {
+            metrics.encoded(injected, prefixLength, System.nanoTime() - startNanos);
+        }
+        nc.publish(subject, replyTo, data);
+
+        count++;
+        bytes += len;
+        if (logMessages) {
+            Map<String, Object> fields = new HashMap<>(4);
+            fields.put("event", "publish");
+            fields.put(Tags.MESSAGE_BUS_DESTINATION.getKey(), subject);
+            fields.put("size", len);
+            span.log(fields);
+        }
+
+        if (count >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Publishes every payload to a subject.
+     * @param subject the subject to publish to
+     * @param payloads the message payloads
+     * @throws TimeoutException if the connection could not be flushed in time
+     * @throws InterruptedException if interrupted while flushing
+     */
+    public void publishAll(String subject, Iterable<byte[]> payloads) throws TimeoutException, InterruptedException {
+        for (byte[] payload : payloads) {
+            publish(subject, null, payload);
+        }
+    }
+
+    /**
+     * Ends the current batch, flushing the connection unless the flush
+     * timeout was set to null, and finishing the batch span.
+     * @throws TimeoutException if the connection could not be flushed in time
+     * @throws InterruptedException if interrupted while flushing
+     */
+    public void flush() throws TimeoutException, InterruptedException {
+        if (span == null) {
+            return;
+        }
+
+        Span s = span;
+        span = null;
+        s.setTag("messages", count);
+        s.setTag("bytes", bytes);
+        count = 0;
+        bytes = 0;
+        try {
+            if (flushTimeout != null) {
+                nc.flush(flushTimeout);
+            }
+        } catch (TimeoutException | InterruptedException | RuntimeException e) {
+            Tags.ERROR.set(s, true);
+            throw e;
+        } finally {
+            s.finish();
+        }
+    }
+
+    /**
+     * Ends the current batch, see {@link #flush()}.  The connection is
+     * not closed.  If interrupted while flushing the batch span is still
+     * finished and the thread's interrupt flag is set.
+     * @throws TimeoutException if the connection could not be flushed in time
+     */
+    @Override
+    public void close() throws TimeoutException {
+        try {
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Starts the batch span and encodes its span context into the staging
+     * buffer, it is copied in front of every payload of the batch.  The
+     * send time in the prefix, if any, is replaced for each message.
+     * @param sampled false if the subject policy did not sample the batch
+     */
+    private void startBatch(boolean sampled) {
+        span = tracer.buildSpan(operationName)
+            .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_PRODUCER)
+            .start();
+        if (!sampled) {
+            Tags.SAMPLING_PRIORITY.set(span, 0);
+        }
+        while (true) {
+            staging.clear();
+            try {
+                prefixLength = Not.encode(tracer, span.context(), EMPTY, staging, batchOptions);
+                // The staging array is reused, only look at the prefix just
+                // written, an unsampled span may have written nothing.
+                byte[] prefix = staging.array();
+                timestamped = prefixLength >= WireFormat.HEADER_SIZE + WireFormat.TIMESTAMP_SIZE
+                    && WireFormat.isFramed(prefix) && WireFormat.hasTimestamp(prefix);
+                // Legacy prefixes are only written for injected span
+                // contexts, framed ones may be an unsampled marker.
+                injected = prefixLength > 0 && (options.isLegacyFormat() || !WireFormat.isUnsampled(prefix));
+                return;
+            } catch (BufferOverflowException e) {
+                staging = ByteBuffer.allocate(staging.capacity() * 2);
+            }
+        }
+    }
+
+    /**
+     * TracedPublishers are created using a Builder.
+     */
+    public static class Builder {
+        private final Connection nc;
+        private final Tracer tracer;
+        private TraceOptions options = TraceOptions.DEFAULT;
+        private String operationName = "Publish batch";
+        private int batchSize = 100;
+        private Duration flushTimeout = Duration.ofSeconds(5);
+        private boolean logMessages;
+
+        /**
+         * Constructs a new Builder with the default values.
+         * @param nc the connection to publish on
+         * @param tracer the tracer to start batch spans with
+         */
+        public Builder(Connection nc, Tracer tracer) {
+            if (nc == null) {
+                throw new IllegalArgumentException("connection cannot be null");
+            }
+            if (tracer == null) {
+                throw new IllegalArgumentException("tracer cannot be null");
+            }
+            this.nc = nc;
+            this.tracer = tracer;
+        }
+
+        /**
+         * Sets the options used to encode messages.
+         * @param options the trace options
+         * @return the Builder for chaining
+         */
+        public Builder traceOptions(TraceOptions options) {
+            this.options = options;
+            return this;
+        }
+
+        /**
+         * Sets the operation name of the batch spans, the default is
+         * "Publish batch".
+         * @param operationName the operation name
+         * @return the Builder for chaining
+         */
+        public Builder operationName(String operationName) {
+            this.operationName = operationName;
+            return this;
+        }
+
+        /**
+         * Sets the number of messages in a batch, the default is 100.
+         * @param batchSize the batch size
+         * @return the Builder for chaining
+         */
+        public Builder batchSize(int batchSize) {
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("batchSize must be greater than zero");
+            }
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * Sets how long the flush at the end of each batch waits for the
+         * server to acknowledge it, the default is 5 seconds.  Set it to
+         * null to never flush, messages are then sent as the connection's
+         * writer gets to them.
+         * @param flushTimeout how long to wait for the flush, or null
+         * @return the Builder for chaining
+         */
+        public Builder flushTimeout(Duration flushTimeout) {
+            this.flushTimeout = flushTimeout;
+            return this;
+        }
+
+        /**
+         * Sets whether each message is logged on the batch span, the
+         * default is false.  Each log costs an allocation per message, so
+         * only turn this on for small batches.
+         * @param logMessages true to log an event for each message
+         * @return the Builder for chaining
+         */
+        public Builder logMessages(boolean logMessages) {
+            this.logMessages = logMessages;
+            return this;
+        }
+
+        /**
+         * Builds the TracedPublisher.
+         * @return the new publisher
+         */
+        public TracedPublisher build() {
+            return new TracedPublisher(this);
+        }
+    }
+}
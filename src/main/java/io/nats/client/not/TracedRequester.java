@@ -0,0 +1,428 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+import io.opentracing.noop.NoopSpan;
+import io.opentracing.tag.Tags;
+
+/**
+ * TracedRequester sends traced requests without blocking.  Each request
+ * gets a client span, its span context is encoded into the request, and
+ * the returned future completes with the decoded reply.  The span finishes
+ * when the reply arrives, the request times out or the future is
+ * cancelled, so one thread can have many requests in flight.
+ *
+ * <pre>
+ * TracedRequester requester = new TracedRequester.Builder(nc, tracer).timeout(Duration.ofSeconds(2)).build();
+ * requester.request("service", payload).thenAccept(reply -&gt; handle(reply.getData()));
+ * </pre>
+ *
+ * {@link #scatterGather(List, byte[], int)} sends one request to each of
+ * many subjects under a shared parent span, and completes with the first
+ * replies.  With a {@link SubjectPolicy} in the options, requests to
+ * subjects it does not trace, and new traces it does not sample, are sent
+ * without a span or trace information.  TracedRequesters are thread safe.
+ */
+public class TracedRequester {
+
+    // Times out requests for every requester.  Cancelled timeouts are
+    // removed straight away, most requests are answered in time.
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "not-request-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final Connection nc;
+    private final Tracer tracer;
+    private final TraceOptions options;
+    private final String operationName;
+    private final String scatterOperationName;
+    private final long timeoutNanos;
+    private final boolean headers;
+
+    private TracedRequester(Builder b) {
+        this.nc = b.nc;
+        this.tracer = b.tracer;
+        this.options = b.options;
+        this.operationName = b.operationName;
+        this.scatterOperationName = b.scatterOperationName;
+        this.timeoutNanos = b.timeout.toNanos();
+        this.headers = b.headers;
+    }
+
+    /**
+     * Sends a request in a new trace.
+     * @param subject the subject to send the request to
+     * @param payload the request payload
+     * @return a future completed with the reply, or exceptionally with a
+     * TimeoutException
+     */
+    public CompletableFuture<TraceMessage> request(String subject, byte[] payload) {
+        return request(subject, payload, null);
+    }
+
+    /**
+     * Sends a request as part of a trace.
+     * @param subject the subject to send the request to
+     * @param payload the request payload
+     * @param parent the span context of the caller, null to start a trace
+     * @return a future completed with the reply, or exceptionally with a
+     * TimeoutException
+     */
+    public CompletableFuture<TraceMessage> request(String subject, byte[] payload, SpanContext parent) {
+        if (subject == null) {
+            throw new IllegalArgumentException("subject cannot be null");
+        }
+        SubjectPolicy.Rule rule = options.rule(subject);
+        boolean traced = rule.isTraced() && (parent != null || rule.sample());
+        Span span = NoopSpan.INSTANCE;
+        if (traced) {
+            Tracer.SpanBuilder builder = tracer.buildSpan(operationName)
+                .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT)
+                .withTag(Tags.MESSAGE_BUS_DESTINATION.getKey(), subject);
+            if (parent != null) {
+                builder.asChildOf(parent);
+            }
+            span = builder.start();
+        }
+
+        CompletableFuture<Message> reply;
+        try {
+            reply = traced ? send(subject, payload, span.context()) : nc.request(subject, payload);
+        } catch (RuntimeException e) {
+            fail(span, e);
+            span.finish();
+            throw e;
+        }
+
+        Request request = new Request(span, reply);
+        request.timeout = TIMER.schedule(() -> request.finish(null, new TimeoutException("no reply from " + subject)),
+            timeoutNanos, TimeUnit.NANOSECONDS);
+        reply.whenComplete((msg, err) -> {
+            if (err != null) {
+                request.finish(null, err);
+                return;
+            }
+            TraceMessage tm;
+            try {
+                tm = Not.decode(tracer, msg, options);
+            } catch (RuntimeException e) {
+                // A reply that can't be decoded fails the request, rather
+                // than leaving it to time out.
+                request.finish(null, e);
+                return;
+            }
+            request.finish(tm, null);
+        });
+        // Cancelled by the caller.
+        request.whenComplete((tm, err) -> request.cleanUp(err));
+        return request;
+    }
+
+    /**
+     * The future of a request.  The span is finished before the future
+     * completes, so callers always see it finished.
+     */
+    private static final class Request extends CompletableFuture<TraceMessage> {
+        private final Span span;
+        private final CompletableFuture<Message> reply;
+        private final AtomicBoolean done = new AtomicBoolean();
+        volatile ScheduledFuture<?> timeout;
+
+        Request(Span span, CompletableFuture<Message> reply) {
+            this.span = span;
+            this.reply = reply;
+        }
+
+        void finish(TraceMessage tm, Throwable err) {
+            if (!cleanUp(err)) {
+                return;
+            }
+            if (err != null) {
+                completeExceptionally(err);
+            } else {
+                complete(tm);
+            }
+        }
+
+        boolean cleanUp(Throwable err) {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+            ScheduledFuture<?> t = timeout;
+            if (t != null) {
+                t.cancel(false);
+            }
+            if (err != null) {
+                reply.cancel(true);
+                fail(span, err);
+            }
+            span.finish();
+            return true;
+        }
+    }
+
+    private CompletableFuture<Message> send(String subject, byte[] payload, SpanContext sc) {
+        if (headers) {
+            return nc.request(Not.encodeMessage(tracer, sc, subject, null, payload, options));
+        }
+        return nc.request(subject, Not.encode(tracer, sc, payload, options));
+    }
+
+    private static void fail(Span span, Throwable err) {
+        if (err instanceof CompletionException && err.getCause() != null) {
+            err = err.getCause();
+        }
+        Map<String, Object> fields = new HashMap<>();
+        if (err instanceof CancellationException) {
+            fields.put("event", "cancelled");
+        } else {
+            Tags.ERROR.set(span, true);
+            fields.put("event", Tags.ERROR.getKey());
+            fields.put("error.object", err);
+        }
+        span.log(fields);
+    }
+
+    /**
+     * Sends a request to every subject at once, in a new trace, see
+     * {@link #scatterGather(List, byte[], int, SpanContext)}.
+     * @param subjects the subjects to send the request to
+     * @param payload the request payload
+     * @param replies the number of replies to wait for
+     * @return a future completed with the replies
+     */
+    public CompletableFuture<List<TraceMessage>> scatterGather(List<String> subjects, byte[] payload, int replies) {
+        return scatterGather(subjects, payload, replies, null);
+    }
+
+    /**
+     * Sends a request to every subject at once, each with its own client
+     * span under one parent span.  The future completes with the first
+     * replies, in the order they arrived, as soon as there are enough; the
+     * remaining requests are then cancelled.  If too many requests fail or
+     * time out it completes with the replies there are, so callers should
+     * check the size.  The parent span is tagged with the number of
+     * requests and replies.
+     * @param subjects the subjects to send the request to
+     * @param payload the request payload
+     * @param replies the number of replies to wait for, at most the number
+     * of subjects
+     * @param parent the span context of the caller, null to start a trace
+     * @return a future completed with the replies, or exceptionally if a
+     * request could not be sent, the requests already sent are cancelled
+     */
+    public CompletableFuture<List<TraceMessage>> scatterGather(List<String> subjects, byte[] payload, int replies,
+            SpanContext parent) {
+        if (subjects == null || subjects.isEmpty()) {
+            throw new IllegalArgumentException("subjects cannot be null or empty");
+        }
+        if (replies <= 0 || replies > subjects.size()) {
+            throw new IllegalArgumentException("replies must be between 1 and the number of subjects");
+        }
+        Tracer.SpanBuilder builder = tracer.buildSpan(scatterOperationName)
+            .withTag("requests", subjects.size());
+        if (parent != null) {
+            builder.asChildOf(parent);
+        }
+        Span span = builder.start();
+
+        CompletableFuture<List<TraceMessage>> result = new CompletableFuture<>();
+        List<TraceMessage> received = new ArrayList<>(replies);
+        List<CompletableFuture<TraceMessage>> requests = new ArrayList<>(subjects.size());
+        int[] finished = new int[1];
+        AtomicBoolean done = new AtomicBoolean();
+        // Cancelled by the caller, or a request could not be sent.
+        result.whenComplete((list, err) -> gatherDone(span, requests, done, 0));
+
+        for (String subject : subjects) {
+            CompletableFuture<TraceMessage> request;
+            try {
+                request = request(subject, payload, span.context());
+            } catch (RuntimeException e) {
+                fail(span, e);
+                result.completeExceptionally(e);
+                return result;
+            }
+            request.whenComplete((tm, err) -> {
+                List<TraceMessage> gathered = null;
+                synchronized (received) {
+                    finished[0]++;
+                    if (err == null && received.size() < replies) {
+                        received.add(tm);
+                    }
+                    if (received.size() == replies || finished[0] == subjects.size()) {
+                        gathered = new ArrayList<>(received);
+                    }
+                }
+                if (gathered != null && gatherDone(span, requests, done, gathered.size())) {
+                    result.complete(gathered);
+                }
+            });
+            synchronized (requests) {
+                requests.add(request);
+                if (done.get()) {
+                    request.cancel(true);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Cancels the outstanding requests of a scatter gather and finishes its
+     * span, once.  Requests sent after this are cancelled as they are added.
+     */
+    private static boolean gatherDone(Span span, List<CompletableFuture<TraceMessage>> requests, AtomicBoolean done,
+            int replies) {
+        if (!done.compareAndSet(false, true)) {
+            return false;
+        }
+        synchronized (requests) {
+            for (CompletableFuture<TraceMessage> r : requests) {
+                r.cancel(true);
+            }
+        }
+        span.setTag("replies", replies);
+        span.finish();
+        return true;
+    }
+
+    /**
+     * Sends a request to every subject at once and waits for all of them,
+     * see {@link #scatterGather(List, byte[], int)}.
+     * @param subjects the subjects to send the request to
+     * @param payload the request payload
+     * @return a future completed with the replies
+     */
+    public CompletableFuture<List<TraceMessage>> scatterGatherAll(List<String> subjects, byte[] payload) {
+        return scatterGather(subjects, payload, subjects.size(), null);
+    }
+
+    /**
+     * TracedRequesters are created using a Builder.
+     */
+    public static class Builder {
+        private final Connection nc;
+        private final Tracer tracer;
+        private TraceOptions options = TraceOptions.DEFAULT;
+        private String operationName = "Request";
+        private String scatterOperationName = "Scatter gather";
+        private Duration timeout = Duration.ofSeconds(5);
+        private boolean headers;
+
+        /**
+         * Constructs a new Builder with the default values.
+         * @param nc the connection to send requests with
+         * @param tracer the tracer that creates the spans
+         */
+        public Builder(Connection nc, Tracer tracer) {
+            if (nc == null) {
+                throw new IllegalArgumentException("connection cannot be null");
+            }
+            if (tracer == null) {
+                throw new IllegalArgumentException("tracer cannot be null");
+            }
+            this.nc = nc;
+            this.tracer = tracer;
+        }
+
+        /**
+         * Sets the options used to encode requests and decode replies.
+         * @param options the trace options
+         * @return the Builder for chaining
+         */
+        public Builder traceOptions(TraceOptions options) {
+            this.options = options == null ? TraceOptions.DEFAULT : options;
+            return this;
+        }
+
+        /**
+         * Sets the operation name of request spans, the default is
+         * "Request".
+         * @param operationName the operation name
+         * @return the Builder for chaining
+         */
+        public Builder operationName(String operationName) {
+            this.operationName = operationName;
+            return this;
+        }
+
+        /**
+         * Sets the operation name of scatter gather parent spans, the
+         * default is "Scatter gather".
+         * @param operationName the operation name
+         * @return the Builder for chaining
+         */
+        public Builder scatterOperationName(String operationName) {
+            this.scatterOperationName = operationName;
+            return this;
+        }
+
+        /**
+         * Sets how long to wait for each reply, the default is five seconds.
+         * @param timeout the timeout
+         * @return the Builder for chaining
+         */
+        public Builder timeout(Duration timeout) {
+            if (timeout == null || timeout.isNegative() || timeout.isZero()) {
+                throw new IllegalArgumentException("timeout must be greater than zero");
+            }
+            this.timeout = timeout;
+            return this;
+        }
+
+        /**
+         * Carry span contexts in message headers instead of in front of the
+         * payload, see {@link Not#encodeMessage(Tracer, SpanContext, String, String, byte[], TraceOptions)}.
+         * @return the Builder for chaining
+         */
+        public Builder headers() {
+            this.headers = true;
+            return this;
+        }
+
+        /**
+         * Builds the TracedRequester.
+         * @return the new requester
+         */
+        public TracedRequester build() {
+            return new TracedRequester(this);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import io.nats.client.Message;
+import io.nats.client.MessageHandler;
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer;
+import io.opentracing.noop.NoopSpan;
+import io.opentracing.tag.Tags;
+
+/**
+ * TracingMessageHandler is a NATS message handler that decodes each
+ * message, starts a span that is a child of the span context the message
+ * carries, calls a {@link Handler} with both, tags the span if the handler
+ * throws, and finishes it.
+ *
+ * <pre>
+ * Dispatcher d = nc.createDispatcher(new TracingMessageHandler.Builder(tracer, (tm, span) -&gt; {
+ *     span.log("processing");
+ *     ...
+ * }).operationName("Process message").build());
+ * d.subscribe(subject);
+ * </pre>
+ *
+ * Messages without trace information get a no-op span unless
+ * {@link Builder#startRootSpans()} is set, then the sampling rate of the
+ * options' {@link SubjectPolicy} decides.  Messages marked as not sampled,
+ * or on subjects the policy does not trace, always get a no-op span.
+ *
+ * When handlers run on the dispatcher thread the trace message is reused
+ * for every message that thread delivers, handlers must not keep it after
+ * they return.  With an {@link Builder#executor(Executor) executor} the
+ * dispatcher thread only hands the message off, so a slow handler does not
+ * hold up delivery, and each message gets its own trace message.
+ */
+public class TracingMessageHandler implements MessageHandler {
+
+    /**
+     * The application code called for each message.
+     */
+    public interface Handler {
+        /**
+         * Called with each decoded message and the span started for it.
+         * The span is active while the handler runs and is finished when it
+         * returns.
+         * @param msg the decoded message
+         * @param span the span for processing the message
+         * @throws InterruptedException if the handler is interrupted
+         */
+        void onMessage(TraceMessage msg, Span span) throws InterruptedException;
+    }
+
+    private final Tracer tracer;
+    private final Handler handler;
+    private final String operationName;
+    private final TraceOptions options;
+    private final Executor executor;
+    private final boolean startRootSpans;
+
+    private final ThreadLocal<TraceMessage> scratch = ThreadLocal.withInitial(TraceMessage::new);
+
+    private TracingMessageHandler(Builder b) {
+        this.tracer = b.tracer;
+        this.handler = b.handler;
+        this.operationName = b.operationName;
+        this.options = b.options;
+        this.executor = b.executor;
+        this.startRootSpans = b.startRootSpans;
+    }
+
+    @Override
+    public void onMessage(Message msg) throws InterruptedException {
+        if (executor == null) {
+            process(msg instanceof TraceMessage ? (TraceMessage) msg : decode(scratch.get(), msg));
+            return;
+        }
+
+        executor.execute(() -> {
+            try {
+                process(msg instanceof TraceMessage ? (TraceMessage) msg : decode(new TraceMessage(), msg));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    private TraceMessage decode(TraceMessage tm, Message msg) {
+        tm.reset(tracer, msg, options, true);
+        return tm;
+    }
+
+    private void process(TraceMessage tm) throws InterruptedException {
+        Span span = startSpan(tm);
+        Scope scope = tracer.activateSpan(span);
+        try {
+            handler.onMessage(tm, span);
+        } catch (Exception | Error e) {
+            Tags.ERROR.set(span, true);
+            Map<String, Object> fields = new HashMap<>(4);
+            fields.put("event", Tags.ERROR.getKey());
+            fields.put("error.object", e);
+            span.log(fields);
+            throw e;
+        } finally {
+            scope.close();
+            span.finish();
+        }
+    }
+
+    private Span startSpan(TraceMessage tm) {
+        if (tm.isUnsampled()) {
+            return NoopSpan.INSTANCE;
+        }
+        SubjectPolicy.Rule rule = options.rule(tm.getSubject());
+        if (!rule.isTraced()) {
+            return NoopSpan.INSTANCE;
+        }
+        SpanContext sc = tm.getSpanContext();
+        if (sc == null && !(startRootSpans && rule.sample())) {
+            return NoopSpan.INSTANCE;
+        }
+        return tracer.buildSpan(operationName)
+            .asChildOf(sc)
+            .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CONSUMER)
+            .withTag(Tags.MESSAGE_BUS_DESTINATION.getKey(), tm.getSubject())
+            .start();
+    }
+
+    /**
+     * TracingMessageHandlers are created using a Builder.
+     */
+    public static class Builder {
+        private final Tracer tracer;
+        private final Handler handler;
+        private String operationName = "Process message";
+        private TraceOptions options = TraceOptions.DEFAULT;
+        private Executor executor;
+        private boolean startRootSpans = false;
+
+        /**
+         * Constructs a new Builder with the default values.
+         * @param tracer the tracer to decode messages and start spans with
+         * @param handler the application code to call for each message
+         */
+        public Builder(Tracer tracer, Handler handler) {
+            if (tracer == null) {
+                throw new IllegalArgumentException("tracer cannot be null");
+            }
+            if (handler == null) {
+                throw new IllegalArgumentException("handler cannot be null");
+            }
+            this.tracer = tracer;
+            this.handler = handler;
+        }
+
+        /**
+         * Sets the operation name of the spans, the default is
+         * "Process message".
+         * @param operationName the operation name
+         * @return the Builder for chaining
+         */
+        public Builder operationName(String operationName) {
+            this.operationName = operationName;
+            return this;
+        }
+
+        /**
+         * Sets the options used to decode messages.
+         * @param options the trace options
+         * @return the Builder for chaining
+         */
+        public Builder traceOptions(TraceOptions options) {
+            this.options = options;
+            return this;
+        }
+
+        /**
+         * Runs handlers on an executor instead of the dispatcher thread.  A
+         * bounded executor limits how much work is queued, on newer Java
+         * versions an executor that starts a virtual thread per task keeps
+         * blocking handlers cheap.
+         * @param executor the executor
+         * @return the Builder for chaining
+         */
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Start a new trace for messages that carry no trace information.
+         * @return the Builder for chaining
+         */
+        public Builder startRootSpans() {
+            this.startRootSpans = true;
+            return this;
+        }
+
+        /**
+         * Builds the TracingMessageHandler.
+         * @return the new handler
+         */
+        public TracingMessageHandler build() {
+            return new TracingMessageHandler(this);
+        }
+    }
+}
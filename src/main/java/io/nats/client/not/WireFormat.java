@@ -0,0 +1,242 @@
+// Copyright 2019 The NATS Authors
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.nats.client.not;
+
+import java.nio.ByteBuffer;
+
+/**
+ * WireFormat describes the framing written in front of traced payloads.
+ *
+ * <pre>
+ * | magic (1) | version (1) | flags (1) | carrier length (4) | carrier | payload |
+ * </pre>
+ *
+ * The magic byte is 0xFE, which never appears in UTF-8 text, so a receiver
+ * can tell traced and untraced messages apart by looking at two bytes
+ * without handing arbitrary payloads to the tracer.  The carrier length is a
+ * big endian int.
+ *
+ * The low three bits of the flags hold the id of the {@link TraceCodec} that
+ * wrote the carrier.  Bit 3 marks a message whose span was not sampled, it
+ * has an empty carrier.  Bit 4 marks an envelope, where the payload holds
+ * several records that share the span context:
+ *
+ * <pre>
+ * | record count (4) | record length (4) | record | record length (4) | record | ...
+ * </pre>
+ *
+ * Bit 5 marks a header followed by the time the message was sent, as big
+ * endian nanoseconds since the epoch, see {@link #now()}.  The carrier comes
+ * after it:
+ *
+ * <pre>
+ * | magic (1) | version (1) | flags (1) | carrier length (4) | send time (8) | carrier | payload |
+ * </pre>
+ *
+ * The remaining bits are reserved and must be zero.
+ */
+final class WireFormat {
+    static final byte MAGIC = (byte) 0xFE;
+    static final byte VERSION = 1;
+
+    static final int FLAGS_OFFSET = 2;
+    static final int CARRIER_LENGTH_OFFSET = 3;
+    static final int HEADER_SIZE = 7;
+
+    static final int FLAG_CODEC_MASK = 0x07;
+    static final int FLAG_UNSAMPLED = 0x08;
+    static final int FLAG_ENVELOPE = 0x10;
+    static final int FLAG_TIMESTAMP = 0x20;
+
+    static final int TIMESTAMP_SIZE = 8;
+
+    // The epoch time when the nano time was zero, so timestamps have the
+    // resolution of System.nanoTime() and can still be compared between
+    // processes with synchronized clocks.
+    private static final long EPOCH_NANOS_AT_ZERO =
+        System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+
+    private WireFormat() {}
+
+    /**
+     * @return the current time in nanoseconds since the epoch, the clock
+     * used for send times.
+     */
+    static long now() {
+        return EPOCH_NANOS_AT_ZERO + System.nanoTime();
+    }
+
+    /**
+     * @param flags the header flags.
+     * @return the size of a header with these flags, including the send
+     * time if there is one.
+     */
+    static int headerSize(int flags) {
+        return (flags & FLAG_TIMESTAMP) != 0 ? HEADER_SIZE + TIMESTAMP_SIZE : HEADER_SIZE;
+    }
+
+    /**
+     * Writes a header into the buffer at its current position.  The carrier
+     * length is written as zero and must be set with {@link #setCarrierLength}
+     * once the carrier has been injected.  If the flags include
+     * {@link #FLAG_TIMESTAMP} the current time is written too.
+     * @param buffer the buffer to write to.
+     * @param flags the header flags.
+     */
+    static void writeHeader(ByteBuffer buffer, int flags) {
+        buffer.put(MAGIC);
+        buffer.put(VERSION);
+        buffer.put((byte) flags);
+        buffer.putInt(0);
+        if ((flags & FLAG_TIMESTAMP) != 0) {
+            buffer.putLong(now());
+        }
+    }
+
+    /**
+     * Sets the carrier length of a header previously written.
+     * @param buffer the buffer holding the header.
+     * @param headerStart the position the header was written at.
+     * @param length the length of the carrier.
+     */
+    static void setCarrierLength(ByteBuffer buffer, int headerStart, int length) {
+        buffer.putInt(headerStart + CARRIER_LENGTH_OFFSET, length);
+    }
+
+    /**
+     * Writes a complete header into an array.  If the flags include
+     * {@link #FLAG_TIMESTAMP} the current time is written too.
+     * @param data the array to write to.
+     * @param flags the header flags.
+     * @param carrierLength the length of the carrier that follows the header.
+     */
+    static void writeHeader(byte[] data, int flags, int carrierLength) {
+        data[0] = MAGIC;
+        data[1] = VERSION;
+        data[2] = (byte) flags;
+        putInt(data, CARRIER_LENGTH_OFFSET, carrierLength);
+        if ((flags & FLAG_TIMESTAMP) != 0) {
+            putTimestamp(data, now());
+        }
+    }
+
+    /**
+     * Writes the send time into framed data with a timestamp, see
+     * {@link #hasTimestamp(byte[])}.
+     * @param data framed data.
+     * @param time the send time in nanoseconds since the epoch.
+     */
+    static void putTimestamp(byte[] data, long time) {
+        putInt(data, HEADER_SIZE, (int) (time >>> 32));
+        putInt(data, HEADER_SIZE + 4, (int) time);
+    }
+
+    /**
+     * Writes a big endian int into an array.
+     * @param data the array to write to.
+     * @param offset where to write.
+     * @param value the value.
+     */
+    static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Reads a big endian int from an array.
+     * @param data the array to read from.
+     * @param offset where to read.
+     * @return the value.
+     */
+    static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+            | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    /**
+     * @param data the raw message data.
+     * @return true if the data starts with a header this version understands.
+     */
+    static boolean isFramed(byte[] data) {
+        return data != null && data.length >= HEADER_SIZE
+            && data[0] == MAGIC && data[1] == VERSION;
+    }
+
+    /**
+     * Reads the codec id from framed data.
+     * @param data framed data, see {@link #isFramed(byte[])}.
+     * @return the id of the codec that wrote the carrier.
+     */
+    static int codecId(byte[] data) {
+        return data[FLAGS_OFFSET] & FLAG_CODEC_MASK;
+    }
+
+    /**
+     * @param data framed data, see {@link #isFramed(byte[])}.
+     * @return true if the publisher marked the message as not sampled.
+     */
+    static boolean isUnsampled(byte[] data) {
+        return (data[FLAGS_OFFSET] & FLAG_UNSAMPLED) != 0;
+    }
+
+    /**
+     * @param data framed data, see {@link #isFramed(byte[])}.
+     * @return true if the payload is an envelope of records.
+     */
+    static boolean isEnvelope(byte[] data) {
+        return (data[FLAGS_OFFSET] & FLAG_ENVELOPE) != 0;
+    }
+
+    /**
+     * @param data framed data, see {@link #isFramed(byte[])}.
+     * @return true if the header is followed by the send time.
+     */
+    static boolean hasTimestamp(byte[] data) {
+        return (data[FLAGS_OFFSET] & FLAG_TIMESTAMP) != 0;
+    }
+
+    /**
+     * Reads the send time from framed data with a timestamp, see
+     * {@link #hasTimestamp(byte[])} and {@link #carrierLength(byte[])}.
+     * @param data framed data.
+     * @return the send time in nanoseconds since the epoch.
+     */
+    static long timestamp(byte[] data) {
+        return ((long) readInt(data, HEADER_SIZE) << 32) | (readInt(data, HEADER_SIZE + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param data framed data, see {@link #isFramed(byte[])}.
+     * @return the offset of the carrier.
+     */
+    static int carrierOffset(byte[] data) {
+        return headerSize(data[FLAGS_OFFSET]);
+    }
+
+    /**
+     * Reads the carrier length from framed data.
+     * @param data framed data, see {@link #isFramed(byte[])}.
+     * @return the carrier length, or -1 if the header or the carrier does
+     * not fit in the data.
+     */
+    static int carrierLength(byte[] data) {
+        int len = readInt(data, CARRIER_LENGTH_OFFSET);
+        if (len < 0 || len > data.length - carrierOffset(data)) {
+            return -1;
+        }
+        return len;
+    }
+}
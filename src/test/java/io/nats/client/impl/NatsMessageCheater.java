@@ -15,8 +15,12 @@ package io.nats.client.impl;
 
 public class NatsMessageCheater {
     public static io.nats.client.Message createMessage(String subject, String reply, byte[] payload) {
-        NatsMessage nm = new io.nats.client.impl.NatsMessage("sid1", subject, reply, payload.length);
-        nm.setData(payload);
+        return createMessage(subject, reply, null, payload);
+    }
+
+    public static io.nats.client.Message createMessage(String subject, String reply, Headers headers, byte[] payload) {
+        NatsMessage nm = new io.nats.client.impl.NatsMessage(subject, reply, headers, payload, false);
+        nm.sid = "sid1";
         return nm;
     }
 }
\ No newline at end of file
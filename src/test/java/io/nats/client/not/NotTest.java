@@ -13,9 +13,50 @@
 
 package io.nats.client.not;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferOverflowException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.junit.Test;
+import org.reactivestreams.Subscriber;
 
+import io.jaegertracing.internal.JaegerSpan;
+import io.jaegertracing.internal.JaegerSpanContext;
+import io.jaegertracing.internal.JaegerTracer;
+import io.jaegertracing.internal.reporters.InMemoryReporter;
+import io.jaegertracing.internal.samplers.SamplingStatus;
+import io.jaegertracing.spi.Sampler;
+import io.nats.client.Connection;
 import io.nats.client.Message;
+import io.nats.client.Subscription;
+import io.nats.client.impl.Headers;
 import io.nats.client.impl.NatsMessageCheater;
 import io.opentracing.Span;
 import io.opentracing.SpanContext;
@@ -24,16 +65,11 @@ import io.opentracing.Tracer;
 import static org.junit.Assert.*;
 
 public class NotTest {
-    @Test
-    public void simpleInitTest() {
-        Not.initTracing("test");
-    }
-
     @Test
     public void testEndToEnd() {
 
         // Publish side...
-        Tracer sendTracer = Not.initTracing("send");
+        Tracer sendTracer = JaegerTracing.sharedTracing("send");
         Span span = sendTracer.buildSpan("sendspan").start();
         span.setBaggageItem("k1", "v1");
         SpanContext sendContext = span.context();
@@ -47,7 +83,7 @@ public class NotTest {
         // Receive side...
         Message m = NatsMessageCheater.createMessage("foo", "bar", wireData);
 
-        Tracer recvTracer = Not.initTracing("receive");
+        Tracer recvTracer = JaegerTracing.sharedTracing("receive");
         TraceMessage tm = Not.decode(recvTracer, m);
         assertTrue(new String(tm.getData()).equals(origData));
         assertTrue(tm.getSubject().equals("foo"));
@@ -66,7 +102,7 @@ public class NotTest {
         Message m = NatsMessageCheater.createMessage("foo", "bar", wireData);
 
         // Receive side...
-        Tracer recvTracer = Not.initTracing("receive");
+        Tracer recvTracer = JaegerTracing.sharedTracing("receive");
         TraceMessage tm = Not.decode(recvTracer, m);
         assertTrue(new String(tm.getData()).equals("hello"));
         assertTrue(tm.getSubject().equals("foo"));
@@ -75,4 +111,1315 @@ public class NotTest {
         SpanContext recvContext = tm.getSpanContext();
         assertTrue(recvContext == null);
     }    
+
+    @Test
+    public void testEncodeIntoBuffer() {
+        Tracer tracer = JaegerTracing.sharedTracing("send");
+        Span span = tracer.buildSpan("sendspan").start();
+        span.setBaggageItem("k1", "v1");
+        byte[] payload = "hello".getBytes();
+
+        byte[] expected = Not.encode(tracer, span.context(), payload);
+
+        // heap and direct buffers, reused across encodes.
+        ByteBuffer[] buffers = { ByteBuffer.allocate(1024), ByteBuffer.allocateDirect(1024) };
+        for (ByteBuffer bb : buffers) {
+            for (int i = 0; i < 2; i++) {
+                bb.clear();
+                int n = Not.encode(tracer, span.context(), payload, bb);
+                assertEquals(expected.length, n);
+                assertEquals(n, bb.position());
+
+                bb.flip();
+                byte[] wireData = new byte[n];
+                bb.get(wireData);
+                assertArrayEquals(expected, wireData);
+            }
+        }
+
+        ByteBuffer bb = ByteBuffer.allocate(1024);
+        bb.position(10);
+        int n = Not.encode(tracer, span.context(), ByteBuffer.wrap(payload), bb);
+        assertEquals(expected.length, n);
+        byte[] wireData = new byte[n];
+        System.arraycopy(bb.array(), 10, wireData, 0, n);
+
+        Message m = NatsMessageCheater.createMessage("foo", "bar", wireData);
+        TraceMessage tm = Not.decode(JaegerTracing.sharedTracing("receive"), m);
+        assertEquals("hello", new String(tm.getData()));
+        assertEquals("v1", tm.getSpanContext().baggageItems().iterator().next().getValue());
+    }
+
+    @Test
+    public void testEncodeBufferOverflow() {
+        Tracer tracer = JaegerTracing.sharedTracing("send");
+        Span span = tracer.buildSpan("sendspan").start();
+        byte[] payload = "hello".getBytes();
+        int len = Not.encode(tracer, span.context(), payload).length;
+
+        // too small for the carrier and too small for the payload.
+        int[] sizes = { 4, len - 1 };
+        for (int size : sizes) {
+            ByteBuffer bb = ByteBuffer.allocate(size);
+            try {
+                Not.encode(tracer, span.context(), payload, bb);
+                fail("expected overflow");
+            } catch (BufferOverflowException e) {
+                assertEquals(0, bb.position());
+            }
+        }
+    }
+
+    @Test
+    public void testStreamingEncode() throws Exception {
+        Tracer tracer = JaegerTracing.sharedTracing("send");
+        Span span = tracer.buildSpan("sendspan").start();
+        byte[] payload = new byte[200000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        byte[] expected = Not.encode(tracer, span.context(), payload);
+
+        ByteBuffer[] segments = {
+            ByteBuffer.wrap(payload, 0, 1000),
+            ByteBuffer.wrap(payload, 1000, 150000).slice(),
+            ByteBuffer.wrap(payload, 151000, payload.length - 151000),
+        };
+        Path file = Files.createTempFile("not", ".msg");
+        try {
+            try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                assertEquals(expected.length, Not.encode(tracer, span.context(), segments, out));
+            }
+            assertArrayEquals(expected, Files.readAllBytes(file));
+            for (ByteBuffer b : segments) {
+                assertFalse(b.hasRemaining());
+            }
+
+            // A file payload is transferred rather than copied.
+            Files.write(file, payload);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (FileChannel in = FileChannel.open(file)) {
+                assertEquals(expected.length,
+                    Not.encode(tracer, span.context(), in, Channels.newChannel(bos)));
+            }
+            assertArrayEquals(expected, bos.toByteArray());
+        } finally {
+            Files.delete(file);
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        assertEquals(expected.length,
+            Not.encode(tracer, span.context(), new ByteArrayInputStream(payload), bos));
+        assertArrayEquals(expected, bos.toByteArray());
+
+        segments = new ByteBuffer[] { ByteBuffer.wrap(payload, 0, 10), ByteBuffer.wrap(payload, 10, 20) };
+        byte[] gathered = Not.encode(tracer, span.context(), segments, TraceOptions.DEFAULT);
+        assertArrayEquals(Not.encode(tracer, span.context(), Arrays.copyOf(payload, 30)), gathered);
+
+        // The payload streams start after the trace information.
+        Message m = NatsMessageCheater.createMessage("foo", "bar", bos.toByteArray());
+        TraceMessage tm = Not.decodeLazy(tracer, m);
+        InputStream in = tm.getDataStream();
+        byte[] data = new byte[payload.length];
+        int n = 0;
+        while (n < data.length) {
+            n += in.read(data, n, data.length - n);
+        }
+        assertEquals(-1, in.read());
+        assertArrayEquals(payload, data);
+        ByteBuffer bb = ByteBuffer.allocate(payload.length + 1);
+        ReadableByteChannel channel = tm.getDataChannel();
+        while (channel.read(bb) >= 0) {
+        }
+        assertEquals(payload.length, bb.position());
+        assertEquals(span.context().toSpanId(), tm.getSpanContext().toSpanId());
+
+        // A non-blocking channel that stops accepting bytes fails rather
+        // than being retried forever.
+        Pipe pipe = Pipe.open();
+        try {
+            pipe.sink().configureBlocking(false);
+            ByteBuffer[] large = { ByteBuffer.allocate(16 * 1024 * 1024) };
+            try {
+                Not.encode(tracer, span.context(), large, pipe.sink());
+                fail("expected the full pipe to fail the write");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            pipe.sink().close();
+            pipe.source().close();
+        }
+        span.finish();
+    }
+
+    @Test
+    public void testLazyDecode() {
+        Tracer sendTracer = JaegerTracing.sharedTracing("send");
+        Span span = sendTracer.buildSpan("sendspan").start();
+        span.setBaggageItem("k1", "v1");
+        byte[] wireData = Not.encode(sendTracer, span.context(), "hello".getBytes());
+        Message m = NatsMessageCheater.createMessage("foo", "bar", wireData);
+
+        Tracer recvTracer = JaegerTracing.sharedTracing("receive");
+        TraceMessage tm = Not.decodeLazy(recvTracer, m);
+        assertEquals("foo", tm.getSubject());
+
+        // The payload view is backed by the original message data.
+        ByteBuffer view = tm.getDataBuffer();
+        assertTrue(view.isReadOnly());
+        assertEquals(5, view.remaining());
+        byte[] data = new byte[view.remaining()];
+        view.get(data);
+        assertEquals("hello", new String(data));
+
+        SpanContext sc = tm.getSpanContext();
+        assertSame(sc, tm.getSpanContext());
+        Span childSpan = recvTracer.buildSpan("foo").asChildOf(sc).start();
+        assertEquals("v1", childSpan.getBaggageItem("k1"));
+        assertEquals("hello", new String(tm.getData()));
+
+        // Non trace messages expose the original data as is.
+        byte[] plain = "hello".getBytes();
+        tm = Not.decodeLazy(recvTracer, NatsMessageCheater.createMessage("foo", "bar", plain));
+        assertSame(plain, tm.getData());
+        assertNull(tm.getSpanContext());
+    }
+
+    @Test
+    public void testFraming() {
+        Tracer tracer = JaegerTracing.sharedTracing("send");
+        Span span = tracer.buildSpan("sendspan").start();
+        byte[] wireData = Not.encode(tracer, span.context(), "hello".getBytes());
+        assertEquals(WireFormat.MAGIC, wireData[0]);
+        assertEquals(WireFormat.VERSION, wireData[1]);
+        assertEquals(wireData.length - WireFormat.HEADER_SIZE - 5, WireFormat.carrierLength(wireData));
+
+        // A plain message that starts like a header, but whose carrier
+        // length does not fit, is not a trace message.
+        byte[] plain = { WireFormat.MAGIC, WireFormat.VERSION, 0, 0, 0, 0, 100, 'h', 'i' };
+        TraceMessage tm = Not.decode(tracer, NatsMessageCheater.createMessage("foo", "bar", plain));
+        assertNull(tm.getSpanContext());
+        assertSame(plain, tm.getData());
+    }
+
+    @Test
+    public void testLegacyFormat() {
+        Tracer tracer = JaegerTracing.sharedTracing("send");
+        Span span = tracer.buildSpan("sendspan").start();
+        span.setBaggageItem("k1", "v1");
+        TraceOptions legacy = new TraceOptions.Builder().legacyFormat().build();
+        byte[] wireData = Not.encode(tracer, span.context(), "hello".getBytes(), legacy);
+        Message m = NatsMessageCheater.createMessage("foo", "bar", wireData);
+
+        // By default unframed data is not handed to the tracer.
+        TraceMessage tm = Not.decode(tracer, m);
+        assertNull(tm.getSpanContext());
+        assertSame(wireData, tm.getData());
+
+        TraceOptions accept = new TraceOptions.Builder().acceptLegacyFormat().build();
+        TraceMessage[] msgs = { Not.decode(tracer, m, accept), Not.decodeLazy(tracer, m, accept) };
+        for (TraceMessage t : msgs) {
+            assertEquals("hello", new String(t.getData()));
+            assertEquals("v1", t.getSpanContext().baggageItems().iterator().next().getValue());
+        }
+
+        // Framed messages are still understood when accepting legacy ones.
+        wireData = Not.encode(tracer, span.context(), "hello".getBytes());
+        tm = Not.decode(tracer, NatsMessageCheater.createMessage("foo", "bar", wireData), accept);
+        assertEquals("hello", new String(tm.getData()));
+        assertNotNull(tm.getSpanContext());
+    }
+
+    @Test
+    public void testHeaders() {
+        Tracer sendTracer = JaegerTracing.sharedTracing("send");
+        Span span = sendTracer.buildSpan("sendspan").start();
+        span.setBaggageItem("k1", "v1");
+        byte[] payload = "hello".getBytes();
+
+        Message sent = Not.encodeMessage(sendTracer, span.context(), "foo", "bar", payload);
+        assertSame(payload, sent.getData());
+        assertTrue(sent.hasHeaders());
+
+        // Receive side, the payload is handed over untouched.
+        Message m = NatsMessageCheater.createMessage("foo", "bar", sent.getHeaders(), payload);
+        Tracer recvTracer = JaegerTracing.sharedTracing("receive");
+        TraceMessage[] msgs = { Not.decode(recvTracer, m), Not.decodeLazy(recvTracer, m) };
+        for (TraceMessage tm : msgs) {
+            assertSame(payload, tm.getData());
+            assertTrue(tm.hasHeaders());
+            SpanContext sc = tm.getSpanContext();
+            assertEquals(span.context().toTraceId(), sc.toTraceId());
+            Span childSpan = recvTracer.buildSpan("foo").asChildOf(sc).start();
+            assertEquals("v1", childSpan.getBaggageItem("k1"));
+        }
+
+        // Existing headers are kept, and headers without a span context
+        // decode as an untraced message.
+        Headers headers = new Headers().add("app", "value");
+        assertSame(headers, Not.inject(sendTracer, span.context(), headers));
+        assertEquals("value", headers.get("app").get(0));
+
+        m = NatsMessageCheater.createMessage("foo", "bar", new Headers().add("app", "value"), payload);
+        assertNull(Not.decode(recvTracer, m).getSpanContext());
+    }
+
+    @Test
+    public void testCompactCodecs() {
+        Tracer sendTracer = JaegerTracing.sharedTracing("send");
+        Tracer recvTracer = JaegerTracing.sharedTracing("receive");
+        Span span = sendTracer.buildSpan("sendspan").start();
+        span.setBaggageItem("k1", "v1");
+        SpanContext sendContext = span.context();
+
+        CompactTraceCodec[] codecs = { CompactTraceCodec.COMPACT, CompactTraceCodec.W3C, CompactTraceCodec.B3 };
+        int[] sizes = { CompactTraceCodec.COMPACT_SIZE + 1 + 2 + 2 + 2, CompactTraceCodec.W3C_SIZE,
+            CompactTraceCodec.B3_SIZE };
+        for (int i = 0; i < codecs.length; i++) {
+            TraceOptions options = new TraceOptions.Builder().codec(codecs[i]).build();
+            byte[] wireData = Not.encode(sendTracer, sendContext, "hello".getBytes(), options);
+            assertEquals(WireFormat.HEADER_SIZE + sizes[i] + 5, wireData.length);
+            Message m = NatsMessageCheater.createMessage("foo", "bar", wireData);
+
+            // Receivers need the codec registered.
+            TraceMessage tm = Not.decode(recvTracer, m);
+            assertNull(tm.getSpanContext());
+            assertEquals("hello", new String(tm.getData()));
+
+            options = new TraceOptions.Builder().addCodec(codecs[i]).build();
+            tm = Not.decode(recvTracer, m, options);
+            SpanContext recvContext = tm.getSpanContext();
+            assertEquals(sendContext.toTraceId(), recvContext.toTraceId());
+            assertEquals(sendContext.toSpanId(), recvContext.toSpanId());
+            assertEquals("hello", new String(tm.getData()));
+
+            Span childSpan = recvTracer.buildSpan("foo").asChildOf(recvContext).start();
+            assertEquals(sendContext.toTraceId(), childSpan.context().toTraceId());
+            if (codecs[i] == CompactTraceCodec.COMPACT) {
+                assertEquals("v1", childSpan.getBaggageItem("k1"));
+            }
+        }
+
+        // Malformed carriers are not decoded.
+        byte[] garbage = new byte[CompactTraceCodec.W3C_SIZE];
+        for (CompactTraceCodec codec : codecs) {
+            assertNull(codec.decode(recvTracer, garbage, 0, garbage.length - 1));
+        }
+        assertNull(CompactTraceCodec.W3C.decode(recvTracer, garbage, 0, garbage.length));
+    }
+
+    @Test
+    public void testBaggageBudget() {
+        Tracer tracer = JaegerTracing.sharedTracing("send");
+        Span span = tracer.buildSpan("sendspan").start();
+        span.setBaggageItem("tenant", "acme");
+        span.setBaggageItem("user", "\u00e9\u00e9\u00e9\u00e9");
+        span.setBaggageItem("note", "0123456789");
+
+        assertEquals(8, BaggageBudget.utf8Length("\u00e9\u00e9\u00e9\u00e9"));
+        assertEquals(4, BaggageBudget.utf8Length(new String(Character.toChars(0x1F600))));
+        assertEquals("\u00e9\u00e9", BaggageBudget.truncate("\u00e9\u00e9\u00e9\u00e9", 5));
+
+        // Values are cut on a character boundary, then items that do not
+        // fit are dropped.  The span keeps its baggage.
+        BaggageBudget budget = new BaggageBudget.Builder().maxValueBytes(5).maxItems(2).build();
+        TraceOptions options = new TraceOptions.Builder()
+            .codec(CompactTraceCodec.COMPACT)
+            .baggageBudget(budget)
+            .build();
+        byte[] data = Not.encode(tracer, span.context(), "hello".getBytes(), options);
+        SpanContext sc = Not.decode(tracer, NatsMessageCheater.createMessage("foo", null, data), options)
+            .getSpanContext();
+        Map<String, String> baggage = new HashMap<>();
+        sc.baggageItems().forEach(e -> baggage.put(e.getKey(), e.getValue()));
+        assertEquals(2, baggage.size());
+        if (baggage.containsKey("user")) {
+            assertEquals("\u00e9\u00e9", baggage.get("user"));
+        }
+        if (baggage.containsKey("note")) {
+            assertEquals("01234", baggage.get("note"));
+        }
+        assertEquals(2, budget.getTruncatedCount());
+        assertEquals(1, budget.getDroppedCount());
+        assertEquals("0123456789", span.getBaggageItem("note"));
+
+        BaggageBudget total = new BaggageBudget.Builder().maxBytes(10).build();
+        options = new TraceOptions.Builder().baggageBudget(total).build();
+        data = Not.encode(tracer, span.context(), "hello".getBytes(), options);
+        sc = Not.decode(tracer, NatsMessageCheater.createMessage("foo", null, data)).getSpanContext();
+        assertEquals("acme", ((JaegerSpanContext) sc).getBaggageItem("tenant"));
+        assertEquals(2, total.getDroppedCount());
+
+        // Within budget the span context is encoded as it is.
+        BaggageBudget loose = new BaggageBudget.Builder().maxItems(3).build();
+        options = new TraceOptions.Builder().baggageBudget(loose).build();
+        assertArrayEquals(Not.encode(tracer, span.context(), "hello".getBytes()),
+            Not.encode(tracer, span.context(), "hello".getBytes(), options));
+        assertEquals(0, loose.getDroppedCount());
+
+        // Dictionary keys take one byte, and decoded keys are interned.
+        CompactTraceCodec codec = CompactTraceCodec.withDictionary(4, Arrays.asList("tenant", "user"));
+        options = new TraceOptions.Builder().codec(codec).build();
+        byte[] compact = Not.encode(tracer, span.context(), "hello".getBytes(),
+            new TraceOptions.Builder().codec(CompactTraceCodec.COMPACT).build());
+        data = Not.encode(tracer, span.context(), "hello".getBytes(), options);
+        assertEquals(compact.length - "tenant".length() - "user".length(), data.length);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            sc = Not.decode(tracer, NatsMessageCheater.createMessage("foo", null, data), options).getSpanContext();
+            assertEquals("acme", ((JaegerSpanContext) sc).getBaggageItem("tenant"));
+            assertEquals("0123456789", ((JaegerSpanContext) sc).getBaggageItem("note"));
+            sc.baggageItems().forEach(e -> {
+                if (e.getKey().equals("note")) {
+                    keys.add(e.getKey());
+                }
+            });
+        }
+        assertSame(keys.get(0), keys.get(1));
+
+        try {
+            CompactTraceCodec.withDictionary(4, Arrays.asList("a", "a"));
+            fail("expected duplicate keys to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        span.finish();
+    }
+
+    @Test
+    public void testUnsampledEncoding() {
+        Tracer tracer = JaegerTracing.initTracing("send", new TracerOptions.Builder().constSampler(false).build());
+        SpanContext sc = tracer.buildSpan("sendspan").start().context();
+        byte[] payload = "hello".getBytes();
+
+        // Injected as usual by default.
+        TraceMessage tm = Not.decode(tracer, NatsMessageCheater.createMessage("foo", "bar",
+            Not.encode(tracer, sc, payload)));
+        assertNotNull(tm.getSpanContext());
+        assertFalse(tm.isUnsampled());
+
+        TraceOptions skip = new TraceOptions.Builder().unsampled(TraceOptions.Unsampled.SKIP).build();
+        assertSame(payload, Not.encode(tracer, sc, payload, skip));
+        ByteBuffer bb = ByteBuffer.allocate(64);
+        assertEquals(payload.length, Not.encode(tracer, sc, payload, bb, skip));
+        assertFalse(Not.encodeMessage(tracer, sc, "foo", null, payload, skip).hasHeaders());
+
+        TraceOptions marker = new TraceOptions.Builder().unsampled(TraceOptions.Unsampled.MARKER).build();
+        byte[] wireData = Not.encode(tracer, sc, payload, marker);
+        assertEquals(WireFormat.HEADER_SIZE + payload.length, wireData.length);
+        bb.clear();
+        assertEquals(wireData.length, Not.encode(tracer, sc, payload, bb, marker));
+        tm = Not.decode(tracer, NatsMessageCheater.createMessage("foo", "bar", wireData));
+        assertTrue(tm.isUnsampled());
+        assertNull(tm.getSpanContext());
+        assertEquals("hello", new String(tm.getData()));
+
+        // Sampled spans are always injected.
+        Tracer sampled = JaegerTracing.sharedTracing("send");
+        sc = sampled.buildSpan("sendspan").start().context();
+        tm = Not.decode(sampled, NatsMessageCheater.createMessage("foo", "bar",
+            Not.encode(sampled, sc, payload, skip)));
+        assertNotNull(tm.getSpanContext());
+    }
+
+    @Test
+    public void testTracingMessageHandler() throws InterruptedException {
+        InMemoryReporter reporter = new InMemoryReporter();
+        Tracer tracer = JaegerTracing.initTracing("test", new TracerOptions.Builder().reporter(reporter).build());
+        Span parent = tracer.buildSpan("sendspan").start();
+        byte[] data = Not.encode(tracer, parent.context(), "hello".getBytes());
+
+        TraceMessage[] seen = new TraceMessage[2];
+        TracingMessageHandler handler = new TracingMessageHandler.Builder(tracer, (tm, span) -> {
+            assertEquals("hello", new String(tm.getData()));
+            assertSame(span, tracer.activeSpan());
+            seen[seen[0] == null ? 0 : 1] = tm;
+            if (tm.getReplyTo() != null) {
+                throw new IllegalStateException("boom");
+            }
+        }).operationName("recv").build();
+
+        handler.onMessage(NatsMessageCheater.createMessage("foo", null, data));
+        handler.onMessage(NatsMessageCheater.createMessage("foo", null, data));
+        // The trace message is reused on the same thread.
+        assertSame(seen[0], seen[1]);
+
+        try {
+            handler.onMessage(NatsMessageCheater.createMessage("foo", "bar", data));
+            fail("expected the handler exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        List<JaegerSpan> spans = reporter.getSpans();
+        assertEquals(3, spans.size());
+        for (JaegerSpan s : spans) {
+            assertEquals("recv", s.getOperationName());
+            assertEquals(((JaegerSpanContext) parent.context()).getSpanId(), s.context().getParentId());
+            assertEquals("foo", s.getTags().get("message_bus.destination"));
+        }
+        assertNull(spans.get(0).getTags().get("error"));
+        assertEquals(Boolean.TRUE, spans.get(2).getTags().get("error"));
+
+        // Checked exceptions are tagged too.
+        try {
+            new TracingMessageHandler.Builder(tracer, (tm, span) -> {
+                throw new InterruptedException("stop");
+            }).operationName("recv").build().onMessage(NatsMessageCheater.createMessage("foo", null, data));
+            fail("expected the handler exception");
+        } catch (InterruptedException e) {
+            // expected
+        }
+        assertEquals(4, reporter.getSpans().size());
+        assertEquals(Boolean.TRUE, reporter.getSpans().get(3).getTags().get("error"));
+        assertNull(tracer.activeSpan());
+
+        // Untraced messages get a no-op span unless root spans are started.
+        handler.onMessage(NatsMessageCheater.createMessage("foo", null, "hello".getBytes()));
+        assertEquals(4, reporter.getSpans().size());
+        new TracingMessageHandler.Builder(tracer, (tm, span) -> {}).startRootSpans().build()
+            .onMessage(NatsMessageCheater.createMessage("foo", null, "hello".getBytes()));
+        assertEquals(5, reporter.getSpans().size());
+        assertEquals(0, reporter.getSpans().get(4).context().getParentId());
+
+        // With an executor the handler runs off the calling thread.
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Thread caller = Thread.currentThread();
+        TracingMessageHandler async = new TracingMessageHandler.Builder(tracer, (tm, span) -> {
+            assertNotSame(caller, Thread.currentThread());
+        }).executor(executor).build();
+        async.onMessage(NatsMessageCheater.createMessage("foo", null, data));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(6, reporter.getSpans().size());
+    }
+
+    @Test
+    public void testShardedMessageHandler() throws InterruptedException {
+        Tracer tracer = JaegerTracing.sharedTracing("test", new TracerOptions.Builder().logSpans(false).build());
+        Map<String, List<String>> received = Collections.synchronizedMap(new HashMap<>());
+        Map<String, Thread> threads = new HashMap<>();
+        ShardedMessageHandler sharded = new ShardedMessageHandler.Builder(tracer, (msg) -> {
+            TraceMessage tm = (TraceMessage) msg;
+            String trace = tm.getSpanContext().toTraceId();
+            synchronized (threads) {
+                Thread t = threads.putIfAbsent(trace, Thread.currentThread());
+                assertTrue(t == null || t == Thread.currentThread());
+            }
+            received.computeIfAbsent(trace, k -> Collections.synchronizedList(new ArrayList<>()))
+                .add(new String(tm.getData()));
+        }).shards(4).queueCapacity(8).build();
+        assertEquals(4, sharded.getShardCount());
+
+        List<Span> spans = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            spans.add(tracer.buildSpan("trace" + i).start());
+        }
+        for (int n = 0; n < 20; n++) {
+            for (Span span : spans) {
+                sharded.onMessage(NatsMessageCheater.createMessage("foo", null,
+                    Not.encode(tracer, span.context(), Integer.toString(n).getBytes())));
+            }
+        }
+        sharded.close();
+
+        long processed = 0;
+        for (int i = 0; i < sharded.getShardCount(); i++) {
+            processed += sharded.getProcessedCount(i);
+            assertEquals(0, sharded.getQueueDepth(i));
+            assertTrue(sharded.getMaxQueueDepth(i) <= 8);
+        }
+        assertEquals(320, processed);
+
+        // Each trace was processed in order.
+        assertEquals(16, received.size());
+        for (List<String> values : received.values()) {
+            for (int n = 0; n < 20; n++) {
+                assertEquals(Integer.toString(n), values.get(n));
+            }
+        }
+
+        try {
+            sharded.onMessage(NatsMessageCheater.createMessage("foo", null, "hello".getBytes()));
+            fail("expected the closed handler to reject messages");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // Errors and interrupts in the handler don't stop the shard.
+        ShardedMessageHandler failing = new ShardedMessageHandler.Builder(tracer, (msg) -> {
+            String data = new String(msg.getData());
+            if (data.equals("error")) {
+                throw new AssertionError(data);
+            } else if (data.equals("interrupt")) {
+                throw new InterruptedException(data);
+            }
+        }).shards(1).queueCapacity(1).build();
+        for (String data : new String[] { "error", "interrupt", "error", "ok", "ok" }) {
+            failing.onMessage(NatsMessageCheater.createMessage("foo", null, data.getBytes()));
+        }
+        failing.close();
+        assertEquals(5, failing.getProcessedCount(0));
+        assertEquals(2, failing.getFailedCount(0));
+
+        // Close gives up on a stuck shard once the close timeout passes.
+        ShardedMessageHandler stuck = new ShardedMessageHandler.Builder(tracer, (msg) -> Thread.sleep(60000))
+            .shards(1)
+            .queueCapacity(1)
+            .closeTimeout(Duration.ofMillis(50))
+            .build();
+        stuck.onMessage(NatsMessageCheater.createMessage("foo", null, "1".getBytes()));
+        stuck.onMessage(NatsMessageCheater.createMessage("foo", null, "2".getBytes()));
+        long start = System.nanoTime();
+        stuck.close();
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        // The message waiting behind the stuck one is dropped and counted.
+        assertEquals(1, stuck.getDroppedCount(0));
+    }
+
+    /**
+     * Creates a connection that records published messages and flushes.
+     */
+    private static Connection recordingConnection(List<Message> published, int[] flushes) {
+        return (Connection) Proxy.newProxyInstance(NotTest.class.getClassLoader(),
+            new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+                if (method.getName().equals("publish") && args.length == 3) {
+                    published.add(NatsMessageCheater.createMessage((String) args[0], (String) args[1],
+                        (byte[]) args[2]));
+                } else if (method.getName().equals("flush")) {
+                    flushes[0]++;
+                } else {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                return null;
+            });
+    }
+
+    @Test
+    public void testTracedPublisher() throws Exception {
+        InMemoryReporter reporter = new InMemoryReporter();
+        Tracer tracer = JaegerTracing.initTracing("test", new TracerOptions.Builder().reporter(reporter).build());
+        List<Message> published = new ArrayList<>();
+        int[] flushes = new int[1];
+
+        List<byte[]> payloads = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            payloads.add(("msg" + i).getBytes());
+        }
+        try (TracedPublisher publisher = new TracedPublisher.Builder(recordingConnection(published, flushes), tracer)
+                .batchSize(10)
+                .flushTimeout(Duration.ofSeconds(1))
+                .logMessages(true)
+                .build()) {
+            publisher.publishAll("foo", payloads);
+        }
+
+        assertEquals(25, published.size());
+        assertEquals(3, flushes[0]);
+        List<JaegerSpan> spans = reporter.getSpans();
+        assertEquals(3, spans.size());
+        assertEquals(10, spans.get(0).getTags().get("messages"));
+        assertEquals(10, spans.get(0).getLogs().size());
+        assertEquals(5, spans.get(2).getTags().get("messages"));
+
+        for (int i = 0; i < published.size(); i++) {
+            TraceMessage tm = Not.decode(tracer, published.get(i));
+            assertEquals("msg" + i, new String(tm.getData()));
+            assertEquals(spans.get(i / 10).context().getSpanId(),
+                ((JaegerSpanContext) tm.getSpanContext()).getSpanId());
+        }
+
+        // Without a flush timeout the connection is left to flush itself,
+        // and messages are not logged by default.
+        published.clear();
+        TracedPublisher publisher = new TracedPublisher.Builder(recordingConnection(published, flushes), tracer)
+            .flushTimeout(null)
+            .build();
+        publisher.publish("foo", "bar", null);
+        publisher.close();
+        assertEquals(3, flushes[0]);
+        assertEquals("bar", published.get(0).getReplyTo());
+        assertNull(Not.decode(tracer, published.get(0)).getData());
+        assertNull(reporter.getSpans().get(3).getLogs());
+
+        // Each message of a timed batch carries its own send time.
+        published.clear();
+        TraceOptions timed = new TraceOptions.Builder().timestamps().build();
+        long[] sent = new long[5];
+        Connection nc = recordingConnection(published, flushes);
+        try (TracedPublisher timedPublisher = new TracedPublisher.Builder(nc, tracer)
+                .traceOptions(timed)
+                .batchSize(sent.length)
+                .build()) {
+            for (int i = 0; i < sent.length; i++) {
+                Thread.sleep(2);
+                sent[i] = WireFormat.now();
+                timedPublisher.publish("foo", ("msg" + i).getBytes());
+            }
+        }
+        for (int i = 0; i < sent.length; i++) {
+            TraceMessage tm = Not.decode(tracer, published.get(i), timed);
+            assertEquals("msg" + i, new String(tm.getData()));
+            assertTrue(tm.getSentTimestamp() >= sent[i]);
+            assertTrue(i == sent.length - 1 || tm.getSentTimestamp() < sent[i + 1]);
+        }
+
+        // Skipped batches are sent bare, even after a timed batch left its
+        // prefix in the staging buffer.
+        published.clear();
+        boolean[] sample = { false };
+        Sampler alternating = new Sampler() {
+            @Override
+            public SamplingStatus sample(String operation, long id) {
+                sample[0] = !sample[0];
+                return SamplingStatus.of(sample[0], Collections.emptyMap());
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Tracer alternatingTracer = new JaegerTracer.Builder("test")
+            .withSampler(alternating)
+            .withReporter(new InMemoryReporter())
+            .build();
+        TraceOptions timedSkip = new TraceOptions.Builder()
+            .timestamps()
+            .unsampled(TraceOptions.Unsampled.SKIP)
+            .build();
+        try (TracedPublisher skipPublisher = new TracedPublisher.Builder(nc, alternatingTracer)
+                .traceOptions(timedSkip)
+                .batchSize(1)
+                .build()) {
+            for (int i = 0; i < 4; i++) {
+                skipPublisher.publish("foo", ("m" + i).getBytes());
+            }
+        }
+        assertEquals(4, published.size());
+        for (int i = 0; i < 4; i++) {
+            byte[] data = published.get(i).getData();
+            if (i % 2 == 0) {
+                TraceMessage tm = Not.decode(alternatingTracer, published.get(i), timedSkip);
+                assertEquals("m" + i, new String(tm.getData()));
+                assertTrue(tm.getSentTimestamp() > 0);
+            } else {
+                assertArrayEquals(("m" + i).getBytes(), data);
+            }
+        }
+    }
+
+    // Replies to "echo.*" subjects straight away, "broken.*" subjects get a
+    // reply that can't be read, other requests are left pending until they
+    // are cancelled.
+    private static Connection replyingConnection(Tracer tracer, List<CompletableFuture<Message>> pending) {
+        return (Connection) Proxy.newProxyInstance(NotTest.class.getClassLoader(),
+            new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+                if (!method.getName().equals("request")) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                Message request = args.length == 1 ? (Message) args[0]
+                    : NatsMessageCheater.createMessage((String) args[0], null, (byte[]) args[1]);
+                CompletableFuture<Message> reply = new CompletableFuture<>();
+                if (request.getSubject().startsWith("echo")) {
+                    TraceMessage tm = Not.decode(tracer, request);
+                    Span span = tracer.buildSpan("reply").asChildOf(tm.getSpanContext()).start();
+                    reply.complete(NatsMessageCheater.createMessage("inbox", null,
+                        Not.encode(tracer, span.context(), tm.getData())));
+                    span.finish();
+                } else if (request.getSubject().startsWith("broken")) {
+                    reply.complete((Message) Proxy.newProxyInstance(NotTest.class.getClassLoader(),
+                        new Class<?>[] { Message.class }, (p, m, a) -> {
+                            throw new IllegalStateException("unreadable");
+                        }));
+                } else {
+                    pending.add(reply);
+                }
+                return reply;
+            });
+    }
+
+    private static Connection subscribingConnection(BlockingQueue<Message> incoming, AtomicBoolean active) {
+        Subscription sub = (Subscription) Proxy.newProxyInstance(NotTest.class.getClassLoader(),
+            new Class<?>[] { Subscription.class }, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "nextMessage":
+                        if (!active.get()) {
+                            throw new IllegalStateException("inactive");
+                        }
+                        return incoming.poll(((Duration) args[0]).toMillis(), TimeUnit.MILLISECONDS);
+                    case "unsubscribe":
+                        active.set(false);
+                        return null;
+                    case "isActive":
+                        return active.get();
+                    case "getDroppedCount":
+                        return 0L;
+                    case "setPendingLimits":
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+        return (Connection) Proxy.newProxyInstance(NotTest.class.getClassLoader(),
+            new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+                if (!method.getName().equals("subscribe")) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                active.set(true);
+                return sub;
+            });
+    }
+
+    @Test
+    public void testTraceMessagePublisher() throws Exception {
+        InMemoryReporter reporter = new InMemoryReporter();
+        Tracer tracer = JaegerTracing.initTracing("test", new TracerOptions.Builder().reporter(reporter).build());
+        Span parent = tracer.buildSpan("sendspan").start();
+        BlockingQueue<Message> incoming = new LinkedBlockingQueue<>();
+        AtomicBoolean active = new AtomicBoolean();
+        for (int i = 0; i < 5; i++) {
+            incoming.add(NatsMessageCheater.createMessage("orders", null,
+                Not.encode(tracer, parent.context(), ("m" + i).getBytes())));
+        }
+        TraceMessagePublisher publisher = new TraceMessagePublisher.Builder(
+            subscribingConnection(incoming, active), tracer, "orders").build();
+
+        BlockingQueue<Object> signals = new LinkedBlockingQueue<>();
+        org.reactivestreams.Subscription[] subscription = new org.reactivestreams.Subscription[1];
+        publisher.subscribe(new Subscriber<TraceMessage>() {
+            @Override
+            public void onSubscribe(org.reactivestreams.Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(TraceMessage tm) {
+                // The consumer span is active downstream.
+                assertNotNull(tracer.activeSpan());
+                signals.add(new String(tm.getData()));
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                signals.add(t);
+            }
+
+            @Override
+            public void onComplete() {
+                signals.add("complete");
+            }
+        });
+
+        // Nothing is delivered beyond the demand.
+        subscription[0].request(2);
+        assertEquals("m0", signals.poll(1, TimeUnit.SECONDS));
+        assertEquals("m1", signals.poll(1, TimeUnit.SECONDS));
+        assertNull(signals.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(3, incoming.size());
+
+        subscription[0].request(3);
+        for (int i = 2; i < 5; i++) {
+            assertEquals("m" + i, signals.poll(1, TimeUnit.SECONDS));
+        }
+        assertEquals(5, publisher.getDeliveredCount());
+        // Spans finish once onNext returns.
+        for (int i = 0; i < 100 && reporter.getSpans().size() < 5; i++) {
+            Thread.sleep(10);
+        }
+        List<JaegerSpan> spans = reporter.getSpans();
+        assertEquals(5, spans.size());
+        assertEquals("Receive message", spans.get(0).getOperationName());
+        assertEquals(((JaegerSpanContext) parent.context()).getSpanId(), spans.get(0).context().getParentId());
+
+        // Invalid demand ends the subscription with an error.
+        subscription[0].request(0);
+        assertTrue(signals.poll(1, TimeUnit.SECONDS) instanceof IllegalArgumentException);
+        assertFalse(active.get());
+        assertEquals(0, publisher.getDroppedCount());
+        parent.finish();
+    }
+
+    @Test
+    public void testTracedRequester() throws Exception {
+        InMemoryReporter reporter = new InMemoryReporter();
+        Tracer tracer = JaegerTracing.initTracing("test", new TracerOptions.Builder().reporter(reporter).build());
+        List<CompletableFuture<Message>> pending = new ArrayList<>();
+        Connection nc = replyingConnection(tracer, pending);
+        TracedRequester requester = new TracedRequester.Builder(nc, tracer)
+            .timeout(Duration.ofMillis(100))
+            .build();
+
+        // The reply is decoded and the client span is the parent of the
+        // replier's span.
+        TraceMessage reply = requester.request("echo", "hello".getBytes()).get(1, TimeUnit.SECONDS);
+        assertEquals("hello", new String(reply.getData()));
+        List<JaegerSpan> spans = reporter.getSpans();
+        assertEquals(2, spans.size());
+        JaegerSpan client = spans.get(1);
+        assertEquals("Request", client.getOperationName());
+        assertEquals("client", client.getTags().get("span.kind"));
+        assertEquals(client.context().getSpanId(), spans.get(0).context().getParentId());
+        assertEquals(client.context().getSpanId(),
+            ((JaegerSpanContext) reply.getSpanContext()).getParentId());
+
+        // Headers work the same way.
+        reply = new TracedRequester.Builder(nc, tracer).headers().build()
+            .request("echo", "headers".getBytes()).get(1, TimeUnit.SECONDS);
+        assertEquals("headers", new String(reply.getData()));
+        assertNotNull(reply.getSpanContext());
+
+        // A request without a reply times out and its span is an error.
+        reporter.clear();
+        CompletableFuture<TraceMessage> slow = Not.request(nc, tracer, null, "slow", "x".getBytes(),
+            Duration.ofMillis(50));
+        try {
+            slow.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(pending.get(0).isCancelled());
+        assertEquals(1, reporter.getSpans().size());
+        assertEquals(true, reporter.getSpans().get(0).getTags().get("error"));
+
+        // A reply that can't be decoded fails the request straight away.
+        reporter.clear();
+        try {
+            requester.request("broken", "x".getBytes()).get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(1, reporter.getSpans().size());
+        assertEquals(true, reporter.getSpans().get(0).getTags().get("error"));
+
+        // Scatter gather completes with the first replies and cancels the
+        // rest.
+        reporter.clear();
+        pending.clear();
+        List<TraceMessage> replies = requester.scatterGather(Arrays.asList("slow.1", "echo.1", "echo.2"),
+            "hi".getBytes(), 2).get(1, TimeUnit.SECONDS);
+        assertEquals(2, replies.size());
+        assertTrue(pending.get(0).isCancelled());
+        spans = reporter.getSpans();
+        JaegerSpan parent = spans.get(spans.size() - 1);
+        assertEquals("Scatter gather", parent.getOperationName());
+        assertEquals(3, parent.getTags().get("requests"));
+        assertEquals(2, parent.getTags().get("replies"));
+        int children = 0;
+        for (JaegerSpan s : spans) {
+            if (s.context().getParentId() == parent.context().getSpanId()) {
+                children++;
+            }
+        }
+        assertEquals(3, children);
+
+        // When requests time out it completes with the replies there are.
+        replies = requester.scatterGatherAll(Arrays.asList("slow.2", "echo.3"), "hi".getBytes())
+            .get(1, TimeUnit.SECONDS);
+        assertEquals(1, replies.size());
+
+        // A request that can't be sent fails the scatter gather, cancels
+        // the requests already sent and finishes the parent span.
+        reporter.clear();
+        pending.clear();
+        CompletableFuture<List<TraceMessage>> failed = requester.scatterGather(Arrays.asList("slow.3", null),
+            "hi".getBytes(), 1);
+        try {
+            failed.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        assertTrue(pending.get(0).isCancelled());
+        parent = reporter.getSpans().get(reporter.getSpans().size() - 1);
+        assertEquals("Scatter gather", parent.getOperationName());
+        assertEquals(true, parent.getTags().get("error"));
+    }
+
+    @Test
+    public void testEnvelope() {
+        Tracer tracer = JaegerTracing.sharedTracing("test", new TracerOptions.Builder().logSpans(false).build());
+        Span span = tracer.buildSpan("sendspan").start();
+        span.setBaggageItem("k1", "v1");
+        List<byte[]> payloads = Arrays.asList("one".getBytes(), new byte[0], "three".getBytes());
+
+        TraceOptions[] options = {
+            TraceOptions.DEFAULT,
+            new TraceOptions.Builder().codec(CompactTraceCodec.COMPACT).build(),
+        };
+        for (TraceOptions o : options) {
+            byte[] data = Not.encodeEnvelope(tracer, span.context(), payloads, o);
+            Message msg = NatsMessageCheater.createMessage("foo", "bar", data);
+            assertTrue(Not.decode(tracer, msg, o).isEnvelope());
+
+            TraceEnvelope envelope = Not.decodeEnvelope(tracer, msg, o);
+            assertEquals(3, envelope.size());
+            SpanContext sc = envelope.getSpanContext();
+            assertEquals(span.context().toSpanId(), sc.toSpanId());
+
+            int i = 0;
+            for (TraceMessage tm : envelope) {
+                assertSame(sc, tm.getSpanContext());
+                assertEquals("foo", tm.getSubject());
+                assertEquals("bar", tm.getReplyTo());
+                assertArrayEquals(payloads.get(i), tm.getData() == null ? new byte[0] : tm.getData());
+                assertEquals(payloads.get(i).length, tm.getDataBuffer().remaining());
+                i++;
+            }
+            assertEquals(3, i);
+        }
+
+        // Plain messages decode as a single record.
+        TraceEnvelope single = Not.decodeEnvelope(tracer,
+            NatsMessageCheater.createMessage("foo", null, Not.encode(tracer, span.context(), "hello".getBytes())));
+        assertEquals(1, single.size());
+        assertEquals("hello", new String(single.get(0).getData()));
+        assertFalse(single.get(0).isEnvelope());
+
+        // Unsampled envelopes carry a marker.
+        Tracer unsampledTracer = JaegerTracing.initTracing("test", new TracerOptions.Builder().constSampler(false).build());
+        TraceOptions skip = new TraceOptions.Builder().unsampled(TraceOptions.Unsampled.SKIP).build();
+        TraceEnvelope unsampled = Not.decodeEnvelope(unsampledTracer, NatsMessageCheater.createMessage("foo", null,
+            Not.encodeEnvelope(unsampledTracer, unsampledTracer.buildSpan("x").start().context(), payloads, skip)));
+        assertTrue(unsampled.isUnsampled());
+        assertNull(unsampled.getSpanContext());
+        assertEquals("three", new String(unsampled.get(2).getData()));
+
+        // Truncated envelopes give the complete records.
+        byte[] data = Not.encodeEnvelope(tracer, span.context(), payloads);
+        TraceEnvelope truncated = Not.decodeEnvelope(tracer,
+            NatsMessageCheater.createMessage("foo", null, Arrays.copyOf(data, data.length - 2)));
+        assertEquals(2, truncated.size());
+    }
+
+    @Test
+    public void testSubjectPolicy() throws Exception {
+        SubjectPolicy.Rule tenth = SubjectPolicy.Rule.sample(0.1);
+        SubjectPolicy policy = new SubjectPolicy.Builder()
+            .add("orders.>", tenth)
+            .add("metrics.*", SubjectPolicy.Rule.OFF)
+            .add("payments.refund", SubjectPolicy.Rule.ALWAYS)
+            .add("payments.*", SubjectPolicy.Rule.OFF)
+            .add("*.audit.>", SubjectPolicy.Rule.OFF)
+            .otherwise(SubjectPolicy.Rule.sample(0.5))
+            .build();
+        assertSame(tenth, policy.rule("orders.new"));
+        assertSame(tenth, policy.rule("orders.eu.new"));
+        assertSame(SubjectPolicy.Rule.OFF, policy.rule("metrics.cpu"));
+        assertSame(SubjectPolicy.Rule.ALWAYS, policy.rule("payments.refund"));
+        assertSame(SubjectPolicy.Rule.OFF, policy.rule("payments.charge"));
+        assertSame(SubjectPolicy.Rule.OFF, policy.rule("billing.audit.x"));
+        // The leftmost literal token wins.
+        assertSame(tenth, policy.rule("orders.audit.x"));
+        assertEquals(0.5, policy.rule("metrics.cpu.0").getRate(), 0);
+        assertEquals(0.5, policy.rule("orders").getRate(), 0);
+        assertEquals(0.5, policy.rule(null).getRate(), 0);
+        assertEquals(9, policy.getMissCount());
+        assertSame(SubjectPolicy.Rule.OFF, policy.rule("metrics.cpu"));
+        assertEquals(1, policy.getHitCount());
+
+        assertFalse(SubjectPolicy.Rule.OFF.isTraced());
+        assertFalse(SubjectPolicy.Rule.OFF.sample());
+        assertTrue(SubjectPolicy.Rule.ALWAYS.sample());
+        String[] invalid = { "", "a..b", "a.>.b", "a*.b", "a.b>" };
+        for (String pattern : invalid) {
+            try {
+                new SubjectPolicy.Builder().add(pattern, SubjectPolicy.Rule.OFF);
+                fail("expected " + pattern + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+
+        InMemoryReporter reporter = new InMemoryReporter();
+        Tracer tracer = JaegerTracing.initTracing("test", new TracerOptions.Builder().reporter(reporter).build());
+        Span span = tracer.buildSpan("sendspan").start();
+        TraceOptions options = new TraceOptions.Builder().subjectPolicy(policy).build();
+
+        // Subjects that are not traced skip injection and extraction.
+        Message m = Not.encodeMessage(tracer, span.context(), "metrics.cpu", null, "hello".getBytes(), options);
+        assertFalse(m.hasHeaders());
+        m = Not.encodeMessage(tracer, span.context(), "payments.refund", null, "hello".getBytes(), options);
+        assertTrue(m.hasHeaders());
+        assertNotNull(Not.decode(tracer, m, options).getSpanContext());
+
+        byte[] data = Not.encode(tracer, span.context(), "hello".getBytes());
+        TraceMessage tm = Not.decode(tracer, NatsMessageCheater.createMessage("metrics.cpu", null, data), options);
+        assertNull(tm.getSpanContext());
+        assertEquals("hello", new String(tm.getData()));
+
+        byte[] payload = "hello".getBytes();
+        assertSame(payload, Not.encode(tracer, span.context(), "metrics.cpu", payload, options));
+        tm = Not.decode(tracer, NatsMessageCheater.createMessage("payments.refund", null,
+            Not.encode(tracer, span.context(), "payments.refund", payload, options)), options);
+        assertEquals(span.context().toSpanId(), tm.getSpanContext().toSpanId());
+        assertEquals("hello", new String(tm.getData()));
+
+        TracingMessageHandler handler = new TracingMessageHandler.Builder(tracer, (msg, s) -> {})
+            .traceOptions(options)
+            .startRootSpans()
+            .build();
+        handler.onMessage(NatsMessageCheater.createMessage("metrics.cpu", null, data));
+        handler.onMessage(NatsMessageCheater.createMessage("payments.charge", null, "hello".getBytes()));
+        assertEquals(0, reporter.getSpans().size());
+        handler.onMessage(NatsMessageCheater.createMessage("payments.refund", null, data));
+        handler.onMessage(NatsMessageCheater.createMessage("payments.refund", null, "hello".getBytes()));
+        assertEquals(2, reporter.getSpans().size());
+
+        // Batches are sampled at the rate of the first message's subject.
+        reporter.clear();
+        List<Message> published = new ArrayList<>();
+        TraceOptions rare = new TraceOptions.Builder()
+            .subjectPolicy(new SubjectPolicy.Builder()
+                .add("rare.>", SubjectPolicy.Rule.sample(1e-12))
+                .build())
+            .unsampled(TraceOptions.Unsampled.SKIP)
+            .build();
+        try (TracedPublisher publisher = new TracedPublisher.Builder(recordingConnection(published, new int[1]), tracer)
+                .traceOptions(rare)
+                .batchSize(2)
+                .build()) {
+            publisher.publish("rare.x", "hello".getBytes());
+            publisher.publish("rare.x", "hello".getBytes());
+            publisher.publish("common", "hello".getBytes());
+        }
+        assertArrayEquals("hello".getBytes(), published.get(0).getData());
+        assertArrayEquals("hello".getBytes(), published.get(1).getData());
+        assertNotNull(Not.decode(tracer, published.get(2), rare).getSpanContext());
+        assertEquals(1, reporter.getSpans().size());
+        span.finish();
+    }
+
+    @Test
+    public void testSpanContextCache() throws InterruptedException {
+        Tracer tracer = JaegerTracing.sharedTracing("test", new TracerOptions.Builder().logSpans(false).build());
+        SpanContextCache cache = new SpanContextCache(100, 0);
+        assertEquals(128, cache.getSize());
+        TraceOptions options = new TraceOptions.Builder().spanContextCache(cache).build();
+
+        Span span = tracer.buildSpan("sendspan").start();
+        byte[] data = Not.encode(tracer, span.context(), "hello".getBytes());
+        SpanContext first = Not.decode(tracer, NatsMessageCheater.createMessage("foo", null, data), options)
+            .getSpanContext();
+        for (int i = 0; i < 10; i++) {
+            TraceMessage tm = Not.decode(tracer, NatsMessageCheater.createMessage("foo", null, data.clone()), options);
+            assertSame(first, tm.getSpanContext());
+            assertEquals("hello", new String(tm.getData()));
+        }
+        assertEquals(1, cache.getMissCount());
+        assertEquals(10, cache.getHitCount());
+
+        // A different carrier is decoded, not confused with the cached one.
+        Span other = tracer.buildSpan("other").start();
+        SpanContext sc = Not.decode(tracer, NatsMessageCheater.createMessage("foo", null,
+            Not.encode(tracer, other.context(), "hello".getBytes())), options).getSpanContext();
+        assertEquals(other.context().toSpanId(), sc.toSpanId());
+        assertEquals(2, cache.getMissCount());
+
+        cache.clear();
+        SpanContext cached = Not.decode(tracer, NatsMessageCheater.createMessage("foo", null, data), options)
+            .getSpanContext();
+        assertEquals(3, cache.getMissCount());
+
+        // Another codec with the same id is not trusted with the cached
+        // span context.
+        TraceCodec sameId = new TraceCodec() {
+            @Override
+            public int id() {
+                return TraceCodec.BINARY.id();
+            }
+
+            @Override
+            public void encode(Tracer t, SpanContext spanContext, ByteBuffer buffer) {
+                TraceCodec.BINARY.encode(t, spanContext, buffer);
+            }
+
+            @Override
+            public SpanContext decode(Tracer t, byte[] bytes, int offset, int length) {
+                return TraceCodec.BINARY.decode(t, bytes, offset, length);
+            }
+        };
+        int carrierOffset = WireFormat.carrierOffset(data);
+        int carrierLength = WireFormat.carrierLength(data);
+        assertSame(cached, cache.decode(tracer, TraceCodec.BINARY, data, carrierOffset, carrierLength));
+        assertNotSame(cached, cache.decode(tracer, sameId, data, carrierOffset, carrierLength));
+        assertEquals(4, cache.getMissCount());
+
+        // Entries expire.
+        SpanContextCache expiring = new SpanContextCache(16, 1);
+        TraceOptions expiringOptions = new TraceOptions.Builder().spanContextCache(expiring).build();
+        Not.decode(tracer, NatsMessageCheater.createMessage("foo", null, data), expiringOptions);
+        Thread.sleep(5);
+        Not.decode(tracer, NatsMessageCheater.createMessage("foo", null, data), expiringOptions);
+        assertEquals(2, expiring.getMissCount());
+        assertEquals(0, expiring.getHitCount());
+    }
+
+    @Test
+    public void testTransitLatency() {
+        Tracer tracer = JaegerTracing.sharedTracing("test", new TracerOptions.Builder().logSpans(false).build());
+        SpanContext sc = tracer.buildSpan("sendspan").start().context();
+        LatencyRecorder recorder = new LatencyRecorder(2);
+        TraceOptions options = new TraceOptions.Builder()
+            .timestamps()
+            .latencyRecorder(recorder)
+            .codec(CompactTraceCodec.COMPACT)
+            .build();
+
+        byte[] payload = "hello".getBytes();
+        long before = WireFormat.now();
+        byte[] data = Not.encode(tracer, sc, payload, options);
+        assertEquals(WireFormat.HEADER_SIZE + WireFormat.TIMESTAMP_SIZE + CompactTraceCodec.COMPACT_SIZE
+            + payload.length, data.length);
+
+        TraceMessage tm = Not.decode(tracer, NatsMessageCheater.createMessage("foo", null, data), options);
+        assertEquals(sc.toSpanId(), tm.getSpanContext().toSpanId());
+        assertEquals("hello", new String(tm.getData()));
+        assertTrue(tm.getSentTimestamp() >= before);
+        assertTrue(tm.getTransitNanos() >= 0);
+
+        // Every encoding writes the send time.
+        ByteBuffer bb = ByteBuffer.allocate(256);
+        Not.encode(tracer, sc, payload, bb, options);
+        assertTrue(Not.decode(tracer, NatsMessageCheater.createMessage("foo", null,
+            Arrays.copyOf(bb.array(), bb.position())), options).getSentTimestamp() > 0);
+        TraceEnvelope envelope = Not.decodeEnvelope(tracer, NatsMessageCheater.createMessage("bar", null,
+            Not.encodeEnvelope(tracer, sc, Arrays.asList(payload, payload), options)), options);
+        assertEquals("hello", new String(envelope.get(1).getData()));
+        assertTrue(envelope.get(1).getSentTimestamp() > 0);
+        Not.decode(tracer, NatsMessageCheater.createMessage("baz", null, Not.encode(tracer, sc, payload, options)),
+            options);
+
+        // Messages without a send time are not recorded.
+        TraceMessage plain = Not.decode(tracer, NatsMessageCheater.createMessage("foo", null,
+            Not.encode(tracer, sc, payload)), options);
+        assertEquals(-1, plain.getSentTimestamp());
+
+        // Nor are messages on subjects the policy does not trace.
+        TraceOptions quiet = new TraceOptions.Builder()
+            .timestamps()
+            .latencyRecorder(recorder)
+            .subjectPolicy(new SubjectPolicy.Builder().add("quiet", SubjectPolicy.Rule.OFF).build())
+            .build();
+        TraceMessage untraced = Not.decode(tracer, NatsMessageCheater.createMessage("quiet", null,
+            Not.encode(tracer, sc, payload, options)), quiet);
+        assertEquals("hello", new String(untraced.getData()));
+        assertEquals(-1, untraced.getTransitNanos());
+
+        Map<String, LatencyHistogram.Snapshot> snapshots = recorder.snapshot();
+        assertEquals(3, snapshots.size());
+        assertEquals(2, snapshots.get("foo").getCount());
+        assertEquals(1, snapshots.get("bar").getCount());
+        assertEquals(1, snapshots.get(LatencyRecorder.OTHER).getCount());
+        assertNull(recorder.snapshot("baz"));
+
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i * 1000L);
+        }
+        h.record(-5);
+        LatencyHistogram.Snapshot s = h.snapshot();
+        assertEquals(1001, s.getCount());
+        assertEquals(1, s.getNegativeCount());
+        assertEquals(0, s.getMin());
+        assertEquals(1000000, s.getMax());
+        assertEquals(500000, s.getValueAtPercentile(50), 500000 * 0.07);
+        assertEquals(990000, s.getValueAtPercentile(99), 990000 * 0.07);
+        assertEquals(1000000, s.getValueAtPercentile(100));
+        for (long v = 0; v < 100000; v += 7) {
+            int b = LatencyHistogram.bucket(v);
+            assertTrue(v <= LatencyHistogram.highestValue(b));
+            assertTrue(b == 0 || v > LatencyHistogram.highestValue(b - 1));
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        Tracer tracer = JaegerTracing.sharedTracing("test", new TracerOptions.Builder().logSpans(false).build());
+        SpanContext sc = tracer.buildSpan("sendspan").start().context();
+        SimpleTraceMetrics metrics = new SimpleTraceMetrics();
+        TraceOptions options = new TraceOptions.Builder()
+            .codec(CompactTraceCodec.COMPACT)
+            .metrics(metrics)
+            .build();
+
+        byte[] payload = "hello".getBytes();
+        byte[] data = Not.encode(tracer, sc, payload, options);
+        Not.encode(tracer, sc, payload, ByteBuffer.allocate(256), options);
+        Message withHeaders = Not.encodeMessage(tracer, sc, "foo", null, payload, options);
+        assertEquals(3, metrics.getEncodedCount());
+        assertEquals(3, metrics.getEncodedTracedCount());
+        assertTrue(metrics.getOverheadBytes() > 2 * (WireFormat.HEADER_SIZE + CompactTraceCodec.COMPACT_SIZE));
+
+        Tracer unsampledTracer = JaegerTracing.initTracing("test", new TracerOptions.Builder().constSampler(false).build());
+        Not.encode(unsampledTracer, unsampledTracer.buildSpan("x").start().context(), payload,
+            new TraceOptions.Builder().unsampled(TraceOptions.Unsampled.SKIP).metrics(metrics).build());
+        assertEquals(4, metrics.getEncodedCount());
+        assertEquals(3, metrics.getEncodedTracedCount());
+
+        TraceMessage tm = Not.decode(tracer, NatsMessageCheater.createMessage("foo", null, data), options);
+        tm.getData();
+        Not.decode(tracer, withHeaders, options);
+        Not.decode(tracer, NatsMessageCheater.createMessage("foo", null, payload), options).getData();
+        assertEquals(3, metrics.getDecodedCount());
+        assertEquals(2, metrics.getDecodedTracedCount());
+        assertEquals(payload.length, metrics.getPayloadBytesCopied());
+        assertEquals(0, metrics.getExtractionFailureCount());
+
+        // A carrier from a codec the receiver doesn't know can't be read.
+        Not.decode(tracer, NatsMessageCheater.createMessage("foo", null, data),
+            new TraceOptions.Builder().metrics(metrics).build());
+        assertEquals(1, metrics.getExtractionFailureCount());
+        assertTrue(metrics.toString().contains("extractionFailures=1"));
+
+        // So can a carrier the codec throws on.
+        TraceCodec throwing = new TraceCodec() {
+            @Override
+            public int id() {
+                return 6;
+            }
+
+            @Override
+            public void encode(Tracer t, SpanContext spanContext, ByteBuffer buffer) {
+                TraceCodec.BINARY.encode(t, spanContext, buffer);
+            }
+
+            @Override
+            public SpanContext decode(Tracer t, byte[] bytes, int offset, int length) {
+                throw new IllegalArgumentException("unreadable");
+            }
+        };
+        TraceOptions throwingOptions = new TraceOptions.Builder().codec(throwing).metrics(metrics).build();
+        try {
+            Not.decode(tracer, NatsMessageCheater.createMessage("foo", null,
+                Not.encode(tracer, sc, payload, throwingOptions)), throwingOptions);
+            fail("expected the codec exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(2, metrics.getExtractionFailureCount());
+
+        // Lazily decoded messages are only counted once extracted.
+        TraceMessage lazy = Not.decodeLazy(tracer, NatsMessageCheater.createMessage("foo", null, data), options);
+        assertEquals(4, metrics.getDecodedCount());
+        lazy.getSpanContext();
+        assertEquals(5, metrics.getDecodedCount());
+
+        // Batched messages are counted one by one.
+        metrics.reset();
+        try (TracedPublisher publisher = new TracedPublisher.Builder(recordingConnection(new ArrayList<>(),
+                new int[1]), tracer).traceOptions(options).batchSize(4).build()) {
+            for (int i = 0; i < 10; i++) {
+                publisher.publish("foo", payload);
+            }
+        }
+        assertEquals(10, metrics.getEncodedCount());
+        assertEquals(10, metrics.getEncodedTracedCount());
+        assertEquals(10 * (WireFormat.HEADER_SIZE + CompactTraceCodec.COMPACT_SIZE), metrics.getOverheadBytes());
+
+        metrics.reset();
+        assertEquals(0, metrics.getEncodedCount());
+    }
 }